@@ -0,0 +1,289 @@
+// CPU engine that tests each ray against several blocking tessellations at once with the Java Vector API
+// The Moller-Trumbore test runs lane-wise over structure-of-arrays blocker data, as many blockers per step as
+// the preferred vector shape holds (2 doubles on SSE/NEON, 4 on AVX2, 8 on AVX-512).
+// Emitters are grouped as in BlockerCompaction, and every group's blockers are copied next to each other
+// so each step is one contiguous load per component.
+// Needs the incubator module, so it sits in its own source root and CalculateVF loads it by name: compile this root
+// and run with --add-modules jdk.incubator.vector. Without it the rest of the calculator still builds and runs
+// Before the run, a sample of pairs is tested both ways to check the vector test against the scalar one
+// and to time the two
+
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+public class VectorCalculator implements ViewFactorEngine {
+
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private final Geometry emitter;
+    private final Geometry receiver;
+    private final PairEvaluator scalar; // Linear scan, used for the pair math and the check
+
+    private final int blockTessellations;
+    private final int[] emitterCluster;
+    private final int[] clusterOffsets;
+    private final int[] clusterCounts;
+    private final double[] blockVertexAX; // Blockers of every cluster, each cluster zero-padded to whole vectors
+    private final double[] blockVertexAY;
+    private final double[] blockVertexAZ;
+    private final double[] blockEdgeBAX;
+    private final double[] blockEdgeBAY;
+    private final double[] blockEdgeBAZ;
+    private final double[] blockEdgeCAX;
+    private final double[] blockEdgeCAY;
+    private final double[] blockEdgeCAZ;
+
+    private final boolean oneSided;
+    private final int checkPairs;
+
+    private int mismatches;
+    private int checkedPairs;
+    private double scalarSeconds;
+    private double vectorSeconds;
+
+    public VectorCalculator(Geometry emitter, Geometry receiver, Geometry block, EngineOptions options) {
+        this.emitter = emitter;
+        this.receiver = receiver;
+        scalar = new PairEvaluator(emitter, receiver, block, false);
+
+        blockTessellations = block.getSize();
+        BlockerCompaction compaction = new BlockerCompaction(emitter, receiver, block, options.compactionClusterSize);
+        emitterCluster = compaction.getEmitterCluster();
+
+        // Padding slots point at -1 and stay zero, so every step is a full, unmasked vector
+        int clusterCount = compaction.getClusterCount();
+        clusterOffsets = new int[clusterCount];
+        clusterCounts = new int[clusterCount];
+        int padded = 0;
+        for (int cluster = 0; cluster < clusterCount; cluster++) {
+            clusterOffsets[cluster] = padded;
+            clusterCounts[cluster] = SPECIES.loopBound(compaction.getClusterCounts()[cluster] + SPECIES.length() - 1);
+            padded += clusterCounts[cluster];
+        }
+        int[] blockers = new int[padded];
+        Arrays.fill(blockers, -1);
+        for (int cluster = 0; cluster < clusterCount; cluster++) {
+            System.arraycopy(compaction.getBlockers(), compaction.getClusterOffsets()[cluster], blockers, clusterOffsets[cluster], compaction.getClusterCounts()[cluster]);
+        }
+        blockVertexAX = gather(block.getVertexAX(), blockers);
+        blockVertexAY = gather(block.getVertexAY(), blockers);
+        blockVertexAZ = gather(block.getVertexAZ(), blockers);
+        blockEdgeBAX = gather(block.getEdgeBAX(), blockers);
+        blockEdgeBAY = gather(block.getEdgeBAY(), blockers);
+        blockEdgeBAZ = gather(block.getEdgeBAZ(), blockers);
+        blockEdgeCAX = gather(block.getEdgeCAX(), blockers);
+        blockEdgeCAY = gather(block.getEdgeCAY(), blockers);
+        blockEdgeCAZ = gather(block.getEdgeCAZ(), blockers);
+
+        oneSided = options.oneSided;
+        checkPairs = options.vectorCheckPairs;
+    }
+
+    public double calculate() {
+        check();
+
+        // Each chunk of emitters is summed separately and the chunks are added in order, so the sum is reproducible
+        int chunks = 64;
+        double[] chunkSums = new double[chunks];
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            for (int emitterIndex = chunk; emitterIndex < emitter.getSize(); emitterIndex += chunks) {
+                for (int receiverIndex = 0; receiverIndex < receiver.getSize(); receiverIndex++) {
+                    chunkSums[chunk] += contribution(emitterIndex, receiverIndex);
+                }
+            }
+        });
+
+        double sum = 0;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            sum += chunkSums[chunk];
+        }
+        double emitterArea = 0;
+        for (int emitterIndex = 0; emitterIndex < emitter.getSize(); emitterIndex++) {
+            emitterArea += emitter.getArea()[emitterIndex];
+        }
+        return sum / emitterArea;
+    }
+
+    private double contribution(int emitterIndex, int receiverIndex) {
+        double originX = emitter.getCenterX()[emitterIndex];
+        double originY = emitter.getCenterY()[emitterIndex];
+        double originZ = emitter.getCenterZ()[emitterIndex];
+        double rayX = receiver.getCenterX()[receiverIndex] - originX;
+        double rayY = receiver.getCenterY()[receiverIndex] - originY;
+        double rayZ = receiver.getCenterZ()[receiverIndex] - originZ;
+
+        if (oneSided && !facing(emitterIndex, receiverIndex, rayX, rayY, rayZ)) {
+            return 0;
+        }
+        if (occluded(emitterCluster[emitterIndex], originX, originY, originZ, rayX, rayY, rayZ)) {
+            return 0;
+        }
+        return scalar.unblockedContribution(emitterIndex, receiverIndex, rayX, rayY, rayZ, PairEvaluator.vectorMagnitude(rayX, rayY, rayZ));
+    }
+
+    // Same test as the kernel's one-sided culling
+    private boolean facing(int emitterIndex, int receiverIndex, double rayX, double rayY, double rayZ) {
+        return emitter.getNormalX()[emitterIndex] * rayX + emitter.getNormalY()[emitterIndex] * rayY + emitter.getNormalZ()[emitterIndex] * rayZ > 0
+                && receiver.getNormalX()[receiverIndex] * rayX + receiver.getNormalY()[receiverIndex] * rayY + receiver.getNormalZ()[receiverIndex] * rayZ < 0;
+    }
+
+    // True if a blocker of the emitter's cluster lies strictly inside the segment origin + t * ray, 0 < t < 1
+    // Lane for lane the same operations as PairEvaluator.intersectionDistance(), so the decisions match exactly
+    private boolean occluded(int cluster, double originX, double originY, double originZ, double rayX, double rayY, double rayZ) {
+        DoubleVector one = DoubleVector.broadcast(SPECIES, 1);
+        int end = clusterOffsets[cluster] + clusterCounts[cluster];
+        for (int first = clusterOffsets[cluster]; first < end; first += SPECIES.length()) {
+            DoubleVector edgeBAX = DoubleVector.fromArray(SPECIES, blockEdgeBAX, first);
+            DoubleVector edgeBAY = DoubleVector.fromArray(SPECIES, blockEdgeBAY, first);
+            DoubleVector edgeBAZ = DoubleVector.fromArray(SPECIES, blockEdgeBAZ, first);
+            DoubleVector edgeCAX = DoubleVector.fromArray(SPECIES, blockEdgeCAX, first);
+            DoubleVector edgeCAY = DoubleVector.fromArray(SPECIES, blockEdgeCAY, first);
+            DoubleVector edgeCAZ = DoubleVector.fromArray(SPECIES, blockEdgeCAZ, first);
+
+            DoubleVector pvecX = edgeCAZ.mul(rayY).sub(edgeCAY.mul(rayZ));
+            DoubleVector pvecY = edgeCAX.mul(rayZ).sub(edgeCAZ.mul(rayX));
+            DoubleVector pvecZ = edgeCAY.mul(rayX).sub(edgeCAX.mul(rayY));
+            DoubleVector det = edgeBAX.mul(pvecX).add(edgeBAY.mul(pvecY)).add(edgeBAZ.mul(pvecZ));
+
+            // Back faces, rays parallel to the plane and the zero padding never block
+            VectorMask<Double> hits = det.compare(VectorOperators.GE, 1e-8);
+            if (!hits.anyTrue()) {
+                continue;
+            }
+            DoubleVector invDet = one.div(det);
+
+            DoubleVector tvecX = DoubleVector.fromArray(SPECIES, blockVertexAX, first).neg().add(originX);
+            DoubleVector tvecY = DoubleVector.fromArray(SPECIES, blockVertexAY, first).neg().add(originY);
+            DoubleVector tvecZ = DoubleVector.fromArray(SPECIES, blockVertexAZ, first).neg().add(originZ);
+            DoubleVector u = tvecX.mul(pvecX).add(tvecY.mul(pvecY)).add(tvecZ.mul(pvecZ)).mul(invDet);
+
+            DoubleVector qvecX = tvecY.mul(edgeBAZ).sub(tvecZ.mul(edgeBAY));
+            DoubleVector qvecY = tvecZ.mul(edgeBAX).sub(tvecX.mul(edgeBAZ));
+            DoubleVector qvecZ = tvecX.mul(edgeBAY).sub(tvecY.mul(edgeBAX));
+            DoubleVector v = qvecX.mul(rayX).add(qvecY.mul(rayY)).add(qvecZ.mul(rayZ)).mul(invDet);
+            DoubleVector intersectionDistance = edgeCAX.mul(qvecX).add(edgeCAY.mul(qvecY)).add(edgeCAZ.mul(qvecZ)).mul(invDet);
+
+            hits = hits.and(u.compare(VectorOperators.GE, 0)).and(u.compare(VectorOperators.LE, 1))
+                    .and(v.compare(VectorOperators.GE, 0)).and(u.add(v).compare(VectorOperators.LE, 1))
+                    .and(intersectionDistance.compare(VectorOperators.GT, 0)).and(intersectionDistance.compare(VectorOperators.LT, 1));
+            if (hits.anyTrue()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Scalar loop over the same blockers, for timing against the vector test
+    private boolean scalarOccluded(int cluster, double originX, double originY, double originZ, double rayX, double rayY, double rayZ) {
+        int end = clusterOffsets[cluster] + clusterCounts[cluster];
+        for (int slot = clusterOffsets[cluster]; slot < end; slot++) {
+            double pvecX = rayY * blockEdgeCAZ[slot] - rayZ * blockEdgeCAY[slot];
+            double pvecY = rayZ * blockEdgeCAX[slot] - rayX * blockEdgeCAZ[slot];
+            double pvecZ = rayX * blockEdgeCAY[slot] - rayY * blockEdgeCAX[slot];
+            double det = blockEdgeBAX[slot] * pvecX + blockEdgeBAY[slot] * pvecY + blockEdgeBAZ[slot] * pvecZ;
+            if (det < 1e-8) {
+                continue;
+            }
+            double invDet = 1 / det;
+
+            double tvecX = originX - blockVertexAX[slot];
+            double tvecY = originY - blockVertexAY[slot];
+            double tvecZ = originZ - blockVertexAZ[slot];
+            double u = (tvecX * pvecX + tvecY * pvecY + tvecZ * pvecZ) * invDet;
+            if (u < 0 || u > 1) {
+                continue;
+            }
+
+            double qvecX = tvecY * blockEdgeBAZ[slot] - tvecZ * blockEdgeBAY[slot];
+            double qvecY = tvecZ * blockEdgeBAX[slot] - tvecX * blockEdgeBAZ[slot];
+            double qvecZ = tvecX * blockEdgeBAY[slot] - tvecY * blockEdgeBAX[slot];
+            double v = (rayX * qvecX + rayY * qvecY + rayZ * qvecZ) * invDet;
+            if (v < 0 || (u + v) > 1) {
+                continue;
+            }
+            double intersectionDistance = (blockEdgeCAX[slot] * qvecX + blockEdgeCAY[slot] * qvecY + blockEdgeCAZ[slot] * qvecZ) * invDet;
+            if (intersectionDistance > 0 && intersectionDistance < 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Runs the occlusion test of evenly spaced pairs with the vector test, the scalar loop over the same blockers
+    // and PairEvaluator's scan of every blocker. Counts disagreements with PairEvaluator and times the first two
+    private void check() {
+        long pairs = (long) emitter.getSize() * receiver.getSize();
+        int count = (int) Math.min(pairs, Math.max(0, checkPairs));
+        if (count == 0) {
+            return;
+        }
+        boolean[] referenceHits = new boolean[count];
+        boolean[] scalarHits = new boolean[count];
+        boolean[] vectorHits = new boolean[count];
+        for (int sample = 0; sample < count; sample++) {
+            long pair = sample * pairs / count;
+            double[] ray = ray((int) (pair / receiver.getSize()), (int) (pair % receiver.getSize()));
+            referenceHits[sample] = scalar.occluded(ray[0], ray[1], ray[2], ray[3], ray[4], ray[5]);
+        }
+
+        // A warm-up pass first, so both versions are compiled before they are timed
+        for (int pass = 0; pass < 2; pass++) {
+            long start = System.nanoTime();
+            for (int sample = 0; sample < count; sample++) {
+                long pair = sample * pairs / count;
+                int emitterIndex = (int) (pair / receiver.getSize());
+                double[] ray = ray(emitterIndex, (int) (pair % receiver.getSize()));
+                scalarHits[sample] = scalarOccluded(emitterCluster[emitterIndex], ray[0], ray[1], ray[2], ray[3], ray[4], ray[5]);
+            }
+            scalarSeconds = (System.nanoTime() - start) / 1e9;
+
+            start = System.nanoTime();
+            for (int sample = 0; sample < count; sample++) {
+                long pair = sample * pairs / count;
+                int emitterIndex = (int) (pair / receiver.getSize());
+                double[] ray = ray(emitterIndex, (int) (pair % receiver.getSize()));
+                vectorHits[sample] = occluded(emitterCluster[emitterIndex], ray[0], ray[1], ray[2], ray[3], ray[4], ray[5]);
+            }
+            vectorSeconds = (System.nanoTime() - start) / 1e9;
+        }
+
+        checkedPairs = count;
+        for (int sample = 0; sample < count; sample++) {
+            if (referenceHits[sample] != vectorHits[sample] || referenceHits[sample] != scalarHits[sample]) {
+                mismatches++;
+            }
+        }
+    }
+
+    private static double[] gather(double[] values, int[] indices) {
+        double[] gathered = new double[indices.length];
+        for (int slot = 0; slot < indices.length; slot++) {
+            gathered[slot] = indices[slot] < 0 ? 0 : values[indices[slot]];
+        }
+        return gathered;
+    }
+
+    // Origin and direction of the centroid ray of a pair
+    private double[] ray(int emitterIndex, int receiverIndex) {
+        double originX = emitter.getCenterX()[emitterIndex];
+        double originY = emitter.getCenterY()[emitterIndex];
+        double originZ = emitter.getCenterZ()[emitterIndex];
+        return new double[]{originX, originY, originZ,
+                receiver.getCenterX()[receiverIndex] - originX,
+                receiver.getCenterY()[receiverIndex] - originY,
+                receiver.getCenterZ()[receiverIndex] - originZ};
+    }
+
+    public String getReport() {
+        String report = "Vector engine: " + SPECIES.length() + " blockers per step (" + SPECIES.vectorBitSize() + "-bit vectors)";
+        if (checkedPairs > 0) {
+            report += " | Check: " + mismatches + " of " + checkedPairs + " pairs differ from the scalar test"
+                    + " | Occlusion speedup over the scalar loop: " + (vectorSeconds > 0 ? scalarSeconds / vectorSeconds : 0) + "x";
+        }
+        return report;
+    }
+}
@@ -0,0 +1,311 @@
+// Adaptive mesh refinement driver running on the CPU
+// Starts from the given meshes and, each iteration, splits the emitter and receiver tessellations whose split is
+// predicted to change the view factor the most. Only the pairs of split tessellations are evaluated again.
+// Stops once an iteration changes the view factor by less than the threshold.
+// Rows and split parents are dealt out to a fixed number of chunks, each summing into its own arrays, and the chunks
+// are added in order, so the sums do not depend on which thread finishes first.
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+public class AdaptiveRefinement {
+
+    private static final int CHUNKS = 64;
+
+    private Geometry emitter;
+    private Geometry receiver;
+    private PairEvaluator evaluator;
+
+    // Sum of the current pair contributions of each emitter row and each receiver column
+    private double[] rowSums;
+    private double[] columnSums;
+
+    private final double threshold;
+    private final double fraction;
+    private final int maxIterations;
+    private final int samples;
+    private final double emitterArea;
+
+    private final List<String> history = new ArrayList<>();
+    private double viewFactor;
+    private long evaluations; // Pair contributions computed, by the passes and by the split indicators
+
+    public AdaptiveRefinement(Geometry emitter, Geometry receiver, Geometry block, EngineOptions options) {
+        this.emitter = emitter;
+        this.receiver = receiver;
+        evaluator = new PairEvaluator(emitter, receiver, block, options.hostBVH);
+        threshold = options.refinementThreshold;
+        fraction = options.refinementFraction;
+        maxIterations = options.refinementMaxIterations;
+        samples = Math.max(1, options.refinementSamples);
+        // Splitting keeps the total area
+        emitterArea = Arrays.stream(emitter.getArea(), 0, emitter.getSize()).sum();
+    }
+
+    public double calculate() {
+        // Every pair of the starting meshes
+        rowSums = new double[emitter.getSize()];
+        columnSums = new double[receiver.getSize()];
+        double[][] chunkColumns = new double[CHUNKS][receiver.getSize()];
+        IntStream.range(0, CHUNKS).parallel().forEach(chunk -> {
+            double[] row = new double[receiver.getSize()];
+            for (int emitterIndex = chunk; emitterIndex < emitter.getSize(); emitterIndex += CHUNKS) {
+                for (int receiverIndex = 0; receiverIndex < row.length; receiverIndex++) {
+                    row[receiverIndex] = evaluator.contribution(emitterIndex, receiverIndex);
+                    chunkColumns[chunk][receiverIndex] += row[receiverIndex];
+                }
+                rowSums[emitterIndex] = sum(row);
+            }
+        });
+        addChunks(columnSums, chunkColumns);
+        evaluations += (long) emitter.getSize() * receiver.getSize();
+        viewFactor = sum(rowSums) / emitterArea;
+        record(0);
+
+        for (int iteration = 1; iteration <= maxIterations; iteration++) {
+            double previous = viewFactor;
+
+            boolean[] emitterSplit = select(emitterIndicators(iteration));
+            boolean[] receiverSplit = select(receiverIndicators(iteration));
+            if (count(emitterSplit) == 0 && count(receiverSplit) == 0) {
+                break;
+            }
+            splitEmitters(emitterSplit);
+            splitReceivers(receiverSplit);
+
+            viewFactor = sum(rowSums) / emitterArea;
+            record(iteration);
+            if (Math.abs(viewFactor - previous) <= threshold * Math.abs(previous)) {
+                break;
+            }
+        }
+        return viewFactor;
+    }
+
+    // Predicted change from splitting each emitter tessellation, from a sample of the receivers
+    // The children's centers sit halfway between the parent's center and its corners, plus the center itself
+    private double[] emitterIndicators(int iteration) {
+        int[] sample = sample(receiver.getSize(), iteration);
+        double[] indicators = new double[emitter.getSize()];
+        IntStream.range(0, emitter.getSize()).parallel().forEach(emitterIndex -> {
+            double[][] points = childCenters(emitter, emitterIndex);
+            double area = emitter.getArea()[emitterIndex];
+            double change = 0;
+            for (int receiverIndex : sample) {
+                double toX = receiver.getCenterX()[receiverIndex];
+                double toY = receiver.getCenterY()[receiverIndex];
+                double toZ = receiver.getCenterZ()[receiverIndex];
+                double receiverPatch = receiver.getArea()[receiverIndex];
+                double parent = evaluator.pointContribution(emitterIndex, points[0][0], points[0][1], points[0][2], area, receiverIndex, toX, toY, toZ, receiverPatch);
+                double children = parent / 4;
+                for (int child = 1; child < 4; child++) {
+                    children += evaluator.pointContribution(emitterIndex, points[child][0], points[child][1], points[child][2], area / 4, receiverIndex, toX, toY, toZ, receiverPatch);
+                }
+                change += Math.abs(children - parent);
+            }
+            indicators[emitterIndex] = change * receiver.getSize() / sample.length;
+        });
+        evaluations += 4L * emitter.getSize() * sample.length;
+        return indicators;
+    }
+
+    // Same as emitterIndicators(), splitting receivers against a sample of the emitters
+    private double[] receiverIndicators(int iteration) {
+        int[] sample = sample(emitter.getSize(), iteration);
+        double[] indicators = new double[receiver.getSize()];
+        IntStream.range(0, receiver.getSize()).parallel().forEach(receiverIndex -> {
+            double[][] points = childCenters(receiver, receiverIndex);
+            double area = receiver.getArea()[receiverIndex];
+            double change = 0;
+            for (int emitterIndex : sample) {
+                double fromX = emitter.getCenterX()[emitterIndex];
+                double fromY = emitter.getCenterY()[emitterIndex];
+                double fromZ = emitter.getCenterZ()[emitterIndex];
+                double emitterPatch = emitter.getArea()[emitterIndex];
+                double parent = evaluator.pointContribution(emitterIndex, fromX, fromY, fromZ, emitterPatch, receiverIndex, points[0][0], points[0][1], points[0][2], area);
+                double children = parent / 4;
+                for (int child = 1; child < 4; child++) {
+                    children += evaluator.pointContribution(emitterIndex, fromX, fromY, fromZ, emitterPatch, receiverIndex, points[child][0], points[child][1], points[child][2], area / 4);
+                }
+                change += Math.abs(children - parent);
+            }
+            indicators[receiverIndex] = change * emitter.getSize() / sample.length;
+        });
+        evaluations += 4L * receiver.getSize() * sample.length;
+        return indicators;
+    }
+
+    // Center of the tessellation followed by the centers of its three corner children
+    private static double[][] childCenters(Geometry geometry, int index) {
+        double centerX = geometry.getCenterX()[index];
+        double centerY = geometry.getCenterY()[index];
+        double centerZ = geometry.getCenterZ()[index];
+        double vertexAX = geometry.getVertexAX()[index];
+        double vertexAY = geometry.getVertexAY()[index];
+        double vertexAZ = geometry.getVertexAZ()[index];
+        return new double[][]{
+                {centerX, centerY, centerZ},
+                {(centerX + vertexAX) / 2, (centerY + vertexAY) / 2, (centerZ + vertexAZ) / 2},
+                {(centerX + vertexAX + geometry.getEdgeBAX()[index]) / 2, (centerY + vertexAY + geometry.getEdgeBAY()[index]) / 2, (centerZ + vertexAZ + geometry.getEdgeBAZ()[index]) / 2},
+                {(centerX + vertexAX + geometry.getEdgeCAX()[index]) / 2, (centerY + vertexAY + geometry.getEdgeCAY()[index]) / 2, (centerZ + vertexAZ + geometry.getEdgeCAZ()[index]) / 2}};
+    }
+
+    // Evenly spaced indices, shifted every iteration so later iterations see other tessellations
+    private int[] sample(int size, int iteration) {
+        int sampleSize = Math.min(size, samples);
+        int[] sample = new int[sampleSize];
+        for (int index = 0; index < sampleSize; index++) {
+            sample[index] = (int) (((long) index * size / sampleSize + iteration * 7919L) % size);
+        }
+        return sample;
+    }
+
+    // Flags the given fraction of tessellations with the largest indicators, skipping those predicted not to change
+    private boolean[] select(double[] indicators) {
+        Integer[] order = new Integer[indicators.length];
+        for (int index = 0; index < order.length; index++) {
+            order[index] = index;
+        }
+        Arrays.sort(order, (first, second) -> Double.compare(indicators[second], indicators[first]));
+
+        boolean[] split = new boolean[indicators.length];
+        int budget = (int) Math.ceil(fraction * indicators.length);
+        for (int rank = 0; rank < budget && rank < order.length; rank++) {
+            if (indicators[order[rank]] > 0) {
+                split[order[rank]] = true;
+            }
+        }
+        return split;
+    }
+
+    // Replaces the flagged emitter rows by the rows of their four children
+    private void splitEmitters(boolean[] split) {
+        PairEvaluator before = evaluator;
+        int[] parents = flagged(split);
+        emitter = Geometry.subdivide(emitter, split);
+        evaluator = evaluator.withSurfaces(emitter, receiver);
+        rowSums = Arrays.copyOf(rowSums, emitter.getSize());
+
+        double[][] chunkChanges = new double[CHUNKS][receiver.getSize()];
+        IntStream.range(0, CHUNKS).parallel().forEach(chunk -> {
+            double[] change = chunkChanges[chunk];
+            double[] row = new double[receiver.getSize()];
+            for (int parentSlot = chunk; parentSlot < parents.length; parentSlot += CHUNKS) {
+                int parent = parents[parentSlot];
+                int[] children = children(parent, split.length, parentSlot);
+                for (int receiverIndex = 0; receiverIndex < change.length; receiverIndex++) {
+                    change[receiverIndex] -= before.contribution(parent, receiverIndex);
+                }
+                for (int child : children) {
+                    for (int receiverIndex = 0; receiverIndex < row.length; receiverIndex++) {
+                        row[receiverIndex] = evaluator.contribution(child, receiverIndex);
+                        change[receiverIndex] += row[receiverIndex];
+                    }
+                    rowSums[child] = sum(row);
+                }
+            }
+        });
+        addChunks(columnSums, chunkChanges);
+        evaluations += 5L * parents.length * receiver.getSize();
+    }
+
+    // Replaces the flagged receiver columns by the columns of their four children
+    private void splitReceivers(boolean[] split) {
+        PairEvaluator before = evaluator;
+        int[] parents = flagged(split);
+        receiver = Geometry.subdivide(receiver, split);
+        evaluator = evaluator.withSurfaces(emitter, receiver);
+        columnSums = Arrays.copyOf(columnSums, receiver.getSize());
+
+        double[][] chunkChanges = new double[CHUNKS][emitter.getSize()];
+        IntStream.range(0, CHUNKS).parallel().forEach(chunk -> {
+            double[] change = chunkChanges[chunk];
+            double[] column = new double[emitter.getSize()];
+            for (int parentSlot = chunk; parentSlot < parents.length; parentSlot += CHUNKS) {
+                int parent = parents[parentSlot];
+                int[] children = children(parent, split.length, parentSlot);
+                for (int emitterIndex = 0; emitterIndex < change.length; emitterIndex++) {
+                    change[emitterIndex] -= before.contribution(emitterIndex, parent);
+                }
+                for (int child : children) {
+                    for (int emitterIndex = 0; emitterIndex < column.length; emitterIndex++) {
+                        column[emitterIndex] = evaluator.contribution(emitterIndex, child);
+                        change[emitterIndex] += column[emitterIndex];
+                    }
+                    columnSums[child] = sum(column);
+                }
+            }
+        });
+        addChunks(rowSums, chunkChanges);
+        evaluations += 5L * parents.length * emitter.getSize();
+    }
+
+    // Geometry.subdivide() keeps the first child at the parent's index and appends the other three in parent order
+    private static int[] children(int parent, int previousSize, int parentSlot) {
+        int appended = previousSize + 3 * parentSlot;
+        return new int[]{parent, appended, appended + 1, appended + 2};
+    }
+
+    private static int[] flagged(boolean[] split) {
+        return IntStream.range(0, split.length).filter(index -> split[index]).toArray();
+    }
+
+    // Adds every chunk's values to the sums, chunk by chunk in order
+    private static void addChunks(double[] sums, double[][] chunkValues) {
+        for (double[] values : chunkValues) {
+            for (int index = 0; index < sums.length; index++) {
+                sums[index] += values[index];
+            }
+        }
+    }
+
+    private void record(int iteration) {
+        history.add("Refinement " + iteration + ": " + emitter.getSize() + " x " + receiver.getSize()
+                + " tessellations | view factor " + viewFactor);
+    }
+
+    private static int count(boolean[] flags) {
+        int count = 0;
+        for (boolean flag : flags) {
+            if (flag) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    // Compensated (Neumaier) sum, in index order
+    private static double sum(double...values) {
+        double result = 0;
+        double compensation = 0;
+        for (int index=0;index<values.length; index++){
+            double next = result + values[index];
+            if (Math.abs(result) >= Math.abs(values[index])) {
+                compensation += (result - next) + values[index];
+            }
+            else {
+                compensation += (values[index] - next) + result;
+            }
+            result = next;
+        }
+        return result + compensation;
+    }
+
+    String getReport() {
+        return String.join("\n", history);
+    }
+
+    long getEvaluations() {
+        return evaluations;
+    }
+
+    Geometry getEmitter() {
+        return emitter;
+    }
+
+    Geometry getReceiver() {
+        return receiver;
+    }
+}
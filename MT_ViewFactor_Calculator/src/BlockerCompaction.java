@@ -0,0 +1,178 @@
+// Per-cluster lists of the blocking tessellations that can occlude a pair
+// Emitters are grouped into spatial clusters by median splits over their centers
+// A blocker is kept for a cluster if its bounds meet the hull of the cluster's centers and the receiver centers
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class BlockerCompaction {
+
+    private static final int X = 0;
+    private static final int Y = 1;
+    private static final int Z = 2;
+
+    private int clusterCount;
+    private final int[] emitterCluster; // Cluster of every emitter tessellation
+
+    // Aparapi only supports single-dimension arrays.
+    private final int[] clusterOffsets; // First slot of each cluster's list in blockers
+    private final int[] clusterCounts;
+    private final int[] blockers;
+
+    private final double[][] emitterCenters;
+    private final int[] emitterOrder;
+    private final List<double[]> clusterBounds = new ArrayList<>();
+
+    public BlockerCompaction(Geometry emitter, Geometry receiver, Geometry block, int clusterSize) {
+        int emitterSize = emitter.getSize();
+        emitterCenters = new double[][]{emitter.getCenterX(), emitter.getCenterY(), emitter.getCenterZ()};
+        emitterCluster = new int[Math.max(1, emitterSize)];
+        emitterOrder = new int[emitterSize];
+        for (int index = 0; index < emitterSize; index++) {
+            emitterOrder[index] = index;
+        }
+        if (emitterSize > 0) {
+            cluster(0, emitterSize, Math.max(1, clusterSize));
+        }
+
+        // Segment end points are always tessellation centers
+        double[] receiverBounds = bounds(new double[][]{receiver.getCenterX(), receiver.getCenterY(), receiver.getCenterZ()}, null, 0, receiver.getSize());
+
+        int blockSize = block.getSize();
+        double[][] blockBounds = new double[blockSize][];
+        for (int index = 0; index < blockSize; index++) {
+            blockBounds[index] = triangleBounds(block, index);
+        }
+
+        clusterOffsets = new int[Math.max(1, clusterCount)];
+        clusterCounts = new int[Math.max(1, clusterCount)];
+        int[] kept = new int[Math.max(16, blockSize)];
+        int keptCount = 0;
+        for (int cluster = 0; cluster < clusterCount; cluster++) {
+            clusterOffsets[cluster] = keptCount;
+            for (int blockIndex = 0; blockIndex < blockSize; blockIndex++) {
+                if (meetsHull(blockBounds[blockIndex], clusterBounds.get(cluster), receiverBounds)) {
+                    if (keptCount == kept.length) {
+                        kept = Arrays.copyOf(kept, 2 * kept.length);
+                    }
+                    kept[keptCount++] = blockIndex;
+                }
+            }
+            clusterCounts[cluster] = keptCount - clusterOffsets[cluster];
+        }
+        blockers = Arrays.copyOf(kept, Math.max(1, keptCount));
+    }
+
+    // Splits emitterOrder[first, first + count) at the median of the widest axis until clusters are small enough
+    private void cluster(int first, int count, int clusterSize) {
+        double[] bounds = bounds(emitterCenters, emitterOrder, first, count);
+
+        if (count <= clusterSize) {
+            for (int slot = first; slot < first + count; slot++) {
+                emitterCluster[emitterOrder[slot]] = clusterCount;
+            }
+            clusterBounds.add(bounds);
+            clusterCount++;
+            return;
+        }
+
+        int axis = X;
+        for (int candidate = Y; candidate <= Z; candidate++) {
+            if (bounds[candidate + 3] - bounds[candidate] > bounds[axis + 3] - bounds[axis]) {
+                axis = candidate;
+            }
+        }
+        double[] centers = emitterCenters[axis];
+        Integer[] slice = new Integer[count];
+        for (int index = 0; index < count; index++) {
+            slice[index] = emitterOrder[first + index];
+        }
+        Arrays.sort(slice, (a, b) -> Double.compare(centers[a], centers[b]));
+        for (int index = 0; index < count; index++) {
+            emitterOrder[first + index] = slice[index];
+        }
+
+        int half = count / 2;
+        cluster(first, half, clusterSize);
+        cluster(first + half, count - half, clusterSize);
+    }
+
+    // Min x, y, z followed by max x, y, z of the listed points, or of points [first, first + count) without a list
+    private static double[] bounds(double[][] points, int[] order, int first, int count) {
+        double[] bounds = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        for (int slot = first; slot < first + count; slot++) {
+            int point = order == null ? slot : order[slot];
+            for (int axis = X; axis <= Z; axis++) {
+                bounds[axis] = Math.min(bounds[axis], points[axis][point]);
+                bounds[axis + 3] = Math.max(bounds[axis + 3], points[axis][point]);
+            }
+        }
+        return bounds;
+    }
+
+    private static double[] triangleBounds(Geometry block, int index) {
+        double[] vertex = {block.getVertexAX()[index], block.getVertexAY()[index], block.getVertexAZ()[index]};
+        double[] edgeBA = {block.getEdgeBAX()[index], block.getEdgeBAY()[index], block.getEdgeBAZ()[index]};
+        double[] edgeCA = {block.getEdgeCAX()[index], block.getEdgeCAY()[index], block.getEdgeCAZ()[index]};
+        double[] bounds = new double[6];
+        for (int axis = X; axis <= Z; axis++) {
+            bounds[axis] = vertex[axis] + Math.min(0, Math.min(edgeBA[axis], edgeCA[axis]));
+            bounds[axis + 3] = vertex[axis] + Math.max(0, Math.max(edgeBA[axis], edgeCA[axis]));
+        }
+        return bounds;
+    }
+
+    // The hull of two boxes is swept by the box interpolated between them, (1 - t) * cluster + t * receiver.
+    // Each axis limits the t where that box overlaps the blocker's bounds to an interval; the blocker can only
+    // occlude when the three intervals and [0, 1] have a point in common.
+    static boolean meetsHull(double[] blocker, double[] cluster, double[] receiver) {
+        double[] window = {0, 1};
+        for (int axis = X; axis <= Z; axis++) {
+            // Interpolated max must reach the blocker's min, and the interpolated min must stay below the blocker's max
+            if (!limit(cluster[axis + 3], receiver[axis + 3] - cluster[axis + 3], blocker[axis], window)
+                    || !limit(-cluster[axis], cluster[axis] - receiver[axis], -blocker[axis + 3], window)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Narrows window to the t where start + t * slope >= bound
+    private static boolean limit(double start, double slope, double bound, double[] window) {
+        // Small tolerance so touching bounds are kept
+        double slack = 1e-9 * (Math.abs(start) + Math.abs(bound) + 1e-9);
+        if (slope == 0) {
+            return start >= bound - slack;
+        }
+        double crossing = (bound - slack - start) / slope;
+        if (slope > 0) {
+            window[0] = Math.max(window[0], crossing);
+        }
+        else {
+            window[1] = Math.min(window[1], crossing);
+        }
+        return window[0] <= window[1];
+    }
+
+    // Various "getter" methods
+    int getClusterCount() {
+        return clusterCount;
+    }
+
+    int[] getEmitterCluster() {
+        return emitterCluster;
+    }
+
+    int[] getClusterOffsets() {
+        return clusterOffsets;
+    }
+
+    int[] getClusterCounts() {
+        return clusterCounts;
+    }
+
+    int[] getBlockers() {
+        return blockers;
+    }
+}
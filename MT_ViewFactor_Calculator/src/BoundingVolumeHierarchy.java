@@ -0,0 +1,185 @@
+// Bounding volume hierarchy over the tessellations of a Geometry
+// Nodes are stored depth-first in flat arrays so the tree can be traversed inside an Aparapi kernel
+// A node is followed by its first child; nodeSkip points past the node's whole subtree
+
+import java.util.Arrays;
+
+public class BoundingVolumeHierarchy {
+
+    private static final int LEAF_SIZE = 4;
+
+    private static final int X = 0;
+    private static final int Y = 1;
+    private static final int Z = 2;
+
+    private int nodeCount;
+
+    // Aparapi only supports single-dimension arrays.
+    private double[] nodeMinX;
+    private double[] nodeMinY;
+    private double[] nodeMinZ;
+    private double[] nodeMaxX;
+    private double[] nodeMaxY;
+    private double[] nodeMaxZ;
+
+    private int[] nodeSkip; // Next node to visit once this subtree is done or missed
+    private int[] nodeFirst; // First slot in triangles
+    private int[] nodeTriangleCount; // Zero for inner nodes
+
+    private int[] triangles; // Tessellation indices, grouped by leaf
+
+    // Per-tessellation bounds and centroids used while building
+    private double[][] triangleMin;
+    private double[][] triangleMax;
+    private double[][] triangleCenter;
+
+    public BoundingVolumeHierarchy(Geometry geometry) {
+        int size = geometry.getSize();
+
+        triangleMin = new double[3][size];
+        triangleMax = new double[3][size];
+        triangleCenter = new double[3][size];
+        for (int index = 0; index < size; index++) {
+            bound(index, X, geometry.getVertexAX()[index], geometry.getEdgeBAX()[index], geometry.getEdgeCAX()[index]);
+            bound(index, Y, geometry.getVertexAY()[index], geometry.getEdgeBAY()[index], geometry.getEdgeCAY()[index]);
+            bound(index, Z, geometry.getVertexAZ()[index], geometry.getEdgeBAZ()[index], geometry.getEdgeCAZ()[index]);
+        }
+
+        // A binary tree with leaves of at least one triangle has fewer than 2 * size nodes
+        int capacity = Math.max(1, 2 * size);
+        nodeMinX = new double[capacity];
+        nodeMinY = new double[capacity];
+        nodeMinZ = new double[capacity];
+        nodeMaxX = new double[capacity];
+        nodeMaxY = new double[capacity];
+        nodeMaxZ = new double[capacity];
+        nodeSkip = new int[capacity];
+        nodeFirst = new int[capacity];
+        nodeTriangleCount = new int[capacity];
+
+        triangles = new int[Math.max(1, size)];
+        for (int index = 0; index < size; index++) {
+            triangles[index] = index;
+        }
+
+        if (size > 0) {
+            build(0, size);
+        }
+        triangleMin = null;
+        triangleMax = null;
+        triangleCenter = null;
+    }
+
+    private void bound(int index, int axis, double vertexA, double edgeBA, double edgeCA) {
+        double vertexB = vertexA + edgeBA;
+        double vertexC = vertexA + edgeCA;
+        triangleMin[axis][index] = Math.min(vertexA, Math.min(vertexB, vertexC));
+        triangleMax[axis][index] = Math.max(vertexA, Math.max(vertexB, vertexC));
+        triangleCenter[axis][index] = (vertexA + vertexB + vertexC) / 3;
+    }
+
+    // Builds the subtree over triangles[first, first + count) and returns its node index
+    private int build(int first, int count) {
+        int node = nodeCount++;
+
+        double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        double[] centerMin = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        double[] centerMax = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        for (int slot = first; slot < first + count; slot++) {
+            int triangle = triangles[slot];
+            for (int axis = X; axis <= Z; axis++) {
+                min[axis] = Math.min(min[axis], triangleMin[axis][triangle]);
+                max[axis] = Math.max(max[axis], triangleMax[axis][triangle]);
+                centerMin[axis] = Math.min(centerMin[axis], triangleCenter[axis][triangle]);
+                centerMax[axis] = Math.max(centerMax[axis], triangleCenter[axis][triangle]);
+            }
+        }
+        nodeMinX[node] = min[X];
+        nodeMinY[node] = min[Y];
+        nodeMinZ[node] = min[Z];
+        nodeMaxX[node] = max[X];
+        nodeMaxY[node] = max[Y];
+        nodeMaxZ[node] = max[Z];
+        nodeFirst[node] = first;
+
+        if (count <= LEAF_SIZE) {
+            nodeTriangleCount[node] = count;
+        }
+        else {
+            // Median split along the axis with the widest spread of centroids
+            int axis = X;
+            for (int candidate = Y; candidate <= Z; candidate++) {
+                if (centerMax[candidate] - centerMin[candidate] > centerMax[axis] - centerMin[axis]) {
+                    axis = candidate;
+                }
+            }
+            sortByCenter(first, count, axis);
+
+            int half = count / 2;
+            nodeTriangleCount[node] = 0;
+            build(first, half);
+            build(first + half, count - half);
+        }
+
+        nodeSkip[node] = nodeCount;
+        return node;
+    }
+
+    private void sortByCenter(int first, int count, int axis) {
+        double[] centers = triangleCenter[axis];
+        Integer[] slice = new Integer[count];
+        for (int index = 0; index < count; index++) {
+            slice[index] = triangles[first + index];
+        }
+        Arrays.sort(slice, (a, b) -> Double.compare(centers[a], centers[b]));
+        for (int index = 0; index < count; index++) {
+            triangles[first + index] = slice[index];
+        }
+    }
+
+    // Various "getter" methods
+    int getNodeCount() {
+        return nodeCount;
+    }
+
+    double[] getNodeMinX() {
+        return nodeMinX;
+    }
+
+    double[] getNodeMinY() {
+        return nodeMinY;
+    }
+
+    double[] getNodeMinZ() {
+        return nodeMinZ;
+    }
+
+    double[] getNodeMaxX() {
+        return nodeMaxX;
+    }
+
+    double[] getNodeMaxY() {
+        return nodeMaxY;
+    }
+
+    double[] getNodeMaxZ() {
+        return nodeMaxZ;
+    }
+
+    int[] getNodeSkip() {
+        return nodeSkip;
+    }
+
+    int[] getNodeFirst() {
+        return nodeFirst;
+    }
+
+    int[] getNodeTriangleCount() {
+        return nodeTriangleCount;
+    }
+
+    int[] getTriangles() {
+        return triangles;
+    }
+}
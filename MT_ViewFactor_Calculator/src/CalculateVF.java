@@ -3,39 +3,29 @@
 
 import java.io.PrintWriter;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileWriter;
+import java.io.IOException;
 import org.j3d.loaders.stl.STLFileReader;
 
+import java.util.ArrayList;
 import java.util.Calendar;
+import java.util.List;
 import java.text.SimpleDateFormat;
 import java.text.DateFormat;
-import java.util.concurrent.atomic.DoubleAdder;
 
 public class CalculateVF {
 
     // Define an output file for the view factor results
     public static String outputFile = "output.txt";
 
-    public static void run(Constants globalConstants, STLFileReader emitterReader, STLFileReader receiverReader, STLFileReader blockReader) {
-
-        // Total view factor
-        double viewFactor = 0;
-
+    public static void run(Constants globalConstants, EngineOptions options, STLFileReader emitterReader, STLFileReader receiverReader, STLFileReader blockReader) {
         try {
-            DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
-            PrintWriter testBatchWriter = new PrintWriter(new BufferedWriter(new FileWriter(outputFile, true)));
-            // Write output to file:
-            WriteFileAndConsole(testBatchWriter, "-------------------- STARTING NEW TEST BATCH --------------------");
-            Calendar cal = Calendar.getInstance();
-            WriteFileAndConsole(testBatchWriter, "Time: " + dateFormat.format(cal.getTime()));
-            WriteFileAndConsole(testBatchWriter, "-----------------------------------------------------------------");
-            testBatchWriter.close();
+            writeLines(batchHeader());
 
             // Set times to track how long the calculations took
             Timer globalTimer = new Timer();
-            Timer gpuTimer = null;
             globalTimer.start();
-            double GPUTime = 0;
 
             //Create the Geometry files based upon STL
             Geometry emitter = new Geometry(emitterReader);
@@ -43,38 +33,389 @@ public class CalculateVF {
             Geometry block = new Geometry(blockReader);
             System.out.println("STL Parsed Time: " + globalTimer.stop());
 
-            int emitterTessellationLength = emitter.getSize();
-            int receiverTessellationLength = receiver.getSize();
+            writeLines(calculate(globalConstants, options, emitter, receiver, block, globalTimer));
+        }
+        catch (Exception e) {
+        System.out.println("Error writing to file.");
+        }
+    }
 
-            gpuTimer = new Timer();
-            gpuTimer.start();
-            ThreadedAdder adder = new ThreadedAdder(new DoubleAdder());
-            MTCalculator partialMT = new MTCalculator(emitter, receiver, block);
-            viewFactor = partialMT.calculate(adder::add, adder::finishAndGet);
-            GPUTime += gpuTimer.stop();
+    // Calculates the view factors between every pair of the given surfaces, each blocking the others
+    // names label the surfaces in the output, in the order of the readers
+    public static void runEnclosure(Constants globalConstants, EngineOptions options, List<STLFileReader> surfaceReaders, List<String> names) {
+        try {
+            writeLines(batchHeader());
 
+            Timer globalTimer = new Timer();
+            globalTimer.start();
+            Geometry[] surfaces = new Geometry[surfaceReaders.size()];
+            for (int surface = 0; surface < surfaces.length; surface++) {
+                surfaces[surface] = new Geometry(surfaceReaders.get(surface));
+            }
+            System.out.println("STL Parsed Time: " + globalTimer.stop());
 
-            //Final viewFactor that gets printed out to the screen
-            PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(outputFile, true)));
-            // Write output to file:
-            WriteFileAndConsole(writer, "-------------------- Results --------------------");
-            WriteFileAndConsole(writer, "Test: " + "| N = " + globalConstants.N + " | Theta = " + globalConstants.theta + " | H_W =  " + globalConstants.H_W + " | t = " + globalConstants.t);
-            WriteFileAndConsole(writer, "\nEmitter Tessellations: " + emitterTessellationLength + " Receiver Tessellations: " + receiverTessellationLength);
-            WriteFileAndConsole(writer, "\nCalculated view factor: " + viewFactor + "\n");
-            WriteFileAndConsole(writer, "GPU time: " + GPUTime);
-            WriteFileAndConsole(writer, "Total time: " + globalTimer.stop() + "\n");
-            writer.close();
+            // One-sided culling trusts the normals, so it is only used if every surface is consistently oriented
+            String orientationReport = null;
+            if (options.oneSided) {
+                for (int surface = 0; surface < surfaces.length && orientationReport == null; surface++) {
+                    String problem = surfaces[surface].checkOrientation();
+                    if (problem != null) {
+                        orientationReport = "One-sided culling disabled: " + names.get(surface) + " " + problem;
+                        options = options.copy();
+                        options.oneSided = false;
+                    }
+                }
+                if (orientationReport == null) {
+                    orientationReport = "One-sided culling enabled";
+                }
+            }
 
-            PrintWriter complete = new PrintWriter(new BufferedWriter(new FileWriter(outputFile, true)));
-            WriteFileAndConsole(complete, "Task completed.");
-            complete.close();
+            EnclosureCalculator enclosure = new EnclosureCalculator(surfaces, options);
+            double[][] viewFactors = enclosure.calculate();
 
+            List<String> lines = new ArrayList<>();
+            lines.add("-------------------- Results --------------------");
+            lines.add("Test: " + "| N = " + globalConstants.N + " | Theta = " + globalConstants.theta + " | H_W =  " + globalConstants.H_W + " | t = " + globalConstants.t);
+            lines.add("\nEnclosure view factors, from row to column surface:");
+            for (int from = 0; from < surfaces.length; from++) {
+                StringBuilder row = new StringBuilder(names.get(from) + " (" + surfaces[from].getSize() + " tessellations):");
+                for (int to = 0; to < surfaces.length; to++) {
+                    row.append(" ").append(viewFactors[from][to]);
+                }
+                lines.add(row.toString());
+            }
+            lines.add("");
+            lines.add(enclosure.getReport());
+            if (orientationReport != null) {
+                lines.add(orientationReport);
+            }
+            lines.add("Total time: " + globalTimer.stop() + "\n");
+            lines.add("Task completed.");
+            writeLines(lines);
         }
         catch (Exception e) {
         System.out.println("Error writing to file.");
         }
     }
 
+    // Lines that open every test batch in the output file
+    static List<String> batchHeader() {
+        DateFormat dateFormat = new SimpleDateFormat("yyyy/MM/dd HH:mm:ss");
+        Calendar cal = Calendar.getInstance();
+        List<String> lines = new ArrayList<>();
+        lines.add("-------------------- STARTING NEW TEST BATCH --------------------");
+        lines.add("Time: " + dateFormat.format(cal.getTime()));
+        lines.add("-----------------------------------------------------------------");
+        return lines;
+    }
+
+    // Calculates the view factor of already parsed geometry and returns the result lines, without writing them
+    // globalTimer was started when the case began and gives the total time
+    static List<String> calculate(Constants globalConstants, EngineOptions options, Geometry emitter, Geometry receiver, Geometry block, Timer globalTimer) {
+
+        // Total view factor
+        double viewFactor = 0;
+
+        Timer gpuTimer = null;
+        double GPUTime = 0;
+
+        // One-sided culling trusts the normals, so it is only used on consistently oriented meshes
+        String orientationReport = null;
+        if (options.oneSided && !options.mixedPrecision) {
+            String emitterProblem = emitter.checkOrientation();
+            String receiverProblem = receiver.checkOrientation();
+            if (emitterProblem != null || receiverProblem != null) {
+                orientationReport = "One-sided culling disabled: "
+                        + (emitterProblem != null ? "emitter " + emitterProblem : "receiver " + receiverProblem);
+                options = options.copy();
+                options.oneSided = false;
+            }
+            else {
+                orientationReport = "One-sided culling enabled";
+            }
+        }
+
+        int emitterTessellationLength = emitter.getSize();
+        int receiverTessellationLength = receiver.getSize();
+
+        gpuTimer = new Timer();
+        gpuTimer.start();
+        ResultPipeline adder = new ResultPipeline(options.launchBuffers - 1);
+        int launches;
+        String precisionReport = null;
+        String blockerOrderReport = null;
+        String voxelReport = null;
+        String tiledReport = null;
+        String compactionReport = null;
+        String contourReport = null;
+        String engineReport = null;
+        // Work the throughput is given in. The pair engines evaluate every emitter x receiver pair once
+        long work = (long) emitterTessellationLength * receiverTessellationLength;
+        String workUnit = "pairs";
+
+        // Per-facet matrix of the double precision MT kernel, single or multi-device
+        ViewFactorMatrix matrix = null;
+        String matrixReport = null;
+        if (options.matrixFile != null && options.engine == EngineOptions.Engine.MT && !options.mixedPrecision) {
+            try {
+                matrix = ViewFactorMatrix.create(new File(options.matrixFile), emitter, receiver.getSize());
+            }
+            catch (IOException e) {
+                matrixReport = "View factor matrix not written: " + e.getMessage();
+            }
+        }
+        else if (options.matrixFile != null) {
+            matrixReport = "View factor matrix not written: only the double precision MT engine writes one ("
+                    + options.engine + (options.mixedPrecision ? ", mixedPrecision" : "") + ")";
+        }
+        if (options.engine == EngineOptions.Engine.HIERARCHICAL) {
+            HierarchicalCalculator hierarchical = new HierarchicalCalculator(emitter, receiver, block, options);
+            viewFactor = hierarchical.calculate();
+            launches = 0;
+            GPUTime += gpuTimer.stop();
+            engineReport = hierarchical.getReport();
+            work = hierarchical.getEvaluations();
+            workUnit = "pair evaluations";
+        }
+        else if (options.engine == EngineOptions.Engine.ADAPTIVE) {
+            AdaptiveRefinement refinement = new AdaptiveRefinement(emitter, receiver, block, options);
+            viewFactor = refinement.calculate();
+            launches = 0;
+            GPUTime += gpuTimer.stop();
+            engineReport = refinement.getReport();
+            emitterTessellationLength = refinement.getEmitter().getSize();
+            receiverTessellationLength = refinement.getReceiver().getSize();
+            work = refinement.getEvaluations();
+            workUnit = "pair evaluations";
+        }
+        else if (options.engine == EngineOptions.Engine.MONTE_CARLO) {
+            MonteCarloCalculator monteCarlo = new MonteCarloCalculator(emitter, receiver, block, options);
+            viewFactor = monteCarlo.calculate();
+            launches = 0;
+            GPUTime += gpuTimer.stop();
+            engineReport = monteCarlo.getReport();
+            work = monteCarlo.getSamples();
+            workUnit = "rays";
+        }
+        else if (options.engine == EngineOptions.Engine.HEMICUBE) {
+            HemicubeCalculator hemicube = new HemicubeCalculator(emitter, receiver, block, options);
+            viewFactor = hemicube.calculate();
+            launches = 0;
+            GPUTime += gpuTimer.stop();
+            engineReport = hemicube.getReport();
+            work = hemicube.getHemicubes();
+            workUnit = "hemicubes";
+        }
+        else if (options.engine == EngineOptions.Engine.FORK_JOIN) {
+            ForkJoinCalculator forkJoin = new ForkJoinCalculator(emitter, receiver, block, options);
+            viewFactor = forkJoin.calculate();
+            launches = 0;
+            GPUTime += gpuTimer.stop();
+            engineReport = forkJoin.getReport();
+        }
+        else if (options.engine == EngineOptions.Engine.VECTOR) {
+            // Same pairs and math as FORK_JOIN, which stands in when the vector engine is not built or not enabled
+            try {
+                ViewFactorEngine vector = vectorEngine(emitter, receiver, block, options);
+                viewFactor = vector.calculate();
+                engineReport = vector.getReport();
+            }
+            catch (ReflectiveOperationException | LinkageError e) {
+                ForkJoinCalculator forkJoin = new ForkJoinCalculator(emitter, receiver, block, options);
+                viewFactor = forkJoin.calculate();
+                engineReport = "VECTOR engine not available (" + e + "), FORK_JOIN used instead | " + forkJoin.getReport();
+            }
+            launches = 0;
+            GPUTime += gpuTimer.stop();
+        }
+        else if (options.mixedPrecision) {
+            MixedPrecisionMTCalculator mixedMT = new MixedPrecisionMTCalculator(emitter, receiver, block, options);
+            viewFactor = mixedMT.calculate(adder::add, adder::finishAndGet);
+            launches = mixedMT.getLaunches();
+            GPUTime += gpuTimer.stop();
+            precisionReport = precisionDeviation(options, emitter, receiver, block);
+            engineReport = MixedPrecisionMTCalculator.getOverrideReport(options);
+        }
+        else if (options.devices != null && options.devices.size() > 1) {
+            MultiDeviceCalculator multiMT = new MultiDeviceCalculator(emitter, receiver, block, options, options.devices);
+            multiMT.setMatrix(matrix);
+            viewFactor = multiMT.calculate(adder::add, adder::finishAndGet);
+            launches = multiMT.getLaunches();
+            GPUTime += gpuTimer.stop();
+            engineReport = multiMT.getReport();
+        }
+        else {
+            MTCalculator partialMT = new MTCalculator(emitter, receiver, block, options,
+                    options.devices != null && options.devices.size() == 1 ? options.devices.get(0) : null);
+            partialMT.setMatrix(matrix);
+            viewFactor = partialMT.calculate(adder::add, adder::finishAndGet);
+            launches = partialMT.getLaunches();
+            blockerOrderReport = partialMT.getBlockerOrderReport();
+            voxelReport = partialMT.getVoxelReport();
+            tiledReport = partialMT.getTiledReport();
+            compactionReport = partialMT.getCompactionReport();
+            GPUTime += gpuTimer.stop();
+        }
+
+        // Near pairs of the double precision MT kernel, single or multi-device, or of its CPU ports
+        if (options.contourIntegral && !options.mixedPrecision && (options.engine == EngineOptions.Engine.MT
+                || options.engine == EngineOptions.Engine.FORK_JOIN || options.engine == EngineOptions.Engine.VECTOR)) {
+            NearFieldCorrection nearField = new NearFieldCorrection(emitter, receiver, block, options);
+            viewFactor += nearField.calculate() / totalArea(emitter);
+            contourReport = nearField.getReport();
+        }
+
+        // The pair terms are the same both ways, so F21 = A1 F12 / A2 needs no second pass. Refinement does not
+        // change the total areas
+        String reciprocityReport = null;
+        if (options.reciprocity) {
+            double exchange = viewFactor * totalArea(emitter); // A1 F12 = A2 F21
+            double reverseViewFactor = exchange / totalArea(receiver);
+            reciprocityReport = "Reciprocal view factor (receiver to emitter): " + reverseViewFactor
+                    + " | A1 F12 = A2 F21 = " + exchange;
+            if (options.reciprocityCheckPairs > 0) {
+                reciprocityReport += " | " + reverseDirectionCheck(options, emitter, receiver, block);
+            }
+        }
+
+        if (matrix != null) {
+            try {
+                matrix.close();
+                matrixReport = matrix.getReport(new File(options.matrixFile));
+            }
+            catch (IOException e) {
+                matrixReport = "View factor matrix not written: " + e.getMessage();
+            }
+        }
+
+
+        //Final viewFactor that gets printed out to the screen
+        List<String> lines = new ArrayList<>();
+        lines.add("-------------------- Results --------------------");
+        lines.add("Test: " + "| N = " + globalConstants.N + " | Theta = " + globalConstants.theta + " | H_W =  " + globalConstants.H_W + " | t = " + globalConstants.t);
+        lines.add("\nEmitter Tessellations: " + emitterTessellationLength + " Receiver Tessellations: " + receiverTessellationLength);
+        lines.add("\nCalculated view factor: " + viewFactor + "\n");
+        if (engineReport != null) {
+            lines.add(engineReport);
+        }
+        if (orientationReport != null) {
+            lines.add(orientationReport);
+        }
+        if (precisionReport != null) {
+            lines.add(precisionReport);
+        }
+        if (blockerOrderReport != null) {
+            lines.add(blockerOrderReport);
+        }
+        if (compactionReport != null) {
+            lines.add(compactionReport);
+        }
+        if (tiledReport != null) {
+            lines.add(tiledReport);
+        }
+        if (voxelReport != null) {
+            lines.add(voxelReport);
+        }
+        if (contourReport != null) {
+            lines.add(contourReport);
+        }
+        if (matrixReport != null) {
+            lines.add(matrixReport);
+        }
+        if (reciprocityReport != null) {
+            lines.add(reciprocityReport);
+        }
+        lines.add("Kernel launches: " + launches);
+        if (launches > 0) {
+            lines.add(adder.getReport());
+        }
+        lines.add("GPU time: " + GPUTime);
+        lines.add("Throughput: " + (GPUTime > 0 ? work / GPUTime : 0) + " " + workUnit + "/s");
+        lines.add("Total time: " + globalTimer.stop() + "\n");
+        lines.add("Task completed.");
+        return lines;
+    }
+
+    // Appends the lines to the output file and echoes them to the console
+    static void writeLines(List<String> lines) throws IOException {
+        PrintWriter writer = new PrintWriter(new BufferedWriter(new FileWriter(outputFile, true)));
+        for (String line : lines) {
+            WriteFileAndConsole(writer, line);
+        }
+        writer.close();
+    }
+
+    // The VECTOR engine lives in the src-vector source root, because the incubating Vector API needs
+    // --add-modules jdk.incubator.vector to compile and run. Loading it by name keeps that flag off the rest of the build
+    private static ViewFactorEngine vectorEngine(Geometry emitter, Geometry receiver, Geometry block, EngineOptions options)
+            throws ReflectiveOperationException {
+        Class<?> engine = Class.forName("VectorCalculator");
+        return (ViewFactorEngine) engine.getConstructor(Geometry.class, Geometry.class, Geometry.class, EngineOptions.class)
+                .newInstance(emitter, receiver, block, options);
+    }
+
+    private static double totalArea(Geometry geometry) {
+        double area = 0;
+        for (int index = 0; index < geometry.getSize(); index++) {
+            area += geometry.getArea()[index];
+        }
+        return area;
+    }
+
+    // F21 above is only the shared pair terms divided by A2. This evaluates a sample of pairs again with the rays cast
+    // from the receiver, so blockers that hide a pair from one side only show up as an asymmetry
+    private static String reverseDirectionCheck(EngineOptions options, Geometry emitter, Geometry receiver, Geometry block) {
+        long pairCount = (long) emitter.getSize() * receiver.getSize();
+        int sampleSize = (int) Math.min(pairCount, options.reciprocityCheckPairs);
+        PairEvaluator forward = new PairEvaluator(emitter, receiver, block, options.hostBVH);
+        PairEvaluator reverse = forward.withSurfaces(receiver, emitter);
+
+        // Spread the sample evenly over the emitter x receiver pairs
+        double forwardSum = 0;
+        double reverseSum = 0;
+        int oneWay = 0;
+        for (int index = 0; index < sampleSize; index++) {
+            long pair = index * pairCount / sampleSize;
+            int emitterIndex = (int) (pair / receiver.getSize());
+            int receiverIndex = (int) (pair % receiver.getSize());
+            double forwardTerm = forward.contribution(emitterIndex, receiverIndex);
+            double reverseTerm = reverse.contribution(receiverIndex, emitterIndex);
+            forwardSum += forwardTerm;
+            reverseSum += reverseTerm;
+            if ((forwardTerm == 0) != (reverseTerm == 0)) {
+                oneWay++;
+            }
+        }
+        double asymmetry = Math.max(forwardSum, reverseSum) > 0 ? Math.abs(forwardSum - reverseSum) / Math.max(forwardSum, reverseSum) : 0;
+        return "Reverse-direction check on " + sampleSize + " pairs: relative asymmetry " + asymmetry
+                + ", " + oneWay + " pairs blocked one way only";
+    }
+
+    // Runs the float and double kernels on the same sample of emitter facets and compares the view factors
+    private static String precisionDeviation(EngineOptions options, Geometry emitter, Geometry receiver, Geometry block) {
+        int sampleSize = emitter.getSize();
+        if (options.precisionCheckEmitters > 0) {
+            sampleSize = Math.min(sampleSize, options.precisionCheckEmitters);
+        }
+
+        // Spread the sample evenly over the emitter mesh
+        int[] sample = new int[sampleSize];
+        for (int index = 0; index < sampleSize; index++) {
+            sample[index] = (int) ((long) index * emitter.getSize() / sampleSize);
+        }
+        Geometry emitterSample = new Geometry(emitter, sample);
+
+        ResultPipeline floatAdder = new ResultPipeline();
+        double floatViewFactor = new MixedPrecisionMTCalculator(emitterSample, receiver, block, options).calculate(floatAdder::add, floatAdder::finishAndGet);
+        ResultPipeline doubleAdder = new ResultPipeline();
+        double doubleViewFactor = new MTCalculator(emitterSample, receiver, block, MixedPrecisionMTCalculator.supportedOptions(options),
+                options.devices != null && !options.devices.isEmpty() ? options.devices.get(0) : null).calculate(doubleAdder::add, doubleAdder::finishAndGet);
+
+        return "Mixed precision deviation over " + sampleSize + " emitter tessellations: "
+                + Math.abs(floatViewFactor - doubleViewFactor) / Math.abs(doubleViewFactor)
+                + " (float " + floatViewFactor + ", double " + doubleViewFactor + ")";
+    }
+
     public static void WriteFileAndConsole(PrintWriter writer, String string) {
         writer.println(string);
         System.out.println(string);
@@ -0,0 +1,269 @@
+// Binary cluster tree over the tessellations of a Geometry, split at the median center of the widest axis
+// Every node keeps the totals needed to treat its tessellations as one patch:
+// area, area-weighted center and normal, bounding radius and the bounds of the member centers,
+// and the area-weighted moments of the member centers and normals about the node's center and normal
+// Nodes are stored depth-first: a node's first child follows it, nodeRight holds the second
+
+import java.util.Arrays;
+
+public class ClusterTree {
+
+    private static final int X = 0;
+    private static final int Y = 1;
+    private static final int Z = 2;
+
+    private int nodeCount;
+    private final int[] nodeFirst; // First slot in tessellations
+    private final int[] nodeSize; // Tessellations below the node
+    private final int[] nodeRight; // Second child, or -1 for leaves
+
+    private final double[] nodeArea;
+    private final double[] nodeCenterX;
+    private final double[] nodeCenterY;
+    private final double[] nodeCenterZ;
+    private final double[] nodeNormalX; // Area-weighted mean of the unit normals. Shorter than 1 when they disagree
+    private final double[] nodeNormalY;
+    private final double[] nodeNormalZ;
+    private final double[] nodeRadius; // Farthest member vertex from the node center
+    private final double[][] nodeBounds; // Min x, y, z, max x, y, z of the member centers
+    private final double[][] nodeMoment; // Mean of d d^T over the members, d = center offset: xx, yy, zz, xy, xz, yz
+    private final double[][] nodeCovariance; // Mean of e d^T, e = unit normal offset from the mean normal, row by row
+    private final double[] nodeNormalDeviation; // Largest |e| of any member
+
+    private final int[] tessellations;
+
+    private final double[][] centers;
+    private final double[][] unitNormals;
+    private final double[] areas;
+    private final double[][] vertices; // x, y, z of the three corners of every tessellation
+
+    public ClusterTree(Geometry geometry) {
+        int size = geometry.getSize();
+        centers = new double[][]{geometry.getCenterX(), geometry.getCenterY(), geometry.getCenterZ()};
+        areas = geometry.getArea();
+        vertices = new double[9][size];
+        for (int index = 0; index < size; index++) {
+            vertices[0][index] = geometry.getVertexAX()[index];
+            vertices[1][index] = geometry.getVertexAY()[index];
+            vertices[2][index] = geometry.getVertexAZ()[index];
+            vertices[3][index] = geometry.getVertexAX()[index] + geometry.getEdgeBAX()[index];
+            vertices[4][index] = geometry.getVertexAY()[index] + geometry.getEdgeBAY()[index];
+            vertices[5][index] = geometry.getVertexAZ()[index] + geometry.getEdgeBAZ()[index];
+            vertices[6][index] = geometry.getVertexAX()[index] + geometry.getEdgeCAX()[index];
+            vertices[7][index] = geometry.getVertexAY()[index] + geometry.getEdgeCAY()[index];
+            vertices[8][index] = geometry.getVertexAZ()[index] + geometry.getEdgeCAZ()[index];
+        }
+        unitNormals = new double[3][size];
+        for (int index = 0; index < size; index++) {
+            double length = PairEvaluator.vectorMagnitude(geometry.getNormalX()[index], geometry.getNormalY()[index], geometry.getNormalZ()[index]);
+            if (length > 0) {
+                unitNormals[X][index] = geometry.getNormalX()[index] / length;
+                unitNormals[Y][index] = geometry.getNormalY()[index] / length;
+                unitNormals[Z][index] = geometry.getNormalZ()[index] / length;
+            }
+        }
+
+        int capacity = Math.max(1, 2 * size);
+        nodeFirst = new int[capacity];
+        nodeSize = new int[capacity];
+        nodeRight = new int[capacity];
+        nodeArea = new double[capacity];
+        nodeCenterX = new double[capacity];
+        nodeCenterY = new double[capacity];
+        nodeCenterZ = new double[capacity];
+        nodeNormalX = new double[capacity];
+        nodeNormalY = new double[capacity];
+        nodeNormalZ = new double[capacity];
+        nodeRadius = new double[capacity];
+        nodeBounds = new double[capacity][];
+        nodeMoment = new double[capacity][];
+        nodeCovariance = new double[capacity][];
+        nodeNormalDeviation = new double[capacity];
+
+        tessellations = new int[size];
+        for (int index = 0; index < size; index++) {
+            tessellations[index] = index;
+        }
+        if (size > 0) {
+            build(0, size);
+        }
+    }
+
+    // Builds the subtree over tessellations[first, first + count) and returns its node index
+    private int build(int first, int count) {
+        int node = nodeCount++;
+        nodeFirst[node] = first;
+        nodeSize[node] = count;
+
+        double area = 0;
+        double[] center = new double[3];
+        double[] normal = new double[3];
+        double[] bounds = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        for (int slot = first; slot < first + count; slot++) {
+            int tessellation = tessellations[slot];
+            area += areas[tessellation];
+            for (int axis = X; axis <= Z; axis++) {
+                center[axis] += areas[tessellation] * centers[axis][tessellation];
+                normal[axis] += areas[tessellation] * unitNormals[axis][tessellation];
+                bounds[axis] = Math.min(bounds[axis], centers[axis][tessellation]);
+                bounds[axis + 3] = Math.max(bounds[axis + 3], centers[axis][tessellation]);
+            }
+        }
+        for (int axis = X; axis <= Z; axis++) {
+            // Zero-area clusters fall back to the middle of their bounds
+            center[axis] = area > 0 ? center[axis] / area : (bounds[axis] + bounds[axis + 3]) / 2;
+            normal[axis] = area > 0 ? normal[axis] / area : 0;
+        }
+
+        // The radius covers the whole member tessellations, not just their centers
+        double radius = 0;
+        double[] moment = new double[6];
+        double[] covariance = new double[9];
+        double normalDeviation = 0;
+        for (int slot = first; slot < first + count; slot++) {
+            int tessellation = tessellations[slot];
+            for (int corner = 0; corner < 9; corner += 3) {
+                radius = Math.max(radius, PairEvaluator.vectorMagnitude(vertices[corner][tessellation] - center[X],
+                        vertices[corner + 1][tessellation] - center[Y], vertices[corner + 2][tessellation] - center[Z]));
+            }
+
+            double[] offset = new double[3];
+            double[] deviation = new double[3];
+            for (int axis = X; axis <= Z; axis++) {
+                offset[axis] = centers[axis][tessellation] - center[axis];
+                deviation[axis] = unitNormals[axis][tessellation] - normal[axis];
+            }
+            double weight = area > 0 ? areas[tessellation] / area : 0;
+            moment[0] += weight * offset[X] * offset[X];
+            moment[1] += weight * offset[Y] * offset[Y];
+            moment[2] += weight * offset[Z] * offset[Z];
+            moment[3] += weight * offset[X] * offset[Y];
+            moment[4] += weight * offset[X] * offset[Z];
+            moment[5] += weight * offset[Y] * offset[Z];
+            for (int row = X; row <= Z; row++) {
+                for (int column = X; column <= Z; column++) {
+                    covariance[row * 3 + column] += weight * deviation[row] * offset[column];
+                }
+            }
+            normalDeviation = Math.max(normalDeviation, PairEvaluator.vectorMagnitude(deviation[X], deviation[Y], deviation[Z]));
+        }
+
+        nodeArea[node] = area;
+        nodeCenterX[node] = center[X];
+        nodeCenterY[node] = center[Y];
+        nodeCenterZ[node] = center[Z];
+        nodeNormalX[node] = normal[X];
+        nodeNormalY[node] = normal[Y];
+        nodeNormalZ[node] = normal[Z];
+        nodeRadius[node] = radius;
+        nodeBounds[node] = bounds;
+        nodeMoment[node] = moment;
+        nodeCovariance[node] = covariance;
+        nodeNormalDeviation[node] = normalDeviation;
+
+        if (count == 1) {
+            nodeRight[node] = -1;
+        }
+        else {
+            int axis = X;
+            for (int candidate = Y; candidate <= Z; candidate++) {
+                if (bounds[candidate + 3] - bounds[candidate] > bounds[axis + 3] - bounds[axis]) {
+                    axis = candidate;
+                }
+            }
+            double[] axisCenters = centers[axis];
+            Integer[] slice = new Integer[count];
+            for (int index = 0; index < count; index++) {
+                slice[index] = tessellations[first + index];
+            }
+            Arrays.sort(slice, (a, b) -> Double.compare(axisCenters[a], axisCenters[b]));
+            for (int index = 0; index < count; index++) {
+                tessellations[first + index] = slice[index];
+            }
+
+            int half = count / 2;
+            build(first, half);
+            nodeRight[node] = build(first + half, count - half);
+        }
+        return node;
+    }
+
+    // Various "getter" methods
+    int getNodeCount() {
+        return nodeCount;
+    }
+
+    boolean isLeaf(int node) {
+        return nodeRight[node] < 0;
+    }
+
+    int getLeft(int node) {
+        return node + 1;
+    }
+
+    int getRight(int node) {
+        return nodeRight[node];
+    }
+
+    // Tessellation of a leaf node
+    int getTessellation(int node) {
+        return tessellations[nodeFirst[node]];
+    }
+
+    // The member-th tessellation below a node
+    int getMember(int node, int member) {
+        return tessellations[nodeFirst[node] + member];
+    }
+
+    int getSize(int node) {
+        return nodeSize[node];
+    }
+
+    double getArea(int node) {
+        return nodeArea[node];
+    }
+
+    double getCenterX(int node) {
+        return nodeCenterX[node];
+    }
+
+    double getCenterY(int node) {
+        return nodeCenterY[node];
+    }
+
+    double getCenterZ(int node) {
+        return nodeCenterZ[node];
+    }
+
+    double getNormalX(int node) {
+        return nodeNormalX[node];
+    }
+
+    double getNormalY(int node) {
+        return nodeNormalY[node];
+    }
+
+    double getNormalZ(int node) {
+        return nodeNormalZ[node];
+    }
+
+    double getRadius(int node) {
+        return nodeRadius[node];
+    }
+
+    double[] getBounds(int node) {
+        return nodeBounds[node];
+    }
+
+    double[] getMoment(int node) {
+        return nodeMoment[node];
+    }
+
+    double[] getCovariance(int node) {
+        return nodeCovariance[node];
+    }
+
+    double getNormalDeviation(int node) {
+        return nodeNormalDeviation[node];
+    }
+}
@@ -0,0 +1,109 @@
+// Contour-integral (Stokes) form of the view factor between two triangles
+// A1 * F12 = 1 / (2 pi) * sum over edge pairs of (e_i . e_j) * integral of ln|p - q| along both edges
+// The inner integral along the receiver edge is done analytically, the outer one by Gauss-Legendre quadrature
+
+public class ContourIntegral {
+
+    private static final double PI = 3.141592653589793238462643383279502884197169399375105820974944592307816406286d;
+
+    private final double[] nodes; // Gauss-Legendre nodes on [0, 1]
+    private final double[] weights;
+
+    public ContourIntegral(int order) {
+        order = Math.max(1, order);
+        nodes = new double[order];
+        weights = new double[order];
+
+        // Roots of the Legendre polynomial by Newton's method from the usual cosine guesses
+        for (int root = 0; root < order; root++) {
+            double x = Math.cos(PI * (root + 0.75) / (order + 0.5));
+            double derivative = 1;
+            for (int iteration = 0; iteration < 100; iteration++) {
+                double previous = 1;
+                double current = x;
+                for (int degree = 2; degree <= order; degree++) {
+                    double next = ((2 * degree - 1) * x * current - (degree - 1) * previous) / degree;
+                    previous = current;
+                    current = next;
+                }
+                derivative = order * (x * current - previous) / (x * x - 1);
+                double step = current / derivative;
+                x -= step;
+                if (Math.abs(step) < 1e-15) {
+                    break;
+                }
+            }
+            nodes[root] = (1 - x) / 2;
+            weights[root] = 1 / ((1 - x * x) * derivative * derivative);
+        }
+    }
+
+    // A1 * F12 between an emitter and a receiver tessellation, signed by the windings
+    // Callers take the magnitude, which matches the kernel's absolute cosines when neither plane cuts the other triangle
+    double areaViewFactor(Geometry emitter, int emitterIndex, Geometry receiver, int receiverIndex) {
+        double[][] emitterCorners = corners(emitter, emitterIndex);
+        double[][] receiverCorners = corners(receiver, receiverIndex);
+
+        double sum = 0;
+        for (int emitterEdge = 0; emitterEdge < 3; emitterEdge++) {
+            double[] start = emitterCorners[emitterEdge];
+            double[] end = emitterCorners[(emitterEdge + 1) % 3];
+            double[] edge = {end[0] - start[0], end[1] - start[1], end[2] - start[2]};
+
+            for (int receiverEdge = 0; receiverEdge < 3; receiverEdge++) {
+                double[] otherStart = receiverCorners[receiverEdge];
+                double[] otherEnd = receiverCorners[(receiverEdge + 1) % 3];
+                double[] otherEdge = {otherEnd[0] - otherStart[0], otherEnd[1] - otherStart[1], otherEnd[2] - otherStart[2]};
+
+                double dot = edge[0] * otherEdge[0] + edge[1] * otherEdge[1] + edge[2] * otherEdge[2];
+                if (dot == 0) {
+                    continue;
+                }
+
+                double integral = 0;
+                for (int node = 0; node < nodes.length; node++) {
+                    double[] point = {
+                            start[0] + nodes[node] * edge[0] - otherStart[0],
+                            start[1] + nodes[node] * edge[1] - otherStart[1],
+                            start[2] + nodes[node] * edge[2] - otherStart[2]};
+                    integral += weights[node] * logAlongEdge(point, otherEdge);
+                }
+                sum += dot * integral;
+            }
+        }
+        return sum / (2 * PI);
+    }
+
+    // Integral over t in [0, 1] of ln|a - t * e|, done in closed form
+    // |a - t e|^2 = alpha ((t - center)^2 + h^2), with alpha = |e|^2 and center the foot of the perpendicular
+    private static double logAlongEdge(double[] a, double[] e) {
+        double alpha = e[0] * e[0] + e[1] * e[1] + e[2] * e[2];
+        double center = (a[0] * e[0] + a[1] * e[1] + a[2] * e[2]) / alpha;
+        double heightSquared = Math.max(0, (a[0] * a[0] + a[1] * a[1] + a[2] * a[2]) / alpha - center * center);
+        double height = Math.sqrt(heightSquared);
+        return 0.5 * (Math.log(alpha) + antiderivative(1 - center, height, heightSquared) - antiderivative(-center, height, heightSquared));
+    }
+
+    // Antiderivative of ln(x^2 + h^2): x ln(x^2 + h^2) - 2x + 2h atan(x / h), with x ln x^2 -> 0 at the origin
+    private static double antiderivative(double x, double height, double heightSquared) {
+        double squared = x * x + heightSquared;
+        double value = -2 * x;
+        if (squared > 0) {
+            value += x * Math.log(squared);
+        }
+        if (height > 0) {
+            value += 2 * height * Math.atan(x / height);
+        }
+        return value;
+    }
+
+    private static double[][] corners(Geometry geometry, int index) {
+        double ax = geometry.getVertexAX()[index];
+        double ay = geometry.getVertexAY()[index];
+        double az = geometry.getVertexAZ()[index];
+        return new double[][]{
+                {ax, ay, az},
+                {ax + geometry.getEdgeBAX()[index], ay + geometry.getEdgeBAY()[index], az + geometry.getEdgeBAZ()[index]},
+                {ax + geometry.getEdgeCAX()[index], ay + geometry.getEdgeCAY()[index], az + geometry.getEdgeCAZ()[index]}};
+    }
+}
@@ -0,0 +1,234 @@
+// View factors between every pair of K surfaces of an enclosure, on CPU threads
+// The surfaces are joined into one geometry with a surface id per facet, and every facet blocks every pair but its
+// own. Each surface keeps its own blocker BVH, shared by all pairs, so a flat surface, which cannot block a ray
+// leaving or reaching it, is left out for its own pairs. Each facet pair is evaluated once: its term
+// A_i F_ij = A_j F_ji goes to both surfaces' entries, so the K x K matrix is reciprocal by construction.
+// Open surfaces can be seen from either side, so the blockers are two-sided here, unlike the emitter/receiver engines.
+// A closed, consistently wound surface only emits from its outside: two of its facets see each other only if the ray
+// leaves the first and reaches the second from outside, so a convex solid does not see itself. Pairs of different
+// surfaces that would cross a closed surface's inside hit it and are blocked. With oneSided, every pair is also culled
+// by the stored normals, as in the kernel
+
+import java.util.stream.IntStream;
+
+public class EnclosureCalculator {
+
+    private static final double GRAZING = 1e-12; // Pairs whose cosine product is below this have no term
+
+    private final Geometry[] surfaces;
+    private final Geometry enclosure;
+    private final int[] surfaceIds; // Surface of every facet of the joined geometry
+    private final int[] firstFacets; // Joined index of every surface's first facet
+    private final double[] surfaceAreas;
+    private final boolean[] flat;
+    private final boolean[] closed;
+    private final double[] outward; // 1 if a closed surface's winding normals point out of it, -1 if into it
+    private final PairEvaluator evaluator; // Cosine terms over the joined geometry
+    private final PairEvaluator[] blockers; // One per surface, over that surface's facets
+    private final boolean oneSided;
+
+    private double[][] viewFactors;
+    private long pairs;
+    private double seconds;
+
+    public EnclosureCalculator(Geometry[] surfaces, EngineOptions options) {
+        this.surfaces = surfaces;
+        enclosure = new Geometry(surfaces);
+        surfaceIds = new int[enclosure.getSize()];
+        firstFacets = new int[surfaces.length];
+        surfaceAreas = new double[surfaces.length];
+        flat = new boolean[surfaces.length];
+        closed = new boolean[surfaces.length];
+        outward = new double[surfaces.length];
+        blockers = new PairEvaluator[surfaces.length];
+        int facet = 0;
+        for (int surface = 0; surface < surfaces.length; surface++) {
+            firstFacets[surface] = facet;
+            for (int index = 0; index < surfaces[surface].getSize(); index++) {
+                surfaceIds[facet++] = surface;
+                surfaceAreas[surface] += surfaces[surface].getArea()[index];
+            }
+            flat[surface] = isFlat(surfaces[surface]);
+            closed[surface] = surfaces[surface].isClosed();
+            outward[surface] = signedVolume(surfaces[surface]) >= 0 ? 1 : -1;
+            blockers[surface] = new PairEvaluator(enclosure, enclosure, surfaces[surface], options.hostBVH, true);
+        }
+        evaluator = new PairEvaluator(enclosure, enclosure, enclosure, false, true);
+        oneSided = options.oneSided;
+    }
+
+    // Returns F[k][l], the view factor from surface k to surface l
+    public double[][] calculate() {
+        Timer timer = new Timer();
+        timer.start();
+        int size = enclosure.getSize();
+        int count = surfaces.length;
+
+        // Rows are dealt out round robin, as later rows have fewer pairs. Each chunk sums into its own matrix and
+        // the chunks are added in order, so the sums are reproducible
+        int chunks = 64;
+        double[][] chunkExchange = new double[chunks][count * count];
+        long[] chunkPairs = new long[chunks];
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            double[] exchange = chunkExchange[chunk];
+            for (int first = chunk; first < size; first += chunks) {
+                for (int second = first + 1; second < size; second++) {
+                    double term = contribution(first, second);
+                    exchange[surfaceIds[first] * count + surfaceIds[second]] += term;
+                    chunkPairs[chunk]++;
+                }
+            }
+        });
+
+        double[] exchange = new double[count * count];
+        pairs = 0;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            for (int entry = 0; entry < count * count; entry++) {
+                exchange[entry] += chunkExchange[chunk][entry];
+            }
+            pairs += chunkPairs[chunk];
+        }
+
+        // A_k F_kl = A_l F_lk = the terms of both orders of the pair
+        viewFactors = new double[count][count];
+        for (int from = 0; from < count; from++) {
+            for (int to = 0; to < count; to++) {
+                double shared = exchange[from * count + to] + (from != to ? exchange[to * count + from] : exchange[from * count + to]);
+                viewFactors[from][to] = surfaceAreas[from] > 0 ? shared / surfaceAreas[from] : 0;
+            }
+        }
+        seconds = timer.stop();
+        return viewFactors;
+    }
+
+    // Term A_i F_ij of two facets of the joined geometry. Neither facet blocks its own pair
+    private double contribution(int first, int second) {
+        double originX = enclosure.getCenterX()[first];
+        double originY = enclosure.getCenterY()[first];
+        double originZ = enclosure.getCenterZ()[first];
+        double rayX = enclosure.getCenterX()[second] - originX;
+        double rayY = enclosure.getCenterY()[second] - originY;
+        double rayZ = enclosure.getCenterZ()[second] - originZ;
+
+        // A closed surface only sees itself across its outside: the ray leaves the first facet's outer side and
+        // reaches the second facet's
+        int firstSurface = surfaceIds[first];
+        int secondSurface = surfaceIds[second];
+        if (firstSurface == secondSurface && closed[firstSurface]) {
+            double firstLeaves = outward[firstSurface] * windingDotRay(first, rayX, rayY, rayZ);
+            double secondReached = outward[firstSurface] * windingDotRay(second, rayX, rayY, rayZ);
+            if (!(firstLeaves > 0 && secondReached < 0)) {
+                return 0;
+            }
+        }
+
+        // Front sides facing each other along the ray, as the kernel's one-sided culling
+        if (oneSided) {
+            double firstNormalDotRay = enclosure.getNormalX()[first] * rayX + enclosure.getNormalY()[first] * rayY + enclosure.getNormalZ()[first] * rayZ;
+            double secondNormalDotRay = enclosure.getNormalX()[second] * rayX + enclosure.getNormalY()[second] * rayY + enclosure.getNormalZ()[second] * rayZ;
+            if (!(firstNormalDotRay > 0 && secondNormalDotRay < 0)) {
+                return 0;
+            }
+        }
+
+        // Facets of the same flat surface are most of the pairs, and their rays run along the surface through every
+        // BVH node of it. Their cosines only differ from zero by rounding, so they are dropped before the blocker test
+        double rayMagnitude = PairEvaluator.vectorMagnitude(rayX, rayY, rayZ);
+        double term = evaluator.unblockedContribution(first, second, rayX, rayY, rayZ, rayMagnitude);
+        double cosineFree = enclosure.getArea()[first] * enclosure.getArea()[second] / (Math.PI * rayMagnitude * rayMagnitude);
+        if (term <= GRAZING * cosineFree) {
+            return 0;
+        }
+
+        for (int surface = 0; surface < blockers.length; surface++) {
+            if (flat[surface] && (surface == firstSurface || surface == secondSurface)) {
+                continue;
+            }
+            int ignoreFirst = surface == firstSurface ? first - firstFacets[surface] : -1;
+            int ignoreSecond = surface == secondSurface ? second - firstFacets[surface] : -1;
+            if (blockers[surface].occluded(originX, originY, originZ, rayX, rayY, rayZ, ignoreFirst, ignoreSecond)) {
+                return 0;
+            }
+        }
+        return term;
+    }
+
+    // Cross product of a facet's edges, pointing to the side its winding gives, dotted with the ray
+    private double windingDotRay(int facet, double rayX, double rayY, double rayZ) {
+        double windingX = enclosure.getEdgeBAY()[facet] * enclosure.getEdgeCAZ()[facet] - enclosure.getEdgeBAZ()[facet] * enclosure.getEdgeCAY()[facet];
+        double windingY = enclosure.getEdgeBAZ()[facet] * enclosure.getEdgeCAX()[facet] - enclosure.getEdgeBAX()[facet] * enclosure.getEdgeCAZ()[facet];
+        double windingZ = enclosure.getEdgeBAX()[facet] * enclosure.getEdgeCAY()[facet] - enclosure.getEdgeBAY()[facet] * enclosure.getEdgeCAX()[facet];
+        return windingX * rayX + windingY * rayY + windingZ * rayZ;
+    }
+
+    // Six times the volume the facets enclose, positive when their winding normals point outwards
+    private static double signedVolume(Geometry surface) {
+        double volume = 0;
+        for (int index = 0; index < surface.getSize(); index++) {
+            double windingX = surface.getEdgeBAY()[index] * surface.getEdgeCAZ()[index] - surface.getEdgeBAZ()[index] * surface.getEdgeCAY()[index];
+            double windingY = surface.getEdgeBAZ()[index] * surface.getEdgeCAX()[index] - surface.getEdgeBAX()[index] * surface.getEdgeCAZ()[index];
+            double windingZ = surface.getEdgeBAX()[index] * surface.getEdgeCAY()[index] - surface.getEdgeBAY()[index] * surface.getEdgeCAX()[index];
+            volume += surface.getVertexAX()[index] * windingX + surface.getVertexAY()[index] * windingY + surface.getVertexAZ()[index] * windingZ;
+        }
+        return volume;
+    }
+
+    // True if every vertex lies on the plane of the first facet, to rounding of the surface's size
+    private static boolean isFlat(Geometry surface) {
+        if (surface.getSize() == 0) {
+            return true;
+        }
+        double normalX = surface.getEdgeBAY()[0] * surface.getEdgeCAZ()[0] - surface.getEdgeBAZ()[0] * surface.getEdgeCAY()[0];
+        double normalY = surface.getEdgeBAZ()[0] * surface.getEdgeCAX()[0] - surface.getEdgeBAX()[0] * surface.getEdgeCAZ()[0];
+        double normalZ = surface.getEdgeBAX()[0] * surface.getEdgeCAY()[0] - surface.getEdgeBAY()[0] * surface.getEdgeCAX()[0];
+        double length = PairEvaluator.vectorMagnitude(normalX, normalY, normalZ);
+        if (length == 0) {
+            return false;
+        }
+        normalX /= length;
+        normalY /= length;
+        normalZ /= length;
+
+        double[] min = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE};
+        double[] max = {-Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        double lowest = Double.MAX_VALUE;
+        double highest = -Double.MAX_VALUE;
+        for (int index = 0; index < surface.getSize(); index++) {
+            double ax = surface.getVertexAX()[index];
+            double ay = surface.getVertexAY()[index];
+            double az = surface.getVertexAZ()[index];
+            double[][] vertices = {
+                    {ax, ay, az},
+                    {ax + surface.getEdgeBAX()[index], ay + surface.getEdgeBAY()[index], az + surface.getEdgeBAZ()[index]},
+                    {ax + surface.getEdgeCAX()[index], ay + surface.getEdgeCAY()[index], az + surface.getEdgeCAZ()[index]}};
+            for (double[] vertex : vertices) {
+                double height = normalX * vertex[0] + normalY * vertex[1] + normalZ * vertex[2];
+                lowest = Math.min(lowest, height);
+                highest = Math.max(highest, height);
+                for (int axis = 0; axis < 3; axis++) {
+                    min[axis] = Math.min(min[axis], vertex[axis]);
+                    max[axis] = Math.max(max[axis], vertex[axis]);
+                }
+            }
+        }
+        return highest - lowest <= 1e-9 * PairEvaluator.vectorMagnitude(max[0] - min[0], max[1] - min[1], max[2] - min[2]);
+    }
+
+    double[] getSurfaceAreas() {
+        return surfaceAreas;
+    }
+
+    // Facet pairs and time, with the largest departure of a row sum from 1. Only a closed enclosure sums to 1
+    String getReport() {
+        double closure = 0;
+        for (double[] row : viewFactors) {
+            double sum = 0;
+            for (double viewFactor : row) {
+                sum += viewFactor;
+            }
+            closure = Math.max(closure, Math.abs(1 - sum));
+        }
+        return "Enclosure engine: " + surfaces.length + " surfaces, " + enclosure.getSize() + " tessellations | "
+                + pairs + " facet pairs in " + seconds + " s | Largest row sum deviation from 1: " + closure;
+    }
+}
@@ -0,0 +1,139 @@
+// Simple class to keep track of the calculation options specified by the user
+// Defaults reproduce the original behavior unless noted otherwise
+
+import com.aparapi.device.Device;
+import java.util.List;
+
+public class EngineOptions implements Cloneable {
+
+    // Available view factor engines
+    public enum Engine {
+        MT, // Every tessellation pair on the device (MTCalculator)
+        HIERARCHICAL, // Cluster pairs refined to a tolerance on the CPU (HierarchicalCalculator)
+        ADAPTIVE, // Meshes split where it matters until the view factor settles, on the CPU (AdaptiveRefinement)
+        MONTE_CARLO, // Rays sampled from the emitter until the standard error target is met, on the CPU (MonteCarloCalculator)
+        HEMICUBE, // Receivers and blockers rasterized around every emitter, occlusion by depth test, on the CPU (HemicubeCalculator)
+        FORK_JOIN, // Same pairs and math as MT, in cache-sized tiles on a ForkJoinPool without Aparapi (ForkJoinCalculator)
+        VECTOR // Same pairs and math as MT, each ray tested against several blockers at once with the Vector API (VectorCalculator, src-vector)
+    }
+
+    public Engine engine = Engine.MT;
+
+    // Dispatch the whole emitter x receiver pair space as a 2D range instead of one launch per emitter
+    public boolean pairLaunch = true;
+    // Upper bound on the pairs in one 2D launch. Larger pair spaces are split into emitter row chunks
+    public int pairsPerLaunch = 1 << 22;
+
+    // Devices to split the MT emitters across, one kernel instance each. Null or a single device runs as before
+    // Double precision kernel only. The same device may be listed more than once, e.g. several JavaDevice.THREAD_POOL
+    public List<Device> devices = null;
+
+    // Result arrays of the MT kernel in flight: 2 for double buffering, 3 for triple. The kernel launches into one
+    // while the result pipeline sums the others, so the next launch runs while the last one is summed.
+    // 1 sums every launch before the next one starts. Arrays the device reduction keeps on the device are not needed
+    public int launchBuffers = 2;
+
+    // Stage blocking triangles in work-group local memory and test the whole group against each tile
+    // Meant for GPUs. Aparapi's JTP fallback emulates the barriers with threads and is far slower this way, so Java
+    // devices keep the untiled loop (reported)
+    public boolean tiledBlocking = false;
+    // Blocking triangles per tile. Nine doubles per triangle must fit in the device's local memory
+    public int tileSize = 64;
+
+    // Sum every emitter row of the pair results on the device so only the row sums are copied back
+    // Pair launch on OpenCL devices only; the Java fallback devices keep summing on the host
+    public boolean deviceReduction = true;
+    // Still copy the per-receiver pair results back after every launch
+    public boolean retrievePairResults = false;
+    // Write the per-facet view factor matrix F_ij of MT runs to this file (see ViewFactorMatrix). Null writes none
+    // Copies the pair results back after every launch, as retrievePairResults does, once the file is created. Holds the centroid values,
+    // without the contour correction
+    public String matrixFile = null;
+
+    // Run geometry, intersection and cosine terms in float. Pair results are still summed in double
+    public boolean mixedPrecision = false;
+    // Emitter tessellations sampled to report the deviation from the double kernel. 0 compares the whole mesh
+    public int precisionCheckEmitters = 64;
+
+    // Test each emitter's last occluding blocker first and re-sort the blockers by hit count between launches
+    // Applies to the untiled blocker loop. A pair launch keeps one order for all its rows, so smaller
+    // pairsPerLaunch values re-sort more often
+    public boolean adaptiveBlockerOrder = false;
+
+    // Find occluders with a BVH over the blocking geometry instead of scanning every blocker
+    // Takes precedence over the adaptive order. The tiled loop still scans every blocker
+    public boolean blockerBVH = false;
+
+    // Give every cluster of nearby emitters its own list of the blockers that can lie between it and the receiver
+    // The kernel scans that list instead of every blocker. The BVH takes precedence, the adaptive order is not used
+    public boolean blockerCompaction = false;
+    // Emitter tessellations per cluster. Smaller clusters give shorter lists but take more memory
+    public int compactionClusterSize = 32;
+
+    // Classify pairs as clear, blocked or ambiguous on a voxel grid first; only ambiguous pairs get the exact test
+    // Untiled pair launch only. Solid voxels, and so blocked pairs, need closed blocking meshes
+    public boolean voxelPrePass = false;
+    // Voxels along the longest side of the blocking geometry's bounds
+    public int voxelResolution = 32;
+
+    // Emitters only radiate from the side their normals point to, and receivers only absorb on theirs
+    // Pairs facing away are dropped before any intersection work. Double precision kernel only
+    // Only used when the emitter and receiver meshes pass Geometry.checkOrientation()
+    public boolean oneSided = false;
+
+    // Error allowed on the view factor by the hierarchical engine. 0 refines every pair down to single tessellations
+    public double hierarchicalTolerance = 1e-4;
+    // Let the CPU engines find occluders through a BVH over the blocking geometry instead of scanning every blocker
+    public boolean hostBVH = true;
+
+    // Adaptive refinement stops once an iteration changes the view factor by less than this fraction
+    public double refinementThreshold = 1e-4;
+    // Share of each mesh's tessellations split per iteration, largest predicted change first
+    public double refinementFraction = 0.1;
+    public int refinementMaxIterations = 8;
+    // Tessellations of the other mesh used to predict the change from splitting
+    public int refinementSamples = 64;
+
+    // Monte Carlo engine stops once the standard error falls to this fraction of the estimate
+    public double monteCarloRelativeError = 1e-3;
+    // ... or to this absolute error on the view factor, which is what ends runs with few or no hits.
+    // With no hits at all, the 95% upper bound of the view factor (rule of three) is held to it instead
+    public double monteCarloAbsoluteError = 1e-6;
+    public long monteCarloMaxSamples = 1L << 32;
+    // Same seed and options give the same estimate, whatever the thread count
+    public long monteCarloSeed = 0x5EEDL;
+
+    // Pixels across the top face of the hemicube. Each receiver should cover a good number of pixels
+    public int hemicubeResolution = 128;
+
+    // Emitters and receivers per side of a fork/join tile. A tile scans only the blockers between its two patches
+    public int forkJoinTileSize = 64;
+    // Worker threads of the fork/join engine. 0 uses the common pool, one worker per core
+    public int forkJoinParallelism = 0;
+
+    // Pairs whose occlusion the vector engine also tests with the scalar code, to check and time it. 0 skips the check
+    public int vectorCheckPairs = 100000;
+
+    // Replace the centroid estimate of near, unobstructed pairs with the contour-integral (Stokes) form after an MT run
+    // Near means a center distance under contourDistanceRatio times the square root of the larger tessellation area
+    public boolean contourIntegral = false;
+    public double contourDistanceRatio = 5;
+    // Gauss-Legendre points along each emitter edge. The receiver edge is integrated in closed form
+    public int contourOrder = 8;
+
+    // Also report the receiver-to-emitter view factor from the same pass: F21 = A1 F12 / A2 for the shared pair terms
+    // Blockers only hide pairs from their front faces, so both directions agree only for closed blocking meshes.
+    public boolean reciprocity = false;
+    // Pairs sampled with reciprocity to evaluate again with the rays cast from the receiver. 0 skips the check
+    public int reciprocityCheckPairs = 100000;
+
+    // Copy for options adjusted for a single calculation
+    EngineOptions copy() {
+        try {
+            return (EngineOptions) clone();
+        }
+        catch (CloneNotSupportedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -0,0 +1,294 @@
+// Pure Java version of the MT calculation for machines without an OpenCL device
+// The pair space is cut into emitter x receiver tiles that a ForkJoinPool splits between its workers.
+// Emitters and receivers are taken in cluster tree order, so a tile covers two compact patches. Each tile keeps
+// only the blockers that can lie between its patches, and those come from one packed array, nine doubles per
+// blocker, so the blockers a tile scans sit together in L1/L2.
+// Same pair math as MTCalculator; every tile writes its sum to its own slot and the slots are added in tile order,
+// so repeated runs give the same result
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+public class ForkJoinCalculator {
+
+    private static final double PI = 3.141592653589793238462643383279502884197169399375105820974944592307816406286d;
+
+    // Offsets into the packed blocker array
+    private static final int BLOCK_STRIDE = 9;
+    private static final int VERTEX_A = 0;
+    private static final int EDGE_BA = 3;
+    private static final int EDGE_CA = 6;
+
+    private final int emitterTessellations;
+    private final int receiverTessellations;
+    private final int blockTessellations;
+
+    // Tessellations in cluster tree order, with the pair math's inputs copied next to each other
+    private final int[] emitterOrder;
+    private final int[] receiverOrder;
+    private final double[] emitterPoints; // Center x, y, z, normal x, y, z, normal magnitude, area
+    private final double[] receiverPoints;
+    private static final int POINT_STRIDE = 8;
+
+    private final double[] packedBlockers;
+    private final double[][] blockerBounds;
+
+    private final int tileSize;
+    private final int emitterTiles;
+    private final int receiverTiles;
+    private final boolean oneSided;
+    private final int parallelism;
+
+    private final ThreadLocal<int[]> tileBlockers;
+    private double emitterArea;
+    private long keptBlockers;
+    private long tiles;
+
+    public ForkJoinCalculator(Geometry emitter, Geometry receiver, Geometry block, EngineOptions options) {
+        emitterTessellations = emitter.getSize();
+        receiverTessellations = receiver.getSize();
+        blockTessellations = block.getSize();
+
+        emitterOrder = treeOrder(emitter);
+        receiverOrder = treeOrder(receiver);
+        emitterPoints = points(emitter, emitterOrder);
+        receiverPoints = points(receiver, receiverOrder);
+        for (int emitterIndex = 0; emitterIndex < emitterTessellations; emitterIndex++) {
+            emitterArea += emitter.getArea()[emitterIndex];
+        }
+
+        packedBlockers = new double[blockTessellations * BLOCK_STRIDE];
+        blockerBounds = new double[blockTessellations][];
+        for (int blockIndex = 0; blockIndex < blockTessellations; blockIndex++) {
+            int base = blockIndex * BLOCK_STRIDE;
+            double[] vertex = {block.getVertexAX()[blockIndex], block.getVertexAY()[blockIndex], block.getVertexAZ()[blockIndex]};
+            double[] edgeBA = {block.getEdgeBAX()[blockIndex], block.getEdgeBAY()[blockIndex], block.getEdgeBAZ()[blockIndex]};
+            double[] edgeCA = {block.getEdgeCAX()[blockIndex], block.getEdgeCAY()[blockIndex], block.getEdgeCAZ()[blockIndex]};
+            double[] bounds = new double[6];
+            for (int axis = 0; axis < 3; axis++) {
+                packedBlockers[base + VERTEX_A + axis] = vertex[axis];
+                packedBlockers[base + EDGE_BA + axis] = edgeBA[axis];
+                packedBlockers[base + EDGE_CA + axis] = edgeCA[axis];
+                bounds[axis] = vertex[axis] + Math.min(0, Math.min(edgeBA[axis], edgeCA[axis]));
+                bounds[axis + 3] = vertex[axis] + Math.max(0, Math.max(edgeBA[axis], edgeCA[axis]));
+            }
+            blockerBounds[blockIndex] = bounds;
+        }
+
+        tileSize = Math.max(1, options.forkJoinTileSize);
+        emitterTiles = (emitterTessellations + tileSize - 1) / tileSize;
+        receiverTiles = (receiverTessellations + tileSize - 1) / tileSize;
+        oneSided = options.oneSided;
+        parallelism = options.forkJoinParallelism;
+
+        // Per worker scratch for the blocker list of the tile it is on
+        tileBlockers = ThreadLocal.withInitial(() -> new int[Math.max(1, blockTessellations)]);
+    }
+
+    public double calculate() {
+        ForkJoinPool pool = parallelism > 0 ? new ForkJoinPool(parallelism) : ForkJoinPool.commonPool();
+        try {
+            double[] tileSums = new double[emitterTiles * receiverTiles];
+            pool.invoke(new TileTask(0, tileSums.length, tileSums));
+
+            // Compensated (Neumaier) sum of the tiles in order
+            double sum = 0;
+            double compensation = 0;
+            for (double tileSum : tileSums) {
+                double next = sum + tileSum;
+                if (Math.abs(sum) >= Math.abs(tileSum)) {
+                    compensation += (sum - next) + tileSum;
+                }
+                else {
+                    compensation += (tileSum - next) + sum;
+                }
+                sum = next;
+            }
+            return (sum + compensation) / emitterArea;
+        }
+        finally {
+            if (pool != ForkJoinPool.commonPool()) {
+                pool.shutdown();
+            }
+        }
+    }
+
+    // Halves its range of tiles until a single tile is left, which writes its sum into its slot of tileSums
+    private class TileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int firstTile;
+        private final int endTile;
+        private final double[] tileSums;
+
+        TileTask(int firstTile, int endTile, double[] tileSums) {
+            this.firstTile = firstTile;
+            this.endTile = endTile;
+            this.tileSums = tileSums;
+        }
+
+        @Override
+        protected void compute() {
+            if (endTile - firstTile == 1) {
+                tileSums[firstTile] = tile(firstTile / receiverTiles, firstTile % receiverTiles);
+                return;
+            }
+            int middle = (firstTile + endTile) >>> 1;
+            invokeAll(new TileTask(firstTile, middle, tileSums), new TileTask(middle, endTile, tileSums));
+        }
+    }
+
+    // Sum of the pair contributions of one tile
+    private double tile(int emitterTile, int receiverTile) {
+        int emitterFirst = emitterTile * tileSize;
+        int emitterEnd = Math.min(emitterFirst + tileSize, emitterTessellations);
+        int receiverFirst = receiverTile * tileSize;
+        int receiverEnd = Math.min(receiverFirst + tileSize, receiverTessellations);
+
+        // Only the blockers that can lie between the two patches
+        double[] emitterBounds = bounds(emitterPoints, emitterFirst, emitterEnd);
+        double[] receiverBounds = bounds(receiverPoints, receiverFirst, receiverEnd);
+        int[] blockers = tileBlockers.get();
+        int blockerCount = 0;
+        for (int blockIndex = 0; blockIndex < blockTessellations; blockIndex++) {
+            if (BlockerCompaction.meetsHull(blockerBounds[blockIndex], emitterBounds, receiverBounds)) {
+                blockers[blockerCount++] = blockIndex;
+            }
+        }
+        record(blockerCount);
+
+        double sum = 0;
+        for (int emitterSlot = emitterFirst; emitterSlot < emitterEnd; emitterSlot++) {
+            int emitterBase = emitterSlot * POINT_STRIDE;
+            double originX = emitterPoints[emitterBase];
+            double originY = emitterPoints[emitterBase + 1];
+            double originZ = emitterPoints[emitterBase + 2];
+
+            for (int receiverSlot = receiverFirst; receiverSlot < receiverEnd; receiverSlot++) {
+                int receiverBase = receiverSlot * POINT_STRIDE;
+                double rayX = receiverPoints[receiverBase] - originX;
+                double rayY = receiverPoints[receiverBase + 1] - originY;
+                double rayZ = receiverPoints[receiverBase + 2] - originZ;
+
+                double emitterNormalDotRay = emitterPoints[emitterBase + 3] * rayX + emitterPoints[emitterBase + 4] * rayY + emitterPoints[emitterBase + 5] * rayZ;
+                double receiverNormalDotRay = receiverPoints[receiverBase + 3] * rayX + receiverPoints[receiverBase + 4] * rayY + receiverPoints[receiverBase + 5] * rayZ;
+                if (oneSided && !(emitterNormalDotRay > 0 && receiverNormalDotRay < 0)) {
+                    continue;
+                }
+                if (occluded(blockers, blockerCount, originX, originY, originZ, rayX, rayY, rayZ)) {
+                    continue;
+                }
+
+                double rayMagnitude = Math.sqrt(rayX * rayX + rayY * rayY + rayZ * rayZ);
+                double cosThetaOne = emitterNormalDotRay / (emitterPoints[emitterBase + 6] * rayMagnitude);
+                double cosThetaTwo = receiverNormalDotRay / (receiverPoints[receiverBase + 6] * rayMagnitude);
+                if (cosThetaOne < 0) {
+                    cosThetaOne = -cosThetaOne;
+                }
+                if (cosThetaTwo < 0) {
+                    cosThetaTwo = -cosThetaTwo;
+                }
+                sum += cosThetaOne * cosThetaTwo * emitterPoints[emitterBase + 7] * receiverPoints[receiverBase + 7]
+                        / (PI * rayMagnitude * rayMagnitude);
+            }
+        }
+        return sum;
+    }
+
+    // Moller-Trumbore test of the tile's blockers, with the kernel's back-face culling and 0 < t < 1 window
+    private boolean occluded(int[] blockers, int blockerCount, double originX, double originY, double originZ, double rayX, double rayY, double rayZ) {
+        for (int slot = 0; slot < blockerCount; slot++) {
+            int base = blockers[slot] * BLOCK_STRIDE;
+            double edgeBAX = packedBlockers[base + EDGE_BA];
+            double edgeBAY = packedBlockers[base + EDGE_BA + 1];
+            double edgeBAZ = packedBlockers[base + EDGE_BA + 2];
+            double edgeCAX = packedBlockers[base + EDGE_CA];
+            double edgeCAY = packedBlockers[base + EDGE_CA + 1];
+            double edgeCAZ = packedBlockers[base + EDGE_CA + 2];
+
+            double pvecX = rayY * edgeCAZ - rayZ * edgeCAY;
+            double pvecY = rayZ * edgeCAX - rayX * edgeCAZ;
+            double pvecZ = rayX * edgeCAY - rayY * edgeCAX;
+            double det = edgeBAX * pvecX + edgeBAY * pvecY + edgeBAZ * pvecZ;
+            if (det < 1e-8) {
+                // Back face, or parallel to the ray
+                continue;
+            }
+            double invDet = 1 / det;
+
+            double tvecX = originX - packedBlockers[base + VERTEX_A];
+            double tvecY = originY - packedBlockers[base + VERTEX_A + 1];
+            double tvecZ = originZ - packedBlockers[base + VERTEX_A + 2];
+            double u = (tvecX * pvecX + tvecY * pvecY + tvecZ * pvecZ) * invDet;
+            if (u < 0 || u > 1) {
+                continue;
+            }
+
+            double qvecX = tvecY * edgeBAZ - tvecZ * edgeBAY;
+            double qvecY = tvecZ * edgeBAX - tvecX * edgeBAZ;
+            double qvecZ = tvecX * edgeBAY - tvecY * edgeBAX;
+            double v = (rayX * qvecX + rayY * qvecY + rayZ * qvecZ) * invDet;
+            if (v < 0 || (u + v) > 1) {
+                continue;
+            }
+            double intersectionDistance = (edgeCAX * qvecX + edgeCAY * qvecY + edgeCAZ * qvecZ) * invDet;
+            if (intersectionDistance > 0 && intersectionDistance < 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Leaves of the cluster tree in depth-first order
+    private static int[] treeOrder(Geometry geometry) {
+        ClusterTree tree = new ClusterTree(geometry);
+        int[] order = new int[geometry.getSize()];
+        int slot = 0;
+        for (int node = 0; node < tree.getNodeCount(); node++) {
+            if (tree.isLeaf(node)) {
+                order[slot++] = tree.getTessellation(node);
+            }
+        }
+        return order;
+    }
+
+    private static double[] points(Geometry geometry, int[] order) {
+        double[] points = new double[order.length * POINT_STRIDE];
+        for (int slot = 0; slot < order.length; slot++) {
+            int index = order[slot];
+            int base = slot * POINT_STRIDE;
+            points[base] = geometry.getCenterX()[index];
+            points[base + 1] = geometry.getCenterY()[index];
+            points[base + 2] = geometry.getCenterZ()[index];
+            points[base + 3] = geometry.getNormalX()[index];
+            points[base + 4] = geometry.getNormalY()[index];
+            points[base + 5] = geometry.getNormalZ()[index];
+            points[base + 6] = PairEvaluator.vectorMagnitude(points[base + 3], points[base + 4], points[base + 5]);
+            points[base + 7] = geometry.getArea()[index];
+        }
+        return points;
+    }
+
+    // Min x, y, z, max x, y, z of the centers in [first, end)
+    private static double[] bounds(double[] points, int first, int end) {
+        double[] bounds = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        for (int slot = first; slot < end; slot++) {
+            for (int axis = 0; axis < 3; axis++) {
+                double value = points[slot * POINT_STRIDE + axis];
+                bounds[axis] = Math.min(bounds[axis], value);
+                bounds[axis + 3] = Math.max(bounds[axis + 3], value);
+            }
+        }
+        return bounds;
+    }
+
+    private synchronized void record(int blockerCount) {
+        keptBlockers += blockerCount;
+        tiles++;
+    }
+
+    String getReport() {
+        return "Fork/join engine: " + tiles + " tiles of up to " + tileSize + " x " + tileSize + " pairs | "
+                + (tiles == 0 ? 0 : (double) keptBlockers / tiles) + " of " + blockTessellations + " blockers scanned per tile";
+    }
+}
@@ -4,6 +4,10 @@
 
 import org.j3d.loaders.stl.STLFileReader;
 import java.util.stream.IntStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
 
 public class Geometry {
 
@@ -41,6 +45,29 @@ public class Geometry {
 
     private double[] area;
 
+    // Single-precision copies for the mixed-precision kernel. Built on first use, as they're not always used.
+    private float[] normalXFloat;
+    private float[] normalYFloat;
+    private float[] normalZFloat;
+
+    private float[] vertexAXFloat;
+    private float[] vertexAYFloat;
+    private float[] vertexAZFloat;
+
+    private float[] edgeBAXFloat;
+    private float[] edgeBAYFloat;
+    private float[] edgeBAZFloat;
+
+    private float[] edgeCAXFloat;
+    private float[] edgeCAYFloat;
+    private float[] edgeCAZFloat;
+
+    private float[] centerXFloat;
+    private float[] centerYFloat;
+    private float[] centerZFloat;
+
+    private float[] areaFloat;
+
     private STLFileReader reader;
 
     public Geometry(STLFileReader reader){
@@ -48,6 +75,76 @@ public class Geometry {
         initializeSTL(reader);
     }
 
+    private Geometry(int size) {
+        initWithSize(size);
+    }
+
+    // Copies the listed facets of another geometry, in the order given
+    Geometry(Geometry source, int[] facets) {
+        initWithSize(facets.length);
+
+        for (int index = 0; index < facets.length; index++) {
+            int facet = facets[index];
+
+            normalX[index] = source.normalX[facet];
+            normalY[index] = source.normalY[facet];
+            normalZ[index] = source.normalZ[facet];
+
+            vertexAX[index] = source.vertexAX[facet];
+            vertexAY[index] = source.vertexAY[facet];
+            vertexAZ[index] = source.vertexAZ[facet];
+
+            edgeBAX[index] = source.edgeBAX[facet];
+            edgeBAY[index] = source.edgeBAY[facet];
+            edgeBAZ[index] = source.edgeBAZ[facet];
+
+            edgeCAX[index] = source.edgeCAX[facet];
+            edgeCAY[index] = source.edgeCAY[facet];
+            edgeCAZ[index] = source.edgeCAZ[facet];
+
+            centerX[index] = source.centerX[facet];
+            centerY[index] = source.centerY[facet];
+            centerZ[index] = source.centerZ[facet];
+
+            area[index] = source.area[facet];
+        }
+    }
+
+    // Joins several geometries into one, keeping each part's facets together and in order
+    Geometry(Geometry[] parts) {
+        int total = 0;
+        for (Geometry part : parts) {
+            total += part.size;
+        }
+        initWithSize(total);
+
+        int offset = 0;
+        for (Geometry part : parts) {
+            System.arraycopy(part.normalX, 0, normalX, offset, part.size);
+            System.arraycopy(part.normalY, 0, normalY, offset, part.size);
+            System.arraycopy(part.normalZ, 0, normalZ, offset, part.size);
+
+            System.arraycopy(part.vertexAX, 0, vertexAX, offset, part.size);
+            System.arraycopy(part.vertexAY, 0, vertexAY, offset, part.size);
+            System.arraycopy(part.vertexAZ, 0, vertexAZ, offset, part.size);
+
+            System.arraycopy(part.edgeBAX, 0, edgeBAX, offset, part.size);
+            System.arraycopy(part.edgeBAY, 0, edgeBAY, offset, part.size);
+            System.arraycopy(part.edgeBAZ, 0, edgeBAZ, offset, part.size);
+
+            System.arraycopy(part.edgeCAX, 0, edgeCAX, offset, part.size);
+            System.arraycopy(part.edgeCAY, 0, edgeCAY, offset, part.size);
+            System.arraycopy(part.edgeCAZ, 0, edgeCAZ, offset, part.size);
+
+            System.arraycopy(part.centerX, 0, centerX, offset, part.size);
+            System.arraycopy(part.centerY, 0, centerY, offset, part.size);
+            System.arraycopy(part.centerZ, 0, centerZ, offset, part.size);
+
+            System.arraycopy(part.area, 0, area, offset, part.size);
+            offset += part.size;
+        }
+    }
+
     //Reads from STL and creates the necessary sizes of the array per object
     //Performs the necessary calculations for the arrays needed for the view factor
 
@@ -60,38 +157,76 @@ public class Geometry {
                 double[][] vertices = new double[3][3];
 
                 reader.getNextFacet(normal, vertices);
+                setFacet(index, normal, vertices);
+            }
+            reader.close();
+        }
+        catch(Exception e){
+            throw new RuntimeException(e);
+        }
+    }
 
-                normalX[index] = normal[X];
-                normalY[index] = normal[Y];
-                normalZ[index] = normal[Z];
 
-                vertexAX[index] = vertices[A][X];
-                vertexAY[index] = vertices[A][Y];
-                vertexAZ[index] = vertices[A][Z];
+    // Fills in every per-facet array from a normal and the three vertices
+    private void setFacet(int index, double[] normal, double[][] vertices) {
+        normalX[index] = normal[X];
+        normalY[index] = normal[Y];
+        normalZ[index] = normal[Z];
 
+        vertexAX[index] = vertices[A][X];
+        vertexAY[index] = vertices[A][Y];
+        vertexAZ[index] = vertices[A][Z];
 
-                edgeBAX[index] = vertices[B][X] - vertices[A][X];
-                edgeBAY[index] = vertices[B][Y] - vertices[A][Y];
-                edgeBAZ[index] = vertices[B][Z] - vertices[A][Z];
 
-                edgeCAX[index] = vertices[C][X] - vertices[A][X];
-                edgeCAY[index] = vertices[C][Y] - vertices[A][Y];
-                edgeCAZ[index] = vertices[C][Z] - vertices[A][Z];
+        edgeBAX[index] = vertices[B][X] - vertices[A][X];
+        edgeBAY[index] = vertices[B][Y] - vertices[A][Y];
+        edgeBAZ[index] = vertices[B][Z] - vertices[A][Z];
 
-                centerX[index] = (vertices[A][X] + vertices[B][X] + vertices[C][X]) / 3;
-                centerY[index] = (vertices[A][Y] + vertices[B][Y] + vertices[C][Y]) / 3;
-                centerZ[index] = (vertices[A][Z] + vertices[B][Z] + vertices[C][Z]) / 3;
+        edgeCAX[index] = vertices[C][X] - vertices[A][X];
+        edgeCAY[index] = vertices[C][Y] - vertices[A][Y];
+        edgeCAZ[index] = vertices[C][Z] - vertices[A][Z];
 
-                area[index] = areaOf(vertices);
+        centerX[index] = (vertices[A][X] + vertices[B][X] + vertices[C][X]) / 3;
+        centerY[index] = (vertices[A][Y] + vertices[B][Y] + vertices[C][Y]) / 3;
+        centerZ[index] = (vertices[A][Z] + vertices[B][Z] + vertices[C][Z]) / 3;
+
+        area[index] = areaOf(vertices);
+    }
+
+    // Splits the flagged facets into four at their edge midpoints, keeping the winding and the stored normal
+    // The child at vertex A takes its parent's index; the children at B and C and the middle one are appended in that order
+    static Geometry subdivide(Geometry source, boolean[] split) {
+        int refinedSize = source.size;
+        for (int index = 0; index < source.size; index++) {
+            if (split[index]) {
+                refinedSize += 3;
             }
-            reader.close();
         }
-        catch(Exception e){
-            throw new RuntimeException(e);
+
+        Geometry refined = new Geometry(refinedSize);
+        int appended = source.size;
+        for (int index = 0; index < source.size; index++) {
+            double[] normal = {source.normalX[index], source.normalY[index], source.normalZ[index]};
+            double[] a = {source.vertexAX[index], source.vertexAY[index], source.vertexAZ[index]};
+            double[] b = {a[X] + source.edgeBAX[index], a[Y] + source.edgeBAY[index], a[Z] + source.edgeBAZ[index]};
+            double[] c = {a[X] + source.edgeCAX[index], a[Y] + source.edgeCAY[index], a[Z] + source.edgeCAZ[index]};
+
+            if (!split[index]) {
+                refined.setFacet(index, normal, new double[][]{a, b, c});
+            }
+            else {
+                double[] ab = {(a[X] + b[X]) / 2, (a[Y] + b[Y]) / 2, (a[Z] + b[Z]) / 2};
+                double[] bc = {(b[X] + c[X]) / 2, (b[Y] + c[Y]) / 2, (b[Z] + c[Z]) / 2};
+                double[] ca = {(c[X] + a[X]) / 2, (c[Y] + a[Y]) / 2, (c[Z] + a[Z]) / 2};
+                refined.setFacet(index, normal, new double[][]{a, ab, ca});
+                refined.setFacet(appended++, normal, new double[][]{ab, b, bc});
+                refined.setFacet(appended++, normal, new double[][]{ca, bc, c});
+                refined.setFacet(appended++, normal, new double[][]{ab, bc, ca});
+            }
         }
+        return refined;
     }
 
-
     //Creates the sizes of arrays needed for computation based upon number of facets read in from the STL file
     private void initWithSize(int size) {
         this.size = size;
@@ -137,6 +272,88 @@ public class Geometry {
                         + (x1 * y2 - x2 * y1) * (x1 * y2 - x2 * y1));
     }
 
+    // Checks that the facets are oriented consistently: every stored normal points to the side its winding
+    // gives, and facets sharing an edge run along it in opposite directions
+    // Returns null when both hold, otherwise a description of the first problem found
+    String checkOrientation() {
+        int[] ids = weldedCorners();
+        Set<Long> edges = new HashSet<>();
+        for (int index = 0; index < size; index++) {
+            double windingX = edgeBAY[index] * edgeCAZ[index] - edgeBAZ[index] * edgeCAY[index];
+            double windingY = edgeBAZ[index] * edgeCAX[index] - edgeBAX[index] * edgeCAZ[index];
+            double windingZ = edgeBAX[index] * edgeCAY[index] - edgeBAY[index] * edgeCAX[index];
+            // Degenerate facets have no winding to compare against
+            if (area[index] > 0 && normalX[index] * windingX + normalY[index] * windingY + normalZ[index] * windingZ <= 0) {
+                return "facet " + index + " has a normal that disagrees with its winding";
+            }
+
+            for (int corner = A; corner <= C; corner++) {
+                // The same directed edge twice means a neighbour is wound the other way
+                if (!edges.add(directedEdge(ids, index, corner))) {
+                    return "facet " + index + " is wound against a neighbouring facet";
+                }
+            }
+        }
+        return null;
+    }
+
+    // True if the facets form closed, consistently wound shells: every directed edge is matched by exactly one
+    // edge in the opposite direction
+    boolean isClosed() {
+        if (size == 0) {
+            return false;
+        }
+        int[] ids = weldedCorners();
+        Map<Long, Integer> edges = new HashMap<>();
+        for (int index = 0; index < size; index++) {
+            for (int corner = A; corner <= C; corner++) {
+                edges.merge(directedEdge(ids, index, corner), 1, Integer::sum);
+            }
+        }
+        for (Map.Entry<Long, Integer> edge : edges.entrySet()) {
+            long key = edge.getKey();
+            long reverse = ((key & 0xffffffffL) << 32) | (key >>> 32);
+            if (edge.getValue() != 1 || edges.getOrDefault(reverse, 0) != 1) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Vertex id of every facet corner, at 3 * facet + corner. Corners closer than the weld distance share an id,
+    // since exporters write shared corners with slightly different values
+    private int[] weldedCorners() {
+        double extent = 0;
+        for (int index = 0; index < size; index++) {
+            extent = Math.max(extent, Math.abs(vertexAX[index]) + Math.abs(vertexAY[index]) + Math.abs(vertexAZ[index]));
+        }
+        double weld = Math.max(extent, 1e-9) * 1e-9;
+
+        Map<String, Integer> vertexIds = new HashMap<>();
+        int[] ids = new int[3 * size];
+        for (int index = 0; index < size; index++) {
+            double[][] corners = {
+                    {vertexAX[index], vertexAY[index], vertexAZ[index]},
+                    {vertexAX[index] + edgeBAX[index], vertexAY[index] + edgeBAY[index], vertexAZ[index] + edgeBAZ[index]},
+                    {vertexAX[index] + edgeCAX[index], vertexAY[index] + edgeCAY[index], vertexAZ[index] + edgeCAZ[index]}};
+            for (int corner = A; corner <= C; corner++) {
+                String key = Math.round(corners[corner][X] / weld) + "," + Math.round(corners[corner][Y] / weld) + "," + Math.round(corners[corner][Z] / weld);
+                Integer id = vertexIds.get(key);
+                if (id == null) {
+                    id = vertexIds.size();
+                    vertexIds.put(key, id);
+                }
+                ids[3 * index + corner] = id;
+            }
+        }
+        return ids;
+    }
+
+    // Edge leaving a facet corner along the winding, as a pair of welded vertex ids
+    private static long directedEdge(int[] ids, int index, int corner) {
+        return ((long) ids[3 * index + corner] << 32) | ids[3 * index + (corner + 1) % 3];
+    }
+
     // Various "getter" methods
     double [] getNormalX(){
         return normalX;
@@ -205,4 +422,121 @@ public class Geometry {
     double[] getArea() {
         return area;
     }
+
+    // Single-precision "getter" methods
+    float[] getNormalXFloat() {
+        initFloatCopies();
+        return normalXFloat;
+    }
+
+    float[] getNormalYFloat() {
+        initFloatCopies();
+        return normalYFloat;
+    }
+
+    float[] getNormalZFloat() {
+        initFloatCopies();
+        return normalZFloat;
+    }
+
+    float[] getVertexAXFloat() {
+        initFloatCopies();
+        return vertexAXFloat;
+    }
+
+    float[] getVertexAYFloat() {
+        initFloatCopies();
+        return vertexAYFloat;
+    }
+
+    float[] getVertexAZFloat() {
+        initFloatCopies();
+        return vertexAZFloat;
+    }
+
+    float[] getEdgeBAXFloat() {
+        initFloatCopies();
+        return edgeBAXFloat;
+    }
+
+    float[] getEdgeBAYFloat() {
+        initFloatCopies();
+        return edgeBAYFloat;
+    }
+
+    float[] getEdgeBAZFloat() {
+        initFloatCopies();
+        return edgeBAZFloat;
+    }
+
+    float[] getEdgeCAXFloat() {
+        initFloatCopies();
+        return edgeCAXFloat;
+    }
+
+    float[] getEdgeCAYFloat() {
+        initFloatCopies();
+        return edgeCAYFloat;
+    }
+
+    float[] getEdgeCAZFloat() {
+        initFloatCopies();
+        return edgeCAZFloat;
+    }
+
+    float[] getCenterXFloat() {
+        initFloatCopies();
+        return centerXFloat;
+    }
+
+    float[] getCenterYFloat() {
+        initFloatCopies();
+        return centerYFloat;
+    }
+
+    float[] getCenterZFloat() {
+        initFloatCopies();
+        return centerZFloat;
+    }
+
+    float[] getAreaFloat() {
+        initFloatCopies();
+        return areaFloat;
+    }
+
+    private void initFloatCopies() {
+        if (areaFloat != null) {
+            return;
+        }
+
+        normalXFloat = toFloat(normalX);
+        normalYFloat = toFloat(normalY);
+        normalZFloat = toFloat(normalZ);
+
+        vertexAXFloat = toFloat(vertexAX);
+        vertexAYFloat = toFloat(vertexAY);
+        vertexAZFloat = toFloat(vertexAZ);
+
+        edgeBAXFloat = toFloat(edgeBAX);
+        edgeBAYFloat = toFloat(edgeBAY);
+        edgeBAZFloat = toFloat(edgeBAZ);
+
+        edgeCAXFloat = toFloat(edgeCAX);
+        edgeCAYFloat = toFloat(edgeCAY);
+        edgeCAZFloat = toFloat(edgeCAZ);
+
+        centerXFloat = toFloat(centerX);
+        centerYFloat = toFloat(centerY);
+        centerZFloat = toFloat(centerZ);
+
+        areaFloat = toFloat(area);
+    }
+
+    private static float[] toFloat(double[] values) {
+        float[] copy = new float[values.length];
+        for (int index = 0; index < values.length; index++) {
+            copy[index] = (float) values[index];
+        }
+        return copy;
+    }
 }
@@ -0,0 +1,320 @@
+// Hemicube view factor engine running on CPU threads
+// For every emitter tessellation, receiver and blocker triangles are rasterized onto the five faces of a hemicube
+// around its center. Each pixel keeps the nearest triangle (item buffer, depth from the ray to the triangle's plane),
+// and the pixels left showing a receiver add their delta form factors to it. Occlusion is the depth test.
+// Blockers are culled from behind as in the kernel; receivers are drawn from both sides and hide what lies behind them.
+
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+public class HemicubeCalculator {
+
+    private static final int FACES = 5;
+    private static final double EPSILON = 1e-9;
+
+    private final Geometry emitter;
+    private final Geometry receiver;
+    private final Geometry block;
+    private final int receiverCount;
+    private final int itemCount; // Receivers first, then blockers
+
+    private final int resolution; // Pixels across the top face; the side faces are half as high
+    private final boolean oneSided;
+
+    // Face axes in the emitter frame (tangent, bitangent, normal): pixel u, pixel v and depth w
+    private static final double[][][] FACE_AXES = {
+            {{1, 0, 0}, {0, 1, 0}, {0, 0, 1}},
+            {{0, 1, 0}, {0, 0, 1}, {1, 0, 0}},
+            {{0, 1, 0}, {0, 0, 1}, {-1, 0, 0}},
+            {{1, 0, 0}, {0, 0, 1}, {0, 1, 0}},
+            {{1, 0, 0}, {0, 0, 1}, {0, -1, 0}}};
+
+    private final int[] faceHeight;
+    private final double[] faceMinV;
+    private final int[] faceOffset; // First pixel of each face in the buffers
+    private final int pixelCount;
+    private final double[] deltaFormFactor; // Per pixel, summing to 1 over the hemicube
+
+    private final double[] receiverContributions; // Area-weighted view factor reaching every receiver
+    private double viewFactor;
+
+    private static final double PI = 3.141592653589793238462643383279502884197169399375105820974944592307816406286d;
+
+    public HemicubeCalculator(Geometry emitter, Geometry receiver, Geometry block, EngineOptions options) {
+        this.emitter = emitter;
+        this.receiver = receiver;
+        this.block = block;
+        receiverCount = receiver.getSize();
+        itemCount = receiverCount + block.getSize();
+        resolution = Math.max(2, options.hemicubeResolution / 2 * 2);
+        oneSided = options.oneSided;
+
+        faceHeight = new int[FACES];
+        faceMinV = new double[FACES];
+        faceOffset = new int[FACES];
+        int pixels = 0;
+        for (int face = 0; face < FACES; face++) {
+            faceHeight[face] = face == 0 ? resolution : resolution / 2;
+            faceMinV[face] = face == 0 ? -1 : 0;
+            faceOffset[face] = pixels;
+            pixels += resolution * faceHeight[face];
+        }
+        pixelCount = pixels;
+
+        // Delta form factor of a pixel at (u, v) on a face one unit from the center: d_z * |d . n_face| / (pi |d|^4) * dA
+        // with d = (u, v, 1) in face axes, so |d . n_face| = 1 and d_z is 1 on the top face and v on the sides
+        deltaFormFactor = new double[pixelCount];
+        double pixelSize = 2.0 / resolution;
+        for (int face = 0; face < FACES; face++) {
+            for (int row = 0; row < faceHeight[face]; row++) {
+                double v = faceMinV[face] + (row + 0.5) * pixelSize;
+                for (int column = 0; column < resolution; column++) {
+                    double u = -1 + (column + 0.5) * pixelSize;
+                    double lengthSquared = u * u + v * v + 1;
+                    double normalComponent = face == 0 ? 1 : v;
+                    deltaFormFactor[faceOffset[face] + row * resolution + column] =
+                            normalComponent * pixelSize * pixelSize / (PI * lengthSquared * lengthSquared);
+                }
+            }
+        }
+
+        receiverContributions = new double[Math.max(1, receiverCount)];
+    }
+
+    public double calculate() {
+        int emitterCount = emitter.getSize();
+        int chunks = Math.min(Math.max(1, emitterCount), 64);
+        double[][] chunkContributions = new double[chunks][];
+
+        // Each chunk owns its buffers and contribution array; they are merged in chunk order afterwards
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            double[] depth = new double[pixelCount];
+            int[] items = new int[pixelCount];
+            double[] contributions = new double[Math.max(1, receiverCount)];
+            for (int emitterIndex = chunk; emitterIndex < emitterCount; emitterIndex += chunks) {
+                render(emitterIndex, 1, depth, items, contributions);
+                if (!oneSided) {
+                    // Like the kernel's absolute cosines, the back side of the emitter radiates too
+                    render(emitterIndex, -1, depth, items, contributions);
+                }
+            }
+            chunkContributions[chunk] = contributions;
+        });
+
+        double total = 0;
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            for (int receiverIndex = 0; receiverIndex < receiverCount; receiverIndex++) {
+                receiverContributions[receiverIndex] += chunkContributions[chunk][receiverIndex];
+            }
+        }
+        for (int receiverIndex = 0; receiverIndex < receiverCount; receiverIndex++) {
+            total += receiverContributions[receiverIndex];
+        }
+
+        double emitterArea = 0;
+        for (int emitterIndex = 0; emitterIndex < emitterCount; emitterIndex++) {
+            emitterArea += emitter.getArea()[emitterIndex];
+        }
+        viewFactor = emitterArea > 0 ? total / emitterArea : 0;
+        return viewFactor;
+    }
+
+    // Rasterizes every item onto the hemicube on one side of the emitter and adds up the receiver pixels
+    private void render(int emitterIndex, int side, double[] depth, int[] items, double[] contributions) {
+        Arrays.fill(depth, Double.MAX_VALUE);
+        Arrays.fill(items, -1);
+
+        // Emitter frame: any tangent, the bitangent, and the unit normal facing the chosen side
+        double normalX = emitter.getNormalX()[emitterIndex];
+        double normalY = emitter.getNormalY()[emitterIndex];
+        double normalZ = emitter.getNormalZ()[emitterIndex];
+        double length = PairEvaluator.vectorMagnitude(normalX, normalY, normalZ);
+        normalX = side * normalX / length;
+        normalY = side * normalY / length;
+        normalZ = side * normalZ / length;
+        double[] tangent = Math.abs(normalX) < 0.9 ? new double[]{0, normalZ, -normalY} : new double[]{-normalZ, 0, normalX};
+        double tangentLength = PairEvaluator.vectorMagnitude(tangent[0], tangent[1], tangent[2]);
+        double[][] frame = {
+                {tangent[0] / tangentLength, tangent[1] / tangentLength, tangent[2] / tangentLength},
+                null,
+                {normalX, normalY, normalZ}};
+        frame[1] = new double[]{
+                normalY * frame[0][2] - normalZ * frame[0][1],
+                normalZ * frame[0][0] - normalX * frame[0][2],
+                normalX * frame[0][1] - normalY * frame[0][0]};
+
+        // World directions of the face axes
+        double[][][] faceAxes = new double[FACES][3][3];
+        for (int face = 0; face < FACES; face++) {
+            for (int axis = 0; axis < 3; axis++) {
+                for (int component = 0; component < 3; component++) {
+                    faceAxes[face][axis][component] = FACE_AXES[face][axis][0] * frame[0][component]
+                            + FACE_AXES[face][axis][1] * frame[1][component]
+                            + FACE_AXES[face][axis][2] * frame[2][component];
+                }
+            }
+        }
+
+        double originX = emitter.getCenterX()[emitterIndex];
+        double originY = emitter.getCenterY()[emitterIndex];
+        double originZ = emitter.getCenterZ()[emitterIndex];
+        for (int item = 0; item < itemCount; item++) {
+            Geometry geometry = item < receiverCount ? receiver : block;
+            int index = item < receiverCount ? item : item - receiverCount;
+            double[][] corners = new double[3][];
+            corners[0] = new double[]{geometry.getVertexAX()[index] - originX, geometry.getVertexAY()[index] - originY, geometry.getVertexAZ()[index] - originZ};
+            corners[1] = new double[]{corners[0][0] + geometry.getEdgeBAX()[index], corners[0][1] + geometry.getEdgeBAY()[index], corners[0][2] + geometry.getEdgeBAZ()[index]};
+            corners[2] = new double[]{corners[0][0] + geometry.getEdgeCAX()[index], corners[0][1] + geometry.getEdgeCAY()[index], corners[0][2] + geometry.getEdgeCAZ()[index]};
+
+            // Plane of the triangle: a point p = t * d is on it when planeNormal . (t * d) = planeOffset
+            double planeNormalX = geometry.getEdgeBAY()[index] * geometry.getEdgeCAZ()[index] - geometry.getEdgeBAZ()[index] * geometry.getEdgeCAY()[index];
+            double planeNormalY = geometry.getEdgeBAZ()[index] * geometry.getEdgeCAX()[index] - geometry.getEdgeBAX()[index] * geometry.getEdgeCAZ()[index];
+            double planeNormalZ = geometry.getEdgeBAX()[index] * geometry.getEdgeCAY()[index] - geometry.getEdgeBAY()[index] * geometry.getEdgeCAX()[index];
+            double planeOffset = planeNormalX * corners[0][0] + planeNormalY * corners[0][1] + planeNormalZ * corners[0][2];
+            if (planeOffset == 0) {
+                continue; // Seen edge-on from the emitter center
+            }
+            // Like the kernel's back-face culling, a blocker seen from behind its normal hides nothing. The rays from
+            // the center reach the plane from the side the center is on, which the sign of planeOffset gives
+            if (item >= receiverCount && planeOffset > 0) {
+                continue;
+            }
+
+            for (int face = 0; face < FACES; face++) {
+                rasterize(face, faceAxes[face], corners, planeNormalX, planeNormalY, planeNormalZ, planeOffset, item, depth, items);
+            }
+        }
+
+        double area = emitter.getArea()[emitterIndex];
+        for (int pixel = 0; pixel < pixelCount; pixel++) {
+            if (items[pixel] >= 0 && items[pixel] < receiverCount) {
+                contributions[items[pixel]] += area * deltaFormFactor[pixel];
+            }
+        }
+    }
+
+    // Clips the triangle to the front of the face, projects it and depth-tests the pixels it covers
+    private void rasterize(int face, double[][] axes, double[][] corners,
+                           double planeNormalX, double planeNormalY, double planeNormalZ, double planeOffset,
+                           int item, double[] depth, int[] items) {
+        // Corners in face coordinates (u, v, w)
+        double[][] polygon = new double[3][3];
+        boolean anyInFront = false;
+        for (int corner = 0; corner < 3; corner++) {
+            for (int axis = 0; axis < 3; axis++) {
+                polygon[corner][axis] = axes[axis][0] * corners[corner][0] + axes[axis][1] * corners[corner][1] + axes[axis][2] * corners[corner][2];
+            }
+            anyInFront |= polygon[corner][2] > EPSILON;
+        }
+        if (!anyInFront) {
+            return;
+        }
+        double[][] clipped = clip(polygon);
+        if (clipped.length < 3) {
+            return;
+        }
+
+        // Projected outline and its pixel bounds
+        int count = clipped.length;
+        double[] projectedU = new double[count];
+        double[] projectedV = new double[count];
+        double minU = Double.MAX_VALUE, maxU = -Double.MAX_VALUE, minV = Double.MAX_VALUE, maxV = -Double.MAX_VALUE;
+        for (int vertex = 0; vertex < count; vertex++) {
+            projectedU[vertex] = clipped[vertex][0] / clipped[vertex][2];
+            projectedV[vertex] = clipped[vertex][1] / clipped[vertex][2];
+            minU = Math.min(minU, projectedU[vertex]);
+            maxU = Math.max(maxU, projectedU[vertex]);
+            minV = Math.min(minV, projectedV[vertex]);
+            maxV = Math.max(maxV, projectedV[vertex]);
+        }
+        double pixelSize = 2.0 / resolution;
+        int firstColumn = Math.max(0, (int) Math.ceil((minU + 1) / pixelSize - 0.5));
+        int lastColumn = Math.min(resolution - 1, (int) Math.floor((maxU + 1) / pixelSize - 0.5));
+        int firstRow = Math.max(0, (int) Math.ceil((minV - faceMinV[face]) / pixelSize - 0.5));
+        int lastRow = Math.min(faceHeight[face] - 1, (int) Math.floor((maxV - faceMinV[face]) / pixelSize - 0.5));
+        if (firstColumn > lastColumn || firstRow > lastRow) {
+            return;
+        }
+
+        // Plane normal in face coordinates, for the depth along each pixel's ray
+        double planeU = axes[0][0] * planeNormalX + axes[0][1] * planeNormalY + axes[0][2] * planeNormalZ;
+        double planeV = axes[1][0] * planeNormalX + axes[1][1] * planeNormalY + axes[1][2] * planeNormalZ;
+        double planeW = axes[2][0] * planeNormalX + axes[2][1] * planeNormalY + axes[2][2] * planeNormalZ;
+
+        // The clipped outline is convex, so a pixel center is inside when it is on the same side of every edge
+        double orientation = 0;
+        for (int vertex = 0; vertex < count; vertex++) {
+            int next = (vertex + 1) % count;
+            orientation += projectedU[vertex] * projectedV[next] - projectedU[next] * projectedV[vertex];
+        }
+        double sign = orientation >= 0 ? 1 : -1;
+
+        for (int row = firstRow; row <= lastRow; row++) {
+            double v = faceMinV[face] + (row + 0.5) * pixelSize;
+            for (int column = firstColumn; column <= lastColumn; column++) {
+                double u = -1 + (column + 0.5) * pixelSize;
+                boolean inside = true;
+                for (int vertex = 0; vertex < count && inside; vertex++) {
+                    int next = (vertex + 1) % count;
+                    double edge = (projectedU[next] - projectedU[vertex]) * (v - projectedV[vertex])
+                            - (projectedV[next] - projectedV[vertex]) * (u - projectedU[vertex]);
+                    inside = sign * edge >= 0;
+                }
+                if (!inside) {
+                    continue;
+                }
+
+                // Ray-plane depth along d = (u, v, 1)
+                double distance = planeOffset / (planeU * u + planeV * v + planeW);
+                int pixel = faceOffset[face] + row * resolution + column;
+                if (distance > 0 && distance < depth[pixel]) {
+                    depth[pixel] = distance;
+                    items[pixel] = item;
+                }
+            }
+        }
+    }
+
+    // Sutherland-Hodgman clip of a polygon to w >= EPSILON
+    private static double[][] clip(double[][] polygon) {
+        double[][] output = new double[polygon.length + 1][];
+        int count = 0;
+        for (int vertex = 0; vertex < polygon.length; vertex++) {
+            double[] current = polygon[vertex];
+            double[] next = polygon[(vertex + 1) % polygon.length];
+            boolean currentIn = current[2] >= EPSILON;
+            boolean nextIn = next[2] >= EPSILON;
+            if (currentIn) {
+                output[count++] = current;
+            }
+            if (currentIn != nextIn) {
+                double t = (EPSILON - current[2]) / (next[2] - current[2]);
+                output[count++] = new double[]{
+                        current[0] + t * (next[0] - current[0]),
+                        current[1] + t * (next[1] - current[1]),
+                        EPSILON};
+            }
+        }
+        return Arrays.copyOf(output, count);
+    }
+
+    double[] getReceiverContributions() {
+        return receiverContributions;
+    }
+
+    // Hemicubes rendered: one per emitter side that radiates
+    long getHemicubes() {
+        return (long) emitter.getSize() * (oneSided ? 1 : 2);
+    }
+
+    String getReport() {
+        int seen = 0;
+        for (int receiverIndex = 0; receiverIndex < receiverCount; receiverIndex++) {
+            if (receiverContributions[receiverIndex] > 0) {
+                seen++;
+            }
+        }
+        return "Hemicube engine: " + resolution + " x " + resolution + " top face, " + pixelCount + " pixels per side | "
+                + seen + " of " + receiverCount + " receivers seen";
+    }
+}
@@ -0,0 +1,256 @@
+// Hierarchical view factor engine running on the CPU
+// Walks cluster trees over the emitter and receiver together, starting from the pair of roots.
+// A cluster pair is evaluated once, as two patches, when nothing can block it and its error estimate fits the tolerance.
+// The estimate is the second-order term of expanding the member pairs' kernel about the two cluster centers and mean
+// normals, which is the leading error of the patch evaluation, plus bounds on what that expansion misses.
+// Otherwise the larger cluster is split; pairs of single tessellations, and small pairs a blocker may partly hide,
+// get the same exact test as the kernel.
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.IntStream;
+
+public class HierarchicalCalculator {
+
+    private final PairEvaluator evaluator;
+    private final ClusterTree emitterTree;
+    private final ClusterTree receiverTree;
+    private final double tolerance;
+    private final double emitterArea;
+    private final double receiverArea;
+
+    private final LongAdder clusterPairs = new LongAdder();
+    private final LongAdder leafPairs = new LongAdder();
+    private double viewFactor;
+    private double estimatedError; // Sum of the accepted cluster pairs' estimates, on the view factor
+
+    // Partly hidden cluster pairs with at most this many member pairs, and fewer blockers in their hull, are
+    // evaluated member by member against those blockers
+    private static final int DIRECT_PAIRS = 16384;
+    private static final int DIRECT_BLOCKERS = 1024;
+    private final ThreadLocal<int[]> blockerScratch = ThreadLocal.withInitial(() -> new int[DIRECT_BLOCKERS]);
+
+    // Third-order Taylor term of cos * cos / r^2, relative to its largest value, per cluster
+    // (extent / distance + normal deviation) * (spread / distance)^2, spread being the RMS member offset. Set so that
+    // the estimates accepted on parallel squares stay a little above the error measured against FORK_JOIN
+    private static final double THIRD_ORDER = 10;
+
+    private static final double PI = 3.141592653589793238462643383279502884197169399375105820974944592307816406286d;
+
+    public HierarchicalCalculator(Geometry emitter, Geometry receiver, Geometry block, EngineOptions options) {
+        evaluator = new PairEvaluator(emitter, receiver, block, options.hostBVH);
+        emitterTree = new ClusterTree(emitter);
+        receiverTree = new ClusterTree(receiver);
+        tolerance = options.hierarchicalTolerance;
+        emitterArea = emitterTree.getNodeCount() > 0 ? emitterTree.getArea(0) : 0;
+        receiverArea = receiverTree.getNodeCount() > 0 ? receiverTree.getArea(0) : 0;
+    }
+
+    public double calculate() {
+        if (emitterTree.getNodeCount() == 0 || receiverTree.getNodeCount() == 0) {
+            return 0;
+        }
+        double[] sum = new double[2]; // Contribution, estimated error
+
+        // Open the top of both trees on this thread until there is enough independent work to share out
+        Deque<int[]> frontier = new ArrayDeque<>();
+        frontier.add(new int[]{0, 0});
+        int target = 16 * Runtime.getRuntime().availableProcessors();
+        while (!frontier.isEmpty() && frontier.size() < target) {
+            visit(frontier.poll(), frontier, sum);
+        }
+
+        // Every frontier pair sums into its own slot and the slots are added in order, so the sum is reproducible
+        List<int[]> work = new ArrayList<>(frontier);
+        double[][] workSums = new double[work.size()][2];
+        IntStream.range(0, work.size()).parallel().forEach(item -> {
+            Deque<int[]> pending = new ArrayDeque<>();
+            pending.push(work.get(item));
+            while (!pending.isEmpty()) {
+                visit(pending.pop(), pending, workSums[item]);
+            }
+        });
+        for (double[] workSum : workSums) {
+            sum[0] += workSum[0];
+            sum[1] += workSum[1];
+        }
+
+        viewFactor = sum[0] / emitterArea;
+        estimatedError = sum[1] / emitterArea;
+        return viewFactor;
+    }
+
+    // Either adds the contribution of the cluster pair or queues the pairs of the split cluster
+    private void visit(int[] pair, Deque<int[]> pending, double[] sum) {
+        int emitterNode = pair[0];
+        int receiverNode = pair[1];
+        boolean emitterLeaf = emitterTree.isLeaf(emitterNode);
+        boolean receiverLeaf = receiverTree.isLeaf(receiverNode);
+
+        if (emitterLeaf && receiverLeaf) {
+            sum[0] += evaluator.contribution(emitterTree.getTessellation(emitterNode), receiverTree.getTessellation(receiverNode));
+            leafPairs.increment();
+            return;
+        }
+
+        double rayX = receiverTree.getCenterX(receiverNode) - emitterTree.getCenterX(emitterNode);
+        double rayY = receiverTree.getCenterY(receiverNode) - emitterTree.getCenterY(emitterNode);
+        double rayZ = receiverTree.getCenterZ(receiverNode) - emitterTree.getCenterZ(emitterNode);
+        double rayMagnitude = PairEvaluator.vectorMagnitude(rayX, rayY, rayZ);
+        double reach = emitterTree.getRadius(emitterNode) + receiverTree.getRadius(receiverNode);
+
+        // Clusters that overlap, or that a blocker might partly hide, always need splitting. Small partly hidden pairs
+        // are finished here instead, every member pair scanning only the blockers that meet the pair's hull
+        int blockerCount = evaluator.hullBlockers(emitterTree.getBounds(emitterNode), receiverTree.getBounds(receiverNode), blockerScratch.get(), DIRECT_BLOCKERS);
+        long memberPairs = (long) emitterTree.getSize(emitterNode) * receiverTree.getSize(receiverNode);
+        if (blockerCount > 0 && blockerCount < DIRECT_BLOCKERS && memberPairs <= DIRECT_PAIRS) {
+            int[] blockers = blockerScratch.get();
+            for (int emitterMember = 0; emitterMember < emitterTree.getSize(emitterNode); emitterMember++) {
+                for (int receiverMember = 0; receiverMember < receiverTree.getSize(receiverNode); receiverMember++) {
+                    sum[0] += evaluator.contribution(emitterTree.getMember(emitterNode, emitterMember),
+                            receiverTree.getMember(receiverNode, receiverMember), blockers, blockerCount);
+                }
+            }
+            leafPairs.add(memberPairs);
+            return;
+        }
+        if (rayMagnitude > reach && blockerCount == 0) {
+            double emitterPatch = emitterTree.getArea(emitterNode);
+            double receiverPatch = receiverTree.getArea(receiverNode);
+
+            double error = errorEstimate(emitterNode, receiverNode, rayX, rayY, rayZ, rayMagnitude, reach);
+
+            // Each pair gets the share of the tolerance its areas cover, so the accepted errors add up to at most
+            // the tolerance on the view factor
+            if (error <= tolerance * emitterPatch * receiverPatch / receiverArea) {
+                double cosThetaOne = (emitterTree.getNormalX(emitterNode) * rayX + emitterTree.getNormalY(emitterNode) * rayY
+                        + emitterTree.getNormalZ(emitterNode) * rayZ) / rayMagnitude;
+                double cosThetaTwo = (receiverTree.getNormalX(receiverNode) * rayX + receiverTree.getNormalY(receiverNode) * rayY
+                        + receiverTree.getNormalZ(receiverNode) * rayZ) / rayMagnitude;
+                sum[0] += Math.abs(cosThetaOne) * Math.abs(cosThetaTwo) * emitterPatch * receiverPatch / (PI * rayMagnitude * rayMagnitude);
+                sum[1] += error;
+                clusterPairs.increment();
+                return;
+            }
+        }
+
+        // Split the larger cluster
+        if (!emitterLeaf && (receiverLeaf || emitterTree.getRadius(emitterNode) >= receiverTree.getRadius(receiverNode))) {
+            pending.push(new int[]{emitterTree.getLeft(emitterNode), receiverNode});
+            pending.push(new int[]{emitterTree.getRight(emitterNode), receiverNode});
+        }
+        else {
+            pending.push(new int[]{emitterNode, receiverTree.getLeft(receiverNode)});
+            pending.push(new int[]{emitterNode, receiverTree.getRight(receiverNode)});
+        }
+    }
+
+    // Error of evaluating a cluster pair as two patches, in the units of the sum (area times view factor)
+    // The member pair kernel K = (n.r)(m.r) / (pi |r|^4), r = y - x, is linear in the normals n and m. About the
+    // area-weighted centers and mean normals every first-order term sums to zero, as do the second-order terms mixing
+    // the two clusters, so what is left is each cluster's own position moment S against the Hessian H of K, and its
+    // normal-position covariance C against the mixed derivative J of K:
+    //   A1 A2 (S1 + S2) : H / 2 - A1 A2 C1 : J1 + A1 A2 C2 : J2
+    // The absolute values of the cosines are only linear while no member's cosine changes sign; where one could, the
+    // members near the grazing direction are bounded instead. The third-order term is bounded by the extents
+    private double errorEstimate(int emitterNode, int receiverNode, double rayX, double rayY, double rayZ, double rayMagnitude, double reach) {
+        double emitterPatch = emitterTree.getArea(emitterNode);
+        double receiverPatch = receiverTree.getArea(receiverNode);
+        double[] ray = {rayX, rayY, rayZ};
+        double[] emitterNormal = {emitterTree.getNormalX(emitterNode), emitterTree.getNormalY(emitterNode), emitterTree.getNormalZ(emitterNode)};
+        double[] receiverNormal = {receiverTree.getNormalX(receiverNode), receiverTree.getNormalY(receiverNode), receiverTree.getNormalZ(receiverNode)};
+        double emitterDotRay = dot(emitterNormal, ray);
+        double receiverDotRay = dot(receiverNormal, ray);
+
+        double distanceSquared = rayMagnitude * rayMagnitude;
+        double falloff = 1 / (distanceSquared * distanceSquared); // |r|^-4
+        double[] falloffGradient = new double[3];
+        for (int axis = 0; axis < 3; axis++) {
+            falloffGradient[axis] = -4 * falloff * ray[axis] / distanceSquared;
+        }
+
+        // (S1 + S2) : H, with H the Hessian of (n.r)(m.r) |r|^-4 over r
+        double[] moment = new double[6];
+        for (int entry = 0; entry < 6; entry++) {
+            moment[entry] = emitterTree.getMoment(emitterNode)[entry] + receiverTree.getMoment(receiverNode)[entry];
+        }
+        double trace = moment[0] + moment[1] + moment[2];
+        double falloffHessian = -4 * falloff * trace / distanceSquared + 24 * falloff * symmetric(moment, ray, ray) / (distanceSquared * distanceSquared);
+        double momentTerm = emitterDotRay * receiverDotRay * falloffHessian
+                + 2 * falloff * symmetric(moment, emitterNormal, receiverNormal)
+                + 2 * receiverDotRay * symmetric(moment, emitterNormal, falloffGradient)
+                + 2 * emitterDotRay * symmetric(moment, receiverNormal, falloffGradient);
+
+        // C : J, with J[k][l] the derivative of K's normal gradient r_k (m.r) |r|^-4 over r_l. Moving the emitter
+        // moves r the other way
+        double[] emitterCovariance = emitterTree.getCovariance(emitterNode);
+        double[] receiverCovariance = receiverTree.getCovariance(receiverNode);
+        double emitterTerm = receiverDotRay * falloff * (emitterCovariance[0] + emitterCovariance[4] + emitterCovariance[8])
+                + falloff * general(emitterCovariance, ray, receiverNormal)
+                + receiverDotRay * general(emitterCovariance, ray, falloffGradient);
+        double receiverTerm = emitterDotRay * falloff * (receiverCovariance[0] + receiverCovariance[4] + receiverCovariance[8])
+                + falloff * general(receiverCovariance, ray, emitterNormal)
+                + emitterDotRay * general(receiverCovariance, ray, falloffGradient);
+
+        double secondOrder = Math.abs(momentTerm / 2 - emitterTerm + receiverTerm) * emitterPatch * receiverPatch / PI;
+
+        // Largest contribution any member pair could make. A member's cosine is within its normal's deviation plus
+        // the turn of the ray, at most 2 reach / distance, of the cluster's
+        double bound = emitterPatch * receiverPatch / (PI * (rayMagnitude - reach) * (rayMagnitude - reach));
+        double turn = 2 * reach / rayMagnitude;
+        double emitterSlack = emitterTree.getNormalDeviation(emitterNode) + turn;
+        double receiverSlack = receiverTree.getNormalDeviation(receiverNode) + turn;
+        double grazing = 0;
+        if (Math.abs(emitterDotRay) / rayMagnitude <= emitterSlack) {
+            grazing += 2 * emitterSlack;
+        }
+        if (Math.abs(receiverDotRay) / rayMagnitude <= receiverSlack) {
+            grazing += 2 * receiverSlack;
+        }
+        double emitterSpread = emitterTree.getMoment(emitterNode)[0] + emitterTree.getMoment(emitterNode)[1] + emitterTree.getMoment(emitterNode)[2];
+        double receiverSpread = receiverTree.getMoment(receiverNode)[0] + receiverTree.getMoment(receiverNode)[1] + receiverTree.getMoment(receiverNode)[2];
+        double thirdOrder = THIRD_ORDER * ((emitterTree.getRadius(emitterNode) / rayMagnitude + emitterTree.getNormalDeviation(emitterNode)) * emitterSpread
+                + (receiverTree.getRadius(receiverNode) / rayMagnitude + receiverTree.getNormalDeviation(receiverNode)) * receiverSpread) / distanceSquared;
+
+        return secondOrder + bound * (grazing + thirdOrder);
+    }
+
+    private static double dot(double[] first, double[] second) {
+        return first[0] * second[0] + first[1] * second[1] + first[2] * second[2];
+    }
+
+    // p^T M q for a symmetric M stored as xx, yy, zz, xy, xz, yz
+    private static double symmetric(double[] matrix, double[] p, double[] q) {
+        return matrix[0] * p[0] * q[0] + matrix[1] * p[1] * q[1] + matrix[2] * p[2] * q[2]
+                + matrix[3] * (p[0] * q[1] + p[1] * q[0])
+                + matrix[4] * (p[0] * q[2] + p[2] * q[0])
+                + matrix[5] * (p[1] * q[2] + p[2] * q[1]);
+    }
+
+    // p^T M q for a 3 x 3 M stored row by row
+    private static double general(double[] matrix, double[] p, double[] q) {
+        double value = 0;
+        for (int row = 0; row < 3; row++) {
+            for (int column = 0; column < 3; column++) {
+                value += p[row] * matrix[row * 3 + column] * q[column];
+            }
+        }
+        return value;
+    }
+
+    // Cluster and tessellation pairs evaluated
+    long getEvaluations() {
+        return clusterPairs.sum() + leafPairs.sum();
+    }
+
+    String getReport() {
+        long pairs = clusterPairs.sum() + leafPairs.sum();
+        long facetPairs = (long) evaluator.getEmitter().getSize() * evaluator.getReceiver().getSize();
+        return "Hierarchical engine: tolerance " + tolerance + " | " + clusterPairs.sum() + " cluster pairs, "
+                + leafPairs.sum() + " tessellation pairs | " + pairs + " evaluations for " + facetPairs + " tessellation pairs"
+                + " | Estimated error " + estimatedError;
+    }
+}
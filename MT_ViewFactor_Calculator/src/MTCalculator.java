@@ -4,8 +4,11 @@
 
 import com.aparapi.Kernel;
 import com.aparapi.Range;
+import com.aparapi.device.Device;
+import com.aparapi.device.OpenCLDevice;
+import com.aparapi.internal.kernel.KernelManager;
 import java.lang.Math;
-import java.util.function.Consumer;
+import java.util.Arrays;
 
 public class MTCalculator extends Kernel {
 
@@ -57,15 +60,128 @@ public class MTCalculator extends Kernel {
     private final double[] receiverAreas;
 
     private int emitterIndex;
+    private int emitterLimit; // End of the emitter range being calculated. Rows past it are written as zero
+
+    // Device the launches run on. Null leaves the choice to KernelManager
+    private final Device device;
+
+    // Pair launch: emitter rows along the second dimension, receivers along the first
+    private static final int PAIR_LOCAL_WIDTH = 16;
+    private static final int PAIR_LOCAL_HEIGHT = 16;
+    private final boolean pairLaunch;
+    private final int pairsPerLaunch;
+    private int receiverStride; // Receiver count padded up to a multiple of the local width
+    private final int pairLocalHeight; // Work-group rows the launch device takes, PAIR_LOCAL_HEIGHT at most
+    private static final int LAUNCH_BYTES_PER_SLOT = 8; // Result double
+    private int emitterOffset; // First emitter row of the current launch
+    private int launches;
+
+    // Tiled blocking: each work-group stages blocking triangles in local memory, one tile at a time
+    private final boolean tiledBlocking;
+    private final String tiledOverride; // Why requested tiled blocking is off, or null
+    private final int tileSize;
+    @Local private final double[] tileVertexAX;
+    @Local private final double[] tileVertexAY;
+    @Local private final double[] tileVertexAZ;
+    @Local private final double[] tileEdgeBAX;
+    @Local private final double[] tileEdgeBAY;
+    @Local private final double[] tileEdgeBAZ;
+    @Local private final double[] tileEdgeCAX;
+    @Local private final double[] tileEdgeCAY;
+    @Local private final double[] tileEdgeCAZ;
+
+    // Device reduction: a second pass sums every emitter row of the pair launch into rowSums, one work item per row,
+    // so only the row sums cross the bus. Each row is summed in receiver order, as the host sums copied-back rows
+    private final boolean deviceReduction;
+    private final boolean retrievePairResults;
+    private ViewFactorMatrix matrix; // Per-facet view factors are written here when set
+    private boolean reduceOnDevice; // Set per launch. Java fallback devices have no bus to save
+    private boolean rowSumPass;
+    private final double[] rowSums; // One per row of the pair launch
+
+    // Adaptive blocker order: the last occluding blocker of every emitter is tested first,
+    // the rest follow blockOrder, which is re-sorted by hit count between launches
+    private final boolean adaptiveBlockerOrder;
+    private final int[] lastHit;
+    private final int[] blockOrder;
+    private final int[] blockHits;
+    private final int[] orderScratch; // Host only, for the sort
+    private final int[] digitCounts = new int[257];
+    private int reorders;
+
+    // Blocker BVH, flattened depth-first and traversed without a stack
+    private final boolean blockerBVH;
+    private final int bvhNodeCount;
+    private final double[] bvhMinX;
+    private final double[] bvhMinY;
+    private final double[] bvhMinZ;
+    private final double[] bvhMaxX;
+    private final double[] bvhMaxY;
+    private final double[] bvhMaxZ;
+    private final int[] bvhSkip;
+    private final int[] bvhFirst;
+    private final int[] bvhTriangleCount;
+    private final int[] bvhTriangles;
+
+    // Blocker compaction: each emitter cluster scans only the blockers that can lie between it and the receiver
+    private final boolean blockerCompaction;
+    private final int compactClusterCount;
+    private final int[] emitterCluster;
+    private final int[] compactOffsets;
+    private final int[] compactCount;
+    private final int[] compactBlockers;
+
+    // Voxel pre-pass: every work item walks its pair's segment through the voxel grid before the exact test
+    private static final int VOXEL_CLEAR = 0;
+    private static final int VOXEL_BLOCKED = 1;
+    private static final int VOXEL_AMBIGUOUS = 2;
+    private static final int VOXEL_STATE_EMPTY = 0;
+    private static final int VOXEL_STATE_SURFACE = 1;
+    private static final int VOXEL_STATE_SOLID = 2;
+    private final boolean voxelPrePass;
+    private final String voxelOverride; // Why a requested pre-pass is off, or null
+    private final VoxelVisibility voxelGrid;
+    private final byte[] voxelStates;
+    private final int voxelResolutionX;
+    private final int voxelResolutionY;
+    private final int voxelResolutionZ;
+    private final double voxelMinX;
+    private final double voxelMinY;
+    private final double voxelMinZ;
+    private final double voxelCellSize;
+    private final int[] voxelClassCounts = new int[3]; // Counted on the device, cleared after every launch
+    private final long[] pairClassCounts = new long[3];
+    private double voxelSeconds; // Building the grid on the host
+
+    // One-sided mode: pairs whose surfaces face away from each other contribute nothing
+    private final boolean oneSided;
+
     private static final double PI = 3.141592653589793238462643383279502884197169399375105820974944592307816406286d;
 
     public interface KernelComplete {
         double onComplete();
     }
 
+    // Receives rows of one launch, starting at emitter row firstEmitter: either the pair results, stride values per
+    // row, or the row sums of a device reduction, stride 1. Either way every emitter row is summed on its own, so the
+    // total does not depend on where launches start, which differs between devices and runs
+    // The consumer may keep values; it returns the array of the same length the next launch writes into
+    public interface LaunchConsumer {
+        double[] accept(int firstEmitter, int rows, int stride, double[] values);
+    }
+
 
     public MTCalculator(Geometry emitter, Geometry receiver, Geometry block) {
+        this(emitter, receiver, block, new EngineOptions());
+    }
+
+    public MTCalculator(Geometry emitter, Geometry receiver, Geometry block, EngineOptions options) {
+        this(emitter, receiver, block, options, null);
+    }
+
+    public MTCalculator(Geometry emitter, Geometry receiver, Geometry block, EngineOptions options, Device device) {
         // Copy over constant final data
+        this.device = device;
         this.emitter = emitter;
         this.receiver = receiver;
         this.block = block;
@@ -108,14 +224,185 @@ public class MTCalculator extends Kernel {
         receiverCenterZ = receiver.getCenterZ();
         receiverAreas = receiver.getArea();
 
-        result = new double[receiverTessellations];
+        pairLaunch = options.pairLaunch;
+        pairsPerLaunch = options.pairsPerLaunch;
+        receiverStride = roundUp(receiverTessellations, PAIR_LOCAL_WIDTH);
+
+        // The launch shape and size follow the limits of the device the launches will run on
+        Device launchDevice = device != null ? device : KernelManager.instance().bestDevice();
+
+        // Java devices run a work-group as one thread per work item, so staging tiles there only adds barriers
+        tiledBlocking = options.tiledBlocking && launchDevice instanceof OpenCLDevice;
+        tiledOverride = options.tiledBlocking && !tiledBlocking ? "the launch device is not an OpenCL device, untiled loop used" : null;
+        tileSize = Math.max(1, options.tileSize);
+        tileVertexAX = new double[tileSize];
+        tileVertexAY = new double[tileSize];
+        tileVertexAZ = new double[tileSize];
+        tileEdgeBAX = new double[tileSize];
+        tileEdgeBAY = new double[tileSize];
+        tileEdgeBAZ = new double[tileSize];
+        tileEdgeCAX = new double[tileSize];
+        tileEdgeCAY = new double[tileSize];
+        tileEdgeCAZ = new double[tileSize];
+
+        int localHeight = pairLocalHeight(launchDevice, PAIR_LOCAL_WIDTH, PAIR_LOCAL_HEIGHT);
+
+        if (pairLaunch) {
+            // Whole work-group rows within the slot budget; shorter work-groups when one group row is already
+            // over it. A single row wider than the budget still has to run as one launch. Padded slots stay zero
+            long budgetRows = Math.max(1, launchSlotBudget(launchDevice, pairsPerLaunch) / receiverStride);
+            while (localHeight > 1 && localHeight > budgetRows) {
+                localHeight /= 2;
+            }
+            int rows = (int) Math.min(roundUp(emitterTessellations, localHeight), budgetRows / localHeight * localHeight);
+            result = new double[Math.max(localHeight, rows) * receiverStride];
+        }
+        else {
+            result = new double[receiverTessellations];
+        }
+        pairLocalHeight = localHeight;
+
+        deviceReduction = options.deviceReduction && pairLaunch;
+        retrievePairResults = options.retrievePairResults;
+        rowSums = new double[pairLaunch ? result.length / receiverStride : 1];
+
+        adaptiveBlockerOrder = options.adaptiveBlockerOrder;
+        lastHit = new int[Math.max(1, emitterTessellations)];
+        Arrays.fill(lastHit, -1);
+        blockOrder = new int[Math.max(1, blockTessellations)];
+        for (int blockIndex = 0; blockIndex < blockOrder.length; blockIndex++) {
+            blockOrder[blockIndex] = blockIndex;
+        }
+        blockHits = new int[blockOrder.length];
+        orderScratch = new int[adaptiveBlockerOrder ? blockOrder.length : 0];
+
+        blockerBVH = options.blockerBVH;
+        // Without the BVH the kernel still needs (empty) arrays to bind
+        BoundingVolumeHierarchy bvh = new BoundingVolumeHierarchy(blockerBVH ? block : new Geometry(block, new int[0]));
+        bvhNodeCount = bvh.getNodeCount();
+        bvhMinX = bvh.getNodeMinX();
+        bvhMinY = bvh.getNodeMinY();
+        bvhMinZ = bvh.getNodeMinZ();
+        bvhMaxX = bvh.getNodeMaxX();
+        bvhMaxY = bvh.getNodeMaxY();
+        bvhMaxZ = bvh.getNodeMaxZ();
+        bvhSkip = bvh.getNodeSkip();
+        bvhFirst = bvh.getNodeFirst();
+        bvhTriangleCount = bvh.getNodeTriangleCount();
+        bvhTriangles = bvh.getTriangles();
+
+        oneSided = options.oneSided;
+
+        // Built over no emitters when off, as the kernel still needs arrays to bind
+        blockerCompaction = options.blockerCompaction && !blockerBVH;
+        BlockerCompaction compaction = new BlockerCompaction(blockerCompaction ? emitter : new Geometry(emitter, new int[0]), receiver, block, options.compactionClusterSize);
+        compactClusterCount = compaction.getClusterCount();
+        emitterCluster = compaction.getEmitterCluster();
+        compactOffsets = compaction.getClusterOffsets();
+        compactCount = compaction.getClusterCounts();
+        compactBlockers = compaction.getBlockers();
+
+        // The classes are only read by the untiled pair launch
+        voxelPrePass = options.voxelPrePass && pairLaunch && !tiledBlocking;
+        voxelOverride = !options.voxelPrePass || voxelPrePass ? null : !pairLaunch ? "per-emitter launch" : "tiledBlocking";
+        if (voxelPrePass) {
+            Timer voxelTimer = new Timer();
+            voxelTimer.start();
+            voxelGrid = new VoxelVisibility(block, options.voxelResolution);
+            voxelSeconds = voxelTimer.stop();
+            voxelStates = voxelGrid.getVoxels();
+            voxelResolutionX = voxelGrid.getResolutionX();
+            voxelResolutionY = voxelGrid.getResolutionY();
+            voxelResolutionZ = voxelGrid.getResolutionZ();
+            voxelMinX = voxelGrid.getMinX();
+            voxelMinY = voxelGrid.getMinY();
+            voxelMinZ = voxelGrid.getMinZ();
+            voxelCellSize = voxelGrid.getCellSize();
+        }
+        else {
+            voxelGrid = null;
+            voxelStates = new byte[1];
+            voxelResolutionX = 1;
+            voxelResolutionY = 1;
+            voxelResolutionZ = 1;
+            voxelMinX = 0;
+            voxelMinY = 0;
+            voxelMinZ = 0;
+            voxelCellSize = 1;
+        }
     }
 
     //Run on the GPU
     @Override
     public void run() { //gets called in CalculateVF when we call the execute method for the Kernel
 
-        int receiverIndex = getGlobalId();
+        if (rowSumPass) {
+            int row = getGlobalId();
+            rowSums[row] = rowSum(row * receiverStride);
+        }
+        else if (pairLaunch) {
+            // Both facet indices come from the global id, so every launch covers a block of emitter rows
+            int receiverIndex = getGlobalId(0);
+            int emitterRow = getGlobalId(1);
+            int pairEmitter = emitterOffset + emitterRow;
+            int slot = emitterRow * receiverStride + receiverIndex;
+            double pairResult = 0;
+
+            if (tiledBlocking) {
+                // Padding work items still help load the tiles, so they cannot leave early
+                int active = 0;
+                if (receiverIndex < receiverTessellations && pairEmitter < emitterLimit) {
+                    active = 1;
+                }
+                pairResult = tiledContribution(min(pairEmitter, emitterTessellations - 1), min(receiverIndex, receiverTessellations - 1), active);
+            }
+            else if (receiverIndex < receiverTessellations && pairEmitter < emitterLimit) {
+                int pairClass = VOXEL_AMBIGUOUS;
+                if (voxelPrePass) {
+                    pairClass = voxelClass(pairEmitter, receiverIndex);
+                    atomicAdd(voxelClassCounts, pairClass, 1);
+                }
+
+                // Only the ambiguous pairs need the exact intersection tests
+                if (pairClass == VOXEL_CLEAR) {
+                    pairResult = clearContribution(pairEmitter, receiverIndex);
+                }
+                else if (pairClass == VOXEL_AMBIGUOUS) {
+                    pairResult = contribution(pairEmitter, receiverIndex);
+                }
+            }
+            result[slot] = pairResult;
+        }
+        else if (tiledBlocking) {
+            int receiverIndex = getGlobalId();
+            result[receiverIndex] = tiledContribution(emitterIndex, receiverIndex, 1);
+        }
+        else {
+            int receiverIndex = getGlobalId();
+            result[receiverIndex] = contribution(emitterIndex, receiverIndex);
+        }
+    }
+
+    // Compensated (Neumaier) sum of one row of pair results, in receiver order, as ResultPipeline sums rows on the host
+    private double rowSum(int offset) {
+        double partial = 0;
+        double compensation = 0;
+        for (int index = offset; index < offset + receiverTessellations; index++) {
+            double value = result[index];
+            double total = partial + value;
+            if (abs(partial) >= abs(value)) {
+                compensation = compensation + ((partial - total) + value);
+            }
+            else {
+                compensation = compensation + ((value - total) + partial);
+            }
+            partial = total;
+        }
+        return partial + compensation;
+    }
+
+    // View factor contribution of a single emitter/receiver pair
+    private double contribution(int emitterIndex, int receiverIndex) {
 
         // Calculate the ray from the emitter to the destination tessellation.
         double rayX = receiverCenterX[receiverIndex] - emitterCenterX[emitterIndex];
@@ -123,15 +410,380 @@ public class MTCalculator extends Kernel {
         double rayZ = receiverCenterZ[receiverIndex] - emitterCenterZ[emitterIndex];
         double rayMagnitude = vectorMagnitude(rayX, rayY, rayZ);
 
+        // Facing is far cheaper than the blocker scan, so it is settled first
+        if (oneSided && facing(emitterIndex, receiverIndex, rayX, rayY, rayZ) == 0) {
+            return 0;
+        }
+
+        // If intersecting geometry exists, the contributed view factor is zero.
+        if (occluded(emitterIndex, rayX, rayY, rayZ, rayMagnitude) == 1) {
+            return 0;
+        }
+
+        return unblockedContribution(emitterIndex, receiverIndex, rayX, rayY, rayZ, rayMagnitude);
+    }
+
+    // View factor contribution of a pair the voxel pre-pass found unobstructed
+    private double clearContribution(int emitterIndex, int receiverIndex) {
+        double rayX = receiverCenterX[receiverIndex] - emitterCenterX[emitterIndex];
+        double rayY = receiverCenterY[receiverIndex] - emitterCenterY[emitterIndex];
+        double rayZ = receiverCenterZ[receiverIndex] - emitterCenterZ[emitterIndex];
+        if (oneSided && facing(emitterIndex, receiverIndex, rayX, rayY, rayZ) == 0) {
+            return 0;
+        }
+        return unblockedContribution(emitterIndex, receiverIndex, rayX, rayY, rayZ, vectorMagnitude(rayX, rayY, rayZ));
+    }
+
+    // Clear, blocked or ambiguous: the voxels the emitter-to-receiver segment crosses
+    // A segment through empty voxels only is clear. A closed shell is crossed on both sides of a solid voxel, and one
+    // of those faces points at the ray, so a segment through a solid voxel is blocked if both ends lie in empty space
+    private int voxelClass(int emitterIndex, int receiverIndex) {
+        double fromX = emitterCenterX[emitterIndex];
+        double fromY = emitterCenterY[emitterIndex];
+        double fromZ = emitterCenterZ[emitterIndex];
+        double toX = receiverCenterX[receiverIndex];
+        double toY = receiverCenterY[receiverIndex];
+        double toZ = receiverCenterZ[receiverIndex];
+        double rayX = toX - fromX;
+        double rayY = toY - fromY;
+        double rayZ = toZ - fromZ;
+
+        // Clip the segment to the grid
+        double near = 0;
+        double far = 1;
+        int inside = 1;
+        double maxX = voxelMinX + voxelResolutionX * voxelCellSize;
+        double maxY = voxelMinY + voxelResolutionY * voxelCellSize;
+        double maxZ = voxelMinZ + voxelResolutionZ * voxelCellSize;
+        if (rayX == 0) {
+            if (fromX < voxelMinX || fromX > maxX) {
+                inside = 0;
+            }
+        }
+        else {
+            double first = (voxelMinX - fromX) / rayX;
+            double second = (maxX - fromX) / rayX;
+            near = max(near, min(first, second));
+            far = min(far, max(first, second));
+        }
+        if (rayY == 0) {
+            if (fromY < voxelMinY || fromY > maxY) {
+                inside = 0;
+            }
+        }
+        else {
+            double first = (voxelMinY - fromY) / rayY;
+            double second = (maxY - fromY) / rayY;
+            near = max(near, min(first, second));
+            far = min(far, max(first, second));
+        }
+        if (rayZ == 0) {
+            if (fromZ < voxelMinZ || fromZ > maxZ) {
+                inside = 0;
+            }
+        }
+        else {
+            double first = (voxelMinZ - fromZ) / rayZ;
+            double second = (maxZ - fromZ) / rayZ;
+            near = max(near, min(first, second));
+            far = min(far, max(first, second));
+        }
+        if (inside == 0 || !(near <= far)) {
+            return VOXEL_CLEAR;
+        }
+
+        // Amanatides-Woo walk through the voxels the clipped segment crosses
+        double startX = fromX + rayX * near;
+        double startY = fromY + rayY * near;
+        double startZ = fromZ + rayZ * near;
+        int x = voxelCell(startX, voxelMinX, voxelResolutionX);
+        int y = voxelCell(startY, voxelMinY, voxelResolutionY);
+        int z = voxelCell(startZ, voxelMinZ, voxelResolutionZ);
+
+        int stepX = rayX > 0 ? 1 : -1;
+        int stepY = rayY > 0 ? 1 : -1;
+        int stepZ = rayZ > 0 ? 1 : -1;
+        double deltaX = rayX == 0 ? Double.MAX_VALUE : voxelCellSize / abs(rayX);
+        double deltaY = rayY == 0 ? Double.MAX_VALUE : voxelCellSize / abs(rayY);
+        double deltaZ = rayZ == 0 ? Double.MAX_VALUE : voxelCellSize / abs(rayZ);
+        double nextX = rayX == 0 ? Double.MAX_VALUE : near + (voxelMinX + (x + (stepX > 0 ? 1 : 0)) * voxelCellSize - startX) / rayX;
+        double nextY = rayY == 0 ? Double.MAX_VALUE : near + (voxelMinY + (y + (stepY > 0 ? 1 : 0)) * voxelCellSize - startY) / rayY;
+        double nextZ = rayZ == 0 ? Double.MAX_VALUE : near + (voxelMinZ + (z + (stepZ > 0 ? 1 : 0)) * voxelCellSize - startZ) / rayZ;
+
+        int surface = 0;
+        int solid = 0;
+        int walking = 1;
+        while (walking == 1 && x >= 0 && y >= 0 && z >= 0 && x < voxelResolutionX && y < voxelResolutionY && z < voxelResolutionZ) {
+            int voxel = voxelStates[(z * voxelResolutionY + y) * voxelResolutionX + x];
+            if (voxel == VOXEL_STATE_SOLID) {
+                solid = 1;
+            }
+            else if (voxel == VOXEL_STATE_SURFACE) {
+                surface = 1;
+            }
+
+            if (nextX <= nextY && nextX <= nextZ) {
+                if (nextX > far) {
+                    walking = 0;
+                }
+                else {
+                    x += stepX;
+                    nextX += deltaX;
+                }
+            }
+            else if (nextY <= nextZ) {
+                if (nextY > far) {
+                    walking = 0;
+                }
+                else {
+                    y += stepY;
+                    nextY += deltaY;
+                }
+            }
+            else {
+                if (nextZ > far) {
+                    walking = 0;
+                }
+                else {
+                    z += stepZ;
+                    nextZ += deltaZ;
+                }
+            }
+        }
+
+        if (solid == 1 && voxelStateAt(fromX, fromY, fromZ) == VOXEL_STATE_EMPTY && voxelStateAt(toX, toY, toZ) == VOXEL_STATE_EMPTY) {
+            return VOXEL_BLOCKED;
+        }
+        if (surface == 0 && solid == 0) {
+            return VOXEL_CLEAR;
+        }
+        return VOXEL_AMBIGUOUS;
+    }
+
+    private int voxelCell(double value, double low, int resolution) {
+        return max(0, min(resolution - 1, (int) floor((value - low) / voxelCellSize)));
+    }
+
+    // State of the voxel holding a point; points outside the grid are in empty space
+    private int voxelStateAt(double pointX, double pointY, double pointZ) {
+        int x = (int) floor((pointX - voxelMinX) / voxelCellSize);
+        int y = (int) floor((pointY - voxelMinY) / voxelCellSize);
+        int z = (int) floor((pointZ - voxelMinZ) / voxelCellSize);
+        if (x < 0 || y < 0 || z < 0 || x >= voxelResolutionX || y >= voxelResolutionY || z >= voxelResolutionZ) {
+            return VOXEL_STATE_EMPTY;
+        }
+        return voxelStates[(z * voxelResolutionY + y) * voxelResolutionX + x];
+    }
+
+    // Returns 1 if the emitter's front side faces the receiver's front side along the ray
+    private int facing(int emitterIndex, int receiverIndex, double rayX, double rayY, double rayZ) {
+        double emitterNormalDotRay =
+                emitterNormalX[emitterIndex] * rayX
+                        + emitterNormalY[emitterIndex] * rayY
+                        + emitterNormalZ[emitterIndex] * rayZ;
+        double receiverNormalDotRay =
+                receiverNormalX[receiverIndex] * rayX
+                        + receiverNormalY[receiverIndex] * rayY
+                        + receiverNormalZ[receiverIndex] * rayZ;
+
+        if (emitterNormalDotRay > 0 && receiverNormalDotRay < 0) {
+            return 1;
+        }
+        return 0;
+    }
+
+    // Returns 1 if any blocking tessellation lies on the ray from the emitter
+    private int occluded(int emitterIndex, double rayX, double rayY, double rayZ, double rayMagnitude) {
+
+        if (blockerBVH) {
+            return occludedBVH(emitterIndex, rayX, rayY, rayZ);
+        }
+        if (blockerCompaction) {
+            return occludedCompact(emitterIndex, rayX, rayY, rayZ);
+        }
+        if (adaptiveBlockerOrder) {
+            return occludedAdaptive(emitterIndex, rayX, rayY, rayZ, rayMagnitude);
+        }
+
         // Check if any intersecting geometry exists. Iterate through every blocking tessellation
         for (int blockIndex = 0; blockIndex < blockTessellations; blockIndex++) {
-            double intersectionDistance = intersectionDistance(blockIndex, rayX, rayY, rayZ);
-            // If intersecting geometry exists, the contributed view factor is zero.
-            if (intersectionDistance != 0 && intersectionDistance <= rayMagnitude) {
-                result[receiverIndex] = 0;
-                return;
+            double intersectionDistance = intersectionDistance(emitterIndex, blockIndex, rayX, rayY, rayZ);
+            if (intersectionDistance > 0 && intersectionDistance < 1) {
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    // Same as the linear scan, over the blockers kept for the emitter's cluster
+    private int occludedCompact(int emitterIndex, double rayX, double rayY, double rayZ) {
+        int cluster = emitterCluster[emitterIndex];
+        int first = compactOffsets[cluster];
+        for (int slot = first; slot < first + compactCount[cluster]; slot++) {
+            double intersectionDistance = intersectionDistance(emitterIndex, compactBlockers[slot], rayX, rayY, rayZ);
+            if (intersectionDistance > 0 && intersectionDistance < 1) {
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    // Stackless walk of the blocker BVH. A missed or finished node jumps to its skip index
+    private int occludedBVH(int emitterIndex, double rayX, double rayY, double rayZ) {
+        double originX = emitterCenterX[emitterIndex];
+        double originY = emitterCenterY[emitterIndex];
+        double originZ = emitterCenterZ[emitterIndex];
+
+        int node = 0;
+        while (node < bvhNodeCount) {
+            if (segmentHitsBox(node, originX, originY, originZ, rayX, rayY, rayZ) == 1) {
+                int first = bvhFirst[node];
+                int count = bvhTriangleCount[node];
+                if (count > 0) {
+                    for (int slot = first; slot < first + count; slot++) {
+                        double intersectionDistance = intersectionDistance(emitterIndex, bvhTriangles[slot], rayX, rayY, rayZ);
+                        if (intersectionDistance > 0 && intersectionDistance < 1) {
+                            return 1;
+                        }
+                    }
+                    node = bvhSkip[node];
+                }
+                else {
+                    node = node + 1;
+                }
+            }
+            else {
+                node = bvhSkip[node];
             }
         }
+        return 0;
+    }
+
+    // Slab test of the emitter-to-receiver segment against a node's bounds
+    private int segmentHitsBox(int node, double originX, double originY, double originZ, double rayX, double rayY, double rayZ) {
+        double near = 0;
+        double far = 1;
+
+        if (rayX > -1e-12 && rayX < 1e-12) {
+            if (originX < bvhMinX[node] || originX > bvhMaxX[node]) {
+                return 0;
+            }
+        }
+        else {
+            double first = (bvhMinX[node] - originX) / rayX;
+            double second = (bvhMaxX[node] - originX) / rayX;
+            near = max(near, min(first, second));
+            far = min(far, max(first, second));
+        }
+
+        if (rayY > -1e-12 && rayY < 1e-12) {
+            if (originY < bvhMinY[node] || originY > bvhMaxY[node]) {
+                return 0;
+            }
+        }
+        else {
+            double first = (bvhMinY[node] - originY) / rayY;
+            double second = (bvhMaxY[node] - originY) / rayY;
+            near = max(near, min(first, second));
+            far = min(far, max(first, second));
+        }
+
+        if (rayZ > -1e-12 && rayZ < 1e-12) {
+            if (originZ < bvhMinZ[node] || originZ > bvhMaxZ[node]) {
+                return 0;
+            }
+        }
+        else {
+            double first = (bvhMinZ[node] - originZ) / rayZ;
+            double second = (bvhMaxZ[node] - originZ) / rayZ;
+            near = max(near, min(first, second));
+            far = min(far, max(first, second));
+        }
+
+        if (near <= far) {
+            return 1;
+        }
+        return 0;
+    }
+
+    // Neighbouring receivers are usually shadowed by the same blocker, so the emitter's last hit goes first
+    // Work items of one emitter race on lastHit, which is harmless as any stored value is a valid blocker
+    private int occludedAdaptive(int emitterIndex, double rayX, double rayY, double rayZ, double rayMagnitude) {
+        int cachedBlock = lastHit[emitterIndex];
+
+        if (cachedBlock >= 0) {
+            double intersectionDistance = intersectionDistance(emitterIndex, cachedBlock, rayX, rayY, rayZ);
+            if (intersectionDistance > 0 && intersectionDistance < 1) {
+                atomicAdd(blockHits, cachedBlock, 1);
+                return 1;
+            }
+        }
+
+        for (int orderIndex = 0; orderIndex < blockTessellations; orderIndex++) {
+            int blockIndex = blockOrder[orderIndex];
+            if (blockIndex != cachedBlock) {
+                double intersectionDistance = intersectionDistance(emitterIndex, blockIndex, rayX, rayY, rayZ);
+                if (intersectionDistance > 0 && intersectionDistance < 1) {
+                    lastHit[emitterIndex] = blockIndex;
+                    atomicAdd(blockHits, blockIndex, 1);
+                    return 1;
+                }
+            }
+        }
+        return 0;
+    }
+
+    // Same as contribution(), but the blocking triangles are read from work-group local tiles
+    // Every work item of the group must call this, as the tiles are loaded cooperatively
+    private double tiledContribution(int emitterIndex, int receiverIndex, int active) {
+
+        double rayX = receiverCenterX[receiverIndex] - emitterCenterX[emitterIndex];
+        double rayY = receiverCenterY[receiverIndex] - emitterCenterY[emitterIndex];
+        double rayZ = receiverCenterZ[receiverIndex] - emitterCenterZ[emitterIndex];
+        double rayMagnitude = vectorMagnitude(rayX, rayY, rayZ);
+
+        int localIndex = getLocalId(0) + getLocalId(1) * getLocalSize(0);
+        int groupSize = getLocalSize(0) * getLocalSize(1);
+        int blocked = 1 - active;
+        // Pairs facing away skip the tests but still help load the tiles
+        if (oneSided && facing(emitterIndex, receiverIndex, rayX, rayY, rayZ) == 0) {
+            blocked = 1;
+        }
+
+        for (int tileStart = 0; tileStart < blockTessellations; tileStart += tileSize) {
+            int tileCount = min(tileSize, blockTessellations - tileStart);
+
+            for (int tileIndex = localIndex; tileIndex < tileCount; tileIndex += groupSize) {
+                tileVertexAX[tileIndex] = blockVertexAX[tileStart + tileIndex];
+                tileVertexAY[tileIndex] = blockVertexAY[tileStart + tileIndex];
+                tileVertexAZ[tileIndex] = blockVertexAZ[tileStart + tileIndex];
+                tileEdgeBAX[tileIndex] = blockEdgeBAX[tileStart + tileIndex];
+                tileEdgeBAY[tileIndex] = blockEdgeBAY[tileStart + tileIndex];
+                tileEdgeBAZ[tileIndex] = blockEdgeBAZ[tileStart + tileIndex];
+                tileEdgeCAX[tileIndex] = blockEdgeCAX[tileStart + tileIndex];
+                tileEdgeCAY[tileIndex] = blockEdgeCAY[tileStart + tileIndex];
+                tileEdgeCAZ[tileIndex] = blockEdgeCAZ[tileStart + tileIndex];
+            }
+            localBarrier();
+
+            for (int tileIndex = 0; tileIndex < tileCount && blocked == 0; tileIndex++) {
+                double intersectionDistance = tileIntersectionDistance(emitterIndex, tileIndex, rayX, rayY, rayZ);
+                if (intersectionDistance > 0 && intersectionDistance < 1) {
+                    blocked = 1;
+                }
+            }
+            // The tile is overwritten on the next pass
+            localBarrier();
+        }
+
+        if (blocked == 1) {
+            return 0;
+        }
+        return unblockedContribution(emitterIndex, receiverIndex, rayX, rayY, rayZ, rayMagnitude);
+    }
+
+    // Cosine terms of a pair that is known to be unobstructed
+    private double unblockedContribution(int emitterIndex, int receiverIndex, double rayX, double rayY, double rayZ, double rayMagnitude) {
 
         double emitterDenominator =
                 vectorMagnitude(
@@ -163,17 +815,22 @@ public class MTCalculator extends Kernel {
             cosThetaTwo = -cosThetaTwo;
         }
 
+        // Uncomment if interested in the view factor for a ray cast (sequential execution only)
+        //System.out.println(cosThetaOne * cosThetaTwo * emitterAreas[emitterIndex] * receiverAreas[receiverIndex] / (PI * rayMagnitude * rayMagnitude));
 
-        result[receiverIndex] = cosThetaOne * cosThetaTwo * emitterAreas[emitterIndex] * receiverAreas[receiverIndex]
+        return cosThetaOne * cosThetaTwo * emitterAreas[emitterIndex] * receiverAreas[receiverIndex]
                 / (PI * rayMagnitude * rayMagnitude);
+    }
 
-        // Uncomment if interested in the view factor for a ray cast
-        //System.out.println(result[receiverIndex]);
-
-
+    public double calculate(LaunchConsumer resultConsumer, KernelComplete completionHandler){
+        putGeometry();
+        calculateEmitters(0, emitterTessellations, resultConsumer);
+        viewFactor = completionHandler.onComplete()/sum(emitterAreas);
+        return viewFactor;
     }
 
-    public double calculate(Consumer<double[]> resultConsumer, KernelComplete completionHandler){
+    // Sends the geometry to the device once. Every later launch reuses it
+    void putGeometry() {
         viewFactorResults = new double[emitterTessellations];
 
         // Explicitly pass only these values onto the GPU
@@ -190,16 +847,211 @@ public class MTCalculator extends Kernel {
         put(receiverCenterX).put(receiverCenterY).put(receiverCenterZ);
         put(receiverAreas);
 
-        for(emitterIndex = 0; emitterIndex < emitterTessellations; emitterIndex++){
-            super.execute(Range.create(receiverTessellations));
+        if (adaptiveBlockerOrder) {
+            put(lastHit).put(blockOrder).put(blockHits);
+        }
+        if (blockerBVH) {
+            put(bvhMinX).put(bvhMinY).put(bvhMinZ);
+            put(bvhMaxX).put(bvhMaxY).put(bvhMaxZ);
+            put(bvhSkip).put(bvhFirst).put(bvhTriangleCount).put(bvhTriangles);
+        }
+        if (blockerCompaction) {
+            put(emitterCluster).put(compactOffsets).put(compactCount).put(compactBlockers);
+        }
+        if (voxelPrePass) {
+            put(voxelStates).put(voxelClassCounts);
+        }
+    }
+
+    // Runs the emitters in [firstEmitter, endEmitter) and hands every launch's results to the consumer
+    void calculateEmitters(int firstEmitter, int endEmitter, LaunchConsumer resultConsumer) {
+        emitterLimit = endEmitter;
+        if (pairLaunch) {
+            int rowsPerLaunch = getRowsPerLaunch();
+            for (int firstRow = firstEmitter; firstRow < endEmitter; firstRow += rowsPerLaunch) {
+                // Rows past the end of the range belong to no emitter of this calculator
+                int rows = Math.min(rowsPerLaunch, endEmitter - firstRow);
+                calculateRows(firstRow, rows);
+                reorderBlockers();
+                if (matrix != null) {
+                    matrix.writeRows(firstRow, rows, result, receiverStride);
+                }
+                if (reduceOnDevice) {
+                    resultConsumer.accept(firstRow, rows, 1, rowSums);
+                }
+                else {
+                    result = resultConsumer.accept(firstRow, rows, receiverStride, result);
+                }
+            }
+        }
+        else {
+            for (emitterIndex = firstEmitter; emitterIndex < endEmitter; emitterIndex++) {
+                super.execute(Range.create(device, receiverTessellations));
+                launches++;
+                get(result);
+                reorderBlockers();
+                if (matrix != null) {
+                    matrix.writeRows(emitterIndex, 1, result, receiverTessellations);
+                }
+                result = resultConsumer.accept(emitterIndex, 1, receiverTessellations, result);
+            }
+        }
+    }
+
+    // Every launch's rows also go to this matrix. Rows of other calculators over the same emitters may share it
+    void setMatrix(ViewFactorMatrix matrix) {
+        this.matrix = matrix;
+    }
+
+    // Emitter rows covered by one launch
+    int getRowsPerLaunch() {
+        return pairLaunch ? result.length / receiverStride : 1;
+    }
+
+    // Emitter rows of one work-group: the smallest launch, and the step launches grow in
+    int getLaunchGranularity() {
+        return pairLaunch ? pairLocalHeight : 1;
+    }
+
+    // Runs one 2D launch over the given emitter rows, in whole work-group rows, and brings the results, or their
+    // row sums, back. Launched rows past the end of the emitter range are written as zero
+    private void calculateRows(int firstEmitter, int emitterRows) {
+        int rows = roundUp(emitterRows, pairLocalHeight);
+        Device device = this.device != null ? this.device : KernelManager.instance().bestDevice();
+        int localHeight = pairLocalHeight;
+
+        emitterOffset = firstEmitter;
+        reduceOnDevice = deviceReduction && device instanceof OpenCLDevice;
+        super.execute(Range.create2D(this.device, receiverStride, rows, PAIR_LOCAL_WIDTH, localHeight));
+        launches++;
+
+        if (reduceOnDevice) {
+            rowSumPass = true;
+            super.execute(Range.create(this.device, rows));
+            rowSumPass = false;
+            launches++;
+            get(rowSums);
+        }
+        // A matrix being written needs every pair result, so they are copied back only when one was created
+        if (!reduceOnDevice || retrievePairResults || matrix != null) {
             get(result);
-            resultConsumer.accept(result);
         }
-        viewFactor = completionHandler.onComplete()/sum(emitterAreas);
-        return viewFactor;
+        if (voxelPrePass) {
+            get(voxelClassCounts);
+            for (int pairClass = 0; pairClass < voxelClassCounts.length; pairClass++) {
+                pairClassCounts[pairClass] += voxelClassCounts[pairClass];
+                voxelClassCounts[pairClass] = 0;
+            }
+            put(voxelClassCounts);
+        }
+    }
+
+    // Sorts the blockers by the hits observed so far, most frequent first, ties in index order
+    // A launch reads one order throughout, so the order follows the hits once per launch: once per emitter, or once
+    // per block of rows with pair launch
+    // Counting sort, one byte of (most hits - hits) at a time, only over the bytes the hit counts use
+    private void reorderBlockers() {
+        if (!adaptiveBlockerOrder) {
+            return;
+        }
+        get(blockHits);
+
+        int mostHits = 0;
+        for (int blockIndex = 0; blockIndex < blockTessellations; blockIndex++) {
+            blockOrder[blockIndex] = blockIndex;
+            mostHits = Math.max(mostHits, blockHits[blockIndex]);
+        }
+        int[] from = blockOrder;
+        int[] to = orderScratch;
+        for (int shift = 0; shift < 32 && (mostHits >>> shift) != 0; shift += 8) {
+            Arrays.fill(digitCounts, 0);
+            for (int orderIndex = 0; orderIndex < blockTessellations; orderIndex++) {
+                digitCounts[((mostHits - blockHits[from[orderIndex]]) >>> shift & 0xFF) + 1]++;
+            }
+            for (int digit = 1; digit < digitCounts.length; digit++) {
+                digitCounts[digit] += digitCounts[digit - 1];
+            }
+            for (int orderIndex = 0; orderIndex < blockTessellations; orderIndex++) {
+                int blockIndex = from[orderIndex];
+                to[digitCounts[(mostHits - blockHits[blockIndex]) >>> shift & 0xFF]++] = blockIndex;
+            }
+            int[] sorted = to;
+            to = from;
+            from = sorted;
+        }
+        if (from != blockOrder) {
+            System.arraycopy(from, 0, blockOrder, 0, blockTessellations);
+        }
+        put(blockOrder);
+        reorders++;
+    }
+
+    int getLaunches() {
+        return launches;
     }
 
-    private double intersectionDistance(int interconnectIndex, double rayX, double rayY, double rayZ) {
+    // Average length of the compacted blocker lists, or null when compaction is off
+    String getCompactionReport() {
+        if (!blockerCompaction) {
+            return null;
+        }
+        // Weighted by emitters, since each emitter scans its cluster's list
+        long scanned = 0;
+        for (int index = 0; index < emitterTessellations; index++) {
+            scanned += compactCount[emitterCluster[index]];
+        }
+        return "Blocker compaction: " + compactClusterCount + " emitter clusters | "
+                + (emitterTessellations == 0 ? 0 : (double) scanned / emitterTessellations) + " of " + blockTessellations + " blockers scanned per emitter";
+    }
+
+    // Why requested tiled blocking fell back to the untiled loop, or null
+    String getTiledReport() {
+        return tiledOverride == null ? null : "Tiled blocking disabled: " + tiledOverride;
+    }
+
+    // Pair classification counts of the voxel pre-pass, why it was turned off, or null when it was not requested
+    String getVoxelReport() {
+        if (voxelOverride != null) {
+            return "Voxel pre-pass disabled: " + voxelOverride;
+        }
+        if (!voxelPrePass) {
+            return null;
+        }
+        long pairs = pairClassCounts[VOXEL_CLEAR] + pairClassCounts[VOXEL_BLOCKED] + pairClassCounts[VOXEL_AMBIGUOUS];
+        return "Voxel pre-pass: clear " + pairClassCounts[VOXEL_CLEAR] + " | blocked " + pairClassCounts[VOXEL_BLOCKED]
+                + " | ambiguous " + pairClassCounts[VOXEL_AMBIGUOUS]
+                + " (" + (pairs == 0 ? 0 : 100.0 * pairClassCounts[VOXEL_AMBIGUOUS] / pairs) + "% exact, classified in the pair launch)"
+                + " | Grid built in " + voxelSeconds + " s"
+                + " | Voxels: " + voxelGrid.getVoxelCount() + ", " + voxelGrid.getSurfaceVoxels() + " surface, "
+                + voxelGrid.getSolidVoxels() + " solid" + (voxelGrid.isClosed() ? "" : " (blockers not closed, no solid voxels)");
+    }
+
+    // Summary of where the blocker hits landed, or null when the adaptive order is off
+    String getBlockerOrderReport() {
+        if (!adaptiveBlockerOrder) {
+            return null;
+        }
+        get(blockHits);
+
+        long totalHits = 0;
+        for (int blockIndex = 0; blockIndex < blockTessellations; blockIndex++) {
+            totalHits += blockHits[blockIndex];
+        }
+        int[] sortedHits = Arrays.copyOf(blockHits, blockTessellations);
+        Arrays.sort(sortedHits);
+        int topCount = Math.max(1, blockTessellations / 20);
+        long topHits = 0;
+        for (int index = 0; index < topCount; index++) {
+            topHits += sortedHits[blockTessellations - 1 - index];
+        }
+
+        return "Blocker hits: " + totalHits + " | Top " + topCount + " blockers: "
+                + (totalHits == 0 ? 0 : 100.0 * topHits / totalHits) + "% | Reorders: " + reorders;
+    }
+
+    // Returns where the ray meets the blocking tessellation as a fraction of the ray, or 0 if it does not
+    // Only hits strictly between the emitter (0) and the receiver (1) block the pair
+    private double intersectionDistance(int emitterIndex, int interconnectIndex, double rayX, double rayY, double rayZ) {
         // MT Algorithm for intersection detection
 
         double pvecX = rayY * blockEdgeCAZ[interconnectIndex] - rayZ * blockEdgeCAY[interconnectIndex];
@@ -253,10 +1105,97 @@ public class MTCalculator extends Kernel {
     }
 
 
+    // intersectionDistance() against the local tile copy of a blocking tessellation
+    private double tileIntersectionDistance(int emitterIndex, int tileIndex, double rayX, double rayY, double rayZ) {
+
+        double pvecX = rayY * tileEdgeCAZ[tileIndex] - rayZ * tileEdgeCAY[tileIndex];
+        double pvecY = rayZ * tileEdgeCAX[tileIndex] - rayX * tileEdgeCAZ[tileIndex];
+        double pvecZ = rayX * tileEdgeCAY[tileIndex] - rayY * tileEdgeCAX[tileIndex];
+
+        double det = tileEdgeBAX[tileIndex] * pvecX
+                + tileEdgeBAY[tileIndex] * pvecY
+                + tileEdgeBAZ[tileIndex] * pvecZ;
+
+        //Back-face culling enabled
+        if (det < 0){
+            return 0;
+        }
+
+        if (det < 1e-8 && det > -1e-8){
+            return 0;
+        }
+
+        double invDet = 1 / det;
+
+        double tvecX = emitterCenterX[emitterIndex] - tileVertexAX[tileIndex];
+        double tvecY = emitterCenterY[emitterIndex] - tileVertexAY[tileIndex];
+        double tvecZ = emitterCenterZ[emitterIndex] - tileVertexAZ[tileIndex];
+
+        double u = (tvecX * pvecX + tvecY * pvecY + tvecZ * pvecZ) * invDet;
+
+        if (u < 0 || u > 1){
+            return 0;
+        }
+
+        double qvecX = tvecY * tileEdgeBAZ[tileIndex] - tvecZ * tileEdgeBAY[tileIndex];
+        double qvecY = tvecZ * tileEdgeBAX[tileIndex] - tvecX * tileEdgeBAZ[tileIndex];
+        double qvecZ = tvecX * tileEdgeBAY[tileIndex] - tvecY * tileEdgeBAX[tileIndex];
+
+        double v = (rayX * qvecX + rayY * qvecY + rayZ * qvecZ) * invDet;
+
+        if (v < 0 || (u + v) > 1 ) {
+            return 0;
+        }
+        else {
+            return (tileEdgeCAX[tileIndex] * qvecX
+                    + tileEdgeCAY[tileIndex] * qvecY
+                    + tileEdgeCAZ[tileIndex] * qvecZ) * invDet;
+        }
+    }
+
+
     public double vectorMagnitude(double x, double y, double z) {
         return Math.sqrt(x*x + y*y + z*z);
     }
 
+    // Rows of a pair work-group of the given width: the preferred height, or the largest power of two the device takes
+    // Aparapi's Java fallback runs a work-group as one thread per work item, meeting at a barrier after every group,
+    // so Java devices get single-row groups
+    static int pairLocalHeight(Device device, int localWidth, int preferredHeight) {
+        if (device != null && !(device instanceof OpenCLDevice)) {
+            return 1;
+        }
+        int localHeight = preferredHeight;
+        if (device != null && device.getMaxWorkGroupSize() >= localWidth) {
+            localHeight = Math.min(localHeight, Integer.highestOneBit(device.getMaxWorkGroupSize() / localWidth));
+            int[] itemSizes = device.getMaxWorkItemSize();
+            if (itemSizes != null && itemSizes.length > 1 && itemSizes[1] > 0) {
+                localHeight = Math.min(localHeight, Integer.highestOneBit(itemSizes[1]));
+            }
+        }
+        return localHeight;
+    }
+
+    // Pair slots one launch may use: the pairsPerLaunch option, capped so the launch's buffers fit in one device
+    // allocation and in half of the device memory, the rest being left to the geometry
+    static long launchSlotBudget(Device device, int pairsPerLaunch) {
+        long slots = Math.max(1, pairsPerLaunch);
+        if (device instanceof OpenCLDevice) {
+            OpenCLDevice openCLDevice = (OpenCLDevice) device;
+            if (openCLDevice.getMaxMemAllocSize() > 0) {
+                slots = Math.min(slots, openCLDevice.getMaxMemAllocSize() / 8);
+            }
+            if (openCLDevice.getGlobalMemSize() > 0) {
+                slots = Math.min(slots, openCLDevice.getGlobalMemSize() / 2 / LAUNCH_BYTES_PER_SLOT);
+            }
+        }
+        return Math.max(1, Math.min(slots, Integer.MAX_VALUE - 8)); // Still one Java array
+    }
+
+    private static int roundUp(int value, int multiple) {
+        return ((value + multiple - 1) / multiple) * multiple;
+    }
+
     private static double sum(double...values) {
         double result = 0;
         for (int index=0;index<values.length; index++){
@@ -0,0 +1,342 @@
+// Single-precision variant of MTCalculator for devices with slow or missing double support
+// Ray casting, intersection detection and the cosine terms run in float
+// Pair results are accumulated in double on the host
+
+import com.aparapi.Kernel;
+import com.aparapi.Range;
+import com.aparapi.device.Device;
+import com.aparapi.internal.kernel.KernelManager;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MixedPrecisionMTCalculator extends Kernel {
+
+    // Instance variables
+    private float[] result; // Contains the view factors for each pair of the current launch
+    private final double[] rowSums; // Double sums of the float rows of a launch
+    private double viewFactor;
+
+    private final int emitterTessellations;
+    private final float[] emitterNormalX;
+    private final float[] emitterNormalY;
+    private final float[] emitterNormalZ;
+    private final float[] emitterCenterX;
+    private final float[] emitterCenterY;
+    private final float[] emitterCenterZ;
+    private final float[] emitterAreas;
+    private final double[] emitterAreasDouble;
+
+    private final int blockTessellations;
+    private final float[] blockVertexAX;
+    private final float[] blockVertexAY;
+    private final float[] blockVertexAZ;
+    private final float[] blockEdgeBAX;
+    private final float[] blockEdgeBAY;
+    private final float[] blockEdgeBAZ;
+    private final float[] blockEdgeCAX;
+    private final float[] blockEdgeCAY;
+    private final float[] blockEdgeCAZ;
+
+    private final int receiverTessellations;
+    private final float[] receiverNormalX;
+    private final float[] receiverNormalY;
+    private final float[] receiverNormalZ;
+    private final float[] receiverCenterX;
+    private final float[] receiverCenterY;
+    private final float[] receiverCenterZ;
+    private final float[] receiverAreas;
+
+    // Same launch layout as the pair launch of MTCalculator
+    private static final int PAIR_LOCAL_WIDTH = 16;
+    private static final int PAIR_LOCAL_HEIGHT = 16;
+    private final int receiverStride;
+    private final int pairLocalHeight;
+    private final Device device; // First of the listed devices. Null leaves the choice to KernelManager
+    private int emitterOffset;
+    private int launches;
+
+    private static final float PI = 3.14159265358979323846f;
+
+    public MixedPrecisionMTCalculator(Geometry emitter, Geometry receiver, Geometry block, EngineOptions options) {
+        emitterTessellations = emitter.getSize();
+        emitterNormalX = emitter.getNormalXFloat();
+        emitterNormalY = emitter.getNormalYFloat();
+        emitterNormalZ = emitter.getNormalZFloat();
+        emitterCenterX = emitter.getCenterXFloat();
+        emitterCenterY = emitter.getCenterYFloat();
+        emitterCenterZ = emitter.getCenterZFloat();
+        emitterAreas = emitter.getAreaFloat();
+        emitterAreasDouble = emitter.getArea();
+
+        blockTessellations = block.getSize();
+        blockVertexAX = block.getVertexAXFloat();
+        blockVertexAY = block.getVertexAYFloat();
+        blockVertexAZ = block.getVertexAZFloat();
+        blockEdgeBAX = block.getEdgeBAXFloat();
+        blockEdgeBAY = block.getEdgeBAYFloat();
+        blockEdgeBAZ = block.getEdgeBAZFloat();
+        blockEdgeCAX = block.getEdgeCAXFloat();
+        blockEdgeCAY = block.getEdgeCAYFloat();
+        blockEdgeCAZ = block.getEdgeCAZFloat();
+
+        receiverTessellations = receiver.getSize();
+        receiverNormalX = receiver.getNormalXFloat();
+        receiverNormalY = receiver.getNormalYFloat();
+        receiverNormalZ = receiver.getNormalZFloat();
+        receiverCenterX = receiver.getCenterXFloat();
+        receiverCenterY = receiver.getCenterYFloat();
+        receiverCenterZ = receiver.getCenterZFloat();
+        receiverAreas = receiver.getAreaFloat();
+
+        // Launch shape and size within the device's limits, as in MTCalculator
+        device = options.devices != null && !options.devices.isEmpty() ? options.devices.get(0) : null;
+        Device launchDevice = device != null ? device : KernelManager.instance().bestDevice();
+        receiverStride = roundUp(receiverTessellations, PAIR_LOCAL_WIDTH);
+        int localHeight = MTCalculator.pairLocalHeight(launchDevice, PAIR_LOCAL_WIDTH, PAIR_LOCAL_HEIGHT);
+        long budgetRows = Math.max(1, MTCalculator.launchSlotBudget(launchDevice, options.pairsPerLaunch) / receiverStride);
+        while (localHeight > 1 && localHeight > budgetRows) {
+            localHeight /= 2;
+        }
+        pairLocalHeight = localHeight;
+        int rows = (int) Math.min(roundUp(emitterTessellations, localHeight), budgetRows / localHeight * localHeight);
+        result = new float[Math.max(localHeight, rows) * receiverStride];
+        rowSums = new double[result.length / receiverStride];
+    }
+
+    // The options with everything this kernel ignores back at the defaults, for a double run to compare against
+    static EngineOptions supportedOptions(EngineOptions options) {
+        EngineOptions supported = options.copy();
+        supported.pairLaunch = true;
+        supported.tiledBlocking = false;
+        supported.adaptiveBlockerOrder = false;
+        supported.blockerBVH = false;
+        supported.blockerCompaction = false;
+        supported.voxelPrePass = false;
+        supported.oneSided = false;
+        supported.contourIntegral = false;
+        supported.matrixFile = null;
+        return supported;
+    }
+
+    // Options of the double precision kernel this one does not implement, or null if none of them is set
+    static String getOverrideReport(EngineOptions options) {
+        List<String> ignored = new ArrayList<>();
+        if (options.devices != null && options.devices.size() > 1) {
+            ignored.add("devices (first device only)");
+        }
+        if (!options.pairLaunch) {
+            ignored.add("pairLaunch=false");
+        }
+        if (options.tiledBlocking) {
+            ignored.add("tiledBlocking");
+        }
+        if (options.adaptiveBlockerOrder) {
+            ignored.add("adaptiveBlockerOrder");
+        }
+        if (options.blockerBVH) {
+            ignored.add("blockerBVH");
+        }
+        if (options.blockerCompaction) {
+            ignored.add("blockerCompaction");
+        }
+        if (options.voxelPrePass) {
+            ignored.add("voxelPrePass");
+        }
+        if (options.oneSided) {
+            ignored.add("oneSided");
+        }
+        if (options.contourIntegral) {
+            ignored.add("contourIntegral");
+        }
+        if (ignored.isEmpty()) {
+            return null;
+        }
+        return "Mixed precision kernel ignores: " + String.join(", ", ignored);
+    }
+
+    //Run on the GPU
+    @Override
+    public void run() {
+
+        int receiverIndex = getGlobalId(0);
+        int emitterRow = getGlobalId(1);
+        int emitterIndex = emitterOffset + emitterRow;
+        int slot = emitterRow * receiverStride + receiverIndex;
+
+        if (receiverIndex < receiverTessellations && emitterIndex < emitterTessellations) {
+            result[slot] = contribution(emitterIndex, receiverIndex);
+        }
+        else {
+            result[slot] = 0f;
+        }
+    }
+
+    private float contribution(int emitterIndex, int receiverIndex) {
+
+        // Calculate the ray from the emitter to the destination tessellation.
+        float rayX = receiverCenterX[receiverIndex] - emitterCenterX[emitterIndex];
+        float rayY = receiverCenterY[receiverIndex] - emitterCenterY[emitterIndex];
+        float rayZ = receiverCenterZ[receiverIndex] - emitterCenterZ[emitterIndex];
+        float rayMagnitude = vectorMagnitude(rayX, rayY, rayZ);
+
+        // Check if any intersecting geometry exists. Iterate through every blocking tessellation
+        for (int blockIndex = 0; blockIndex < blockTessellations; blockIndex++) {
+            float intersectionDistance = intersectionDistance(emitterIndex, blockIndex, rayX, rayY, rayZ);
+            // If intersecting geometry exists, the contributed view factor is zero.
+            if (intersectionDistance > 0f && intersectionDistance < 1f) {
+                return 0f;
+            }
+        }
+
+        float emitterDenominator =
+                vectorMagnitude(
+                        emitterNormalX[emitterIndex],
+                        emitterNormalY[emitterIndex],
+                        emitterNormalZ[emitterIndex]) * rayMagnitude;
+        float receiverDenominator =
+                vectorMagnitude(
+                        receiverNormalX[receiverIndex],
+                        receiverNormalY[receiverIndex],
+                        receiverNormalZ[receiverIndex]) * rayMagnitude;
+
+        float emitterNormalDotRay =
+                emitterNormalX[emitterIndex] * rayX
+                        + emitterNormalY[emitterIndex] * rayY
+                        + emitterNormalZ[emitterIndex] * rayZ;
+        float receiverNormalDotRay =
+                receiverNormalX[receiverIndex] * rayX
+                        + receiverNormalY[receiverIndex] * rayY
+                        + receiverNormalZ[receiverIndex] * rayZ;
+
+        float cosThetaOne = emitterNormalDotRay / emitterDenominator;
+        float cosThetaTwo = receiverNormalDotRay / receiverDenominator;
+
+        if (cosThetaOne < 0f) {
+            cosThetaOne = -cosThetaOne;
+        }
+        if (cosThetaTwo < 0f){
+            cosThetaTwo = -cosThetaTwo;
+        }
+
+        return cosThetaOne * cosThetaTwo * emitterAreas[emitterIndex] * receiverAreas[receiverIndex]
+                / (PI * rayMagnitude * rayMagnitude);
+    }
+
+    public double calculate(MTCalculator.LaunchConsumer resultConsumer, MTCalculator.KernelComplete completionHandler) {
+
+        // Explicitly pass only these values onto the GPU
+        setExplicit(true);
+        put(emitterNormalX).put(emitterNormalY).put(emitterNormalZ);
+        put(emitterCenterX).put(emitterCenterY).put(emitterCenterZ);
+        put(emitterAreas);
+
+        put(blockVertexAX).put(blockVertexAY).put(blockVertexAZ);
+        put(blockEdgeBAX).put(blockEdgeBAY).put(blockEdgeBAZ);
+        put(blockEdgeCAX).put(blockEdgeCAY).put(blockEdgeCAZ);
+
+        put(receiverNormalX).put(receiverNormalY).put(receiverNormalZ);
+        put(receiverCenterX).put(receiverCenterY).put(receiverCenterZ);
+        put(receiverAreas);
+
+        // Rows past the last emitter are written as zero
+        int rowsPerLaunch = result.length / receiverStride;
+        for (emitterOffset = 0; emitterOffset < emitterTessellations; emitterOffset += rowsPerLaunch) {
+            super.execute(Range.create2D(device, receiverStride, rowsPerLaunch, PAIR_LOCAL_WIDTH, pairLocalHeight));
+            launches++;
+            get(result);
+
+            // Accumulate every row of float pair results in double, compensated (Neumaier) as the MT row sums
+            int rows = Math.min(rowsPerLaunch, emitterTessellations - emitterOffset);
+            for (int row = 0; row < rows; row++) {
+                double sum = 0;
+                double compensation = 0;
+                for (int index = row * receiverStride; index < row * receiverStride + receiverTessellations; index++) {
+                    double value = result[index];
+                    double next = sum + value;
+                    if (Math.abs(sum) >= Math.abs(value)) {
+                        compensation = compensation + ((sum - next) + value);
+                    }
+                    else {
+                        compensation = compensation + ((value - next) + sum);
+                    }
+                    sum = next;
+                }
+                rowSums[row] = sum + compensation;
+            }
+            resultConsumer.accept(emitterOffset, rows, 1, rowSums);
+        }
+
+        viewFactor = completionHandler.onComplete()/sum(emitterAreasDouble);
+        return viewFactor;
+    }
+
+    int getLaunches() {
+        return launches;
+    }
+
+    private float intersectionDistance(int emitterIndex, int interconnectIndex, float rayX, float rayY, float rayZ) {
+        // MT Algorithm for intersection detection
+
+        float pvecX = rayY * blockEdgeCAZ[interconnectIndex] - rayZ * blockEdgeCAY[interconnectIndex];
+        float pvecY = rayZ * blockEdgeCAX[interconnectIndex] - rayX * blockEdgeCAZ[interconnectIndex]; //negative is accounted for by switching order of ops
+        float pvecZ = rayX * blockEdgeCAY[interconnectIndex] - rayY * blockEdgeCAX[interconnectIndex];
+
+        // Dot product of edge1 and pvec.
+        float det = blockEdgeBAX[interconnectIndex] * pvecX
+                + blockEdgeBAY[interconnectIndex] * pvecY
+                + blockEdgeBAZ[interconnectIndex] * pvecZ;
+
+        //Back-face culling enabled
+        if (det < 0f){
+            return 0f;
+        }
+
+        // Ray is parallel to plane. Thus, no intersection since dot product of orthogonal vectors is 0
+        if (det < 1e-8f && det > -1e-8f){
+            return 0f;
+        }
+
+        float invDet = 1f / det;
+
+        float tvecX = emitterCenterX[emitterIndex] - blockVertexAX[interconnectIndex];
+        float tvecY = emitterCenterY[emitterIndex] - blockVertexAY[interconnectIndex];
+        float tvecZ = emitterCenterZ[emitterIndex] - blockVertexAZ[interconnectIndex];
+
+        float u = (tvecX * pvecX + tvecY * pvecY + tvecZ * pvecZ) * invDet; //normalize u
+
+        if (u < 0f || u > 1f){
+            return 0f;
+        }
+
+        float qvecX = tvecY * blockEdgeBAZ[interconnectIndex] - tvecZ * blockEdgeBAY[interconnectIndex];
+        float qvecY = tvecZ * blockEdgeBAX[interconnectIndex] - tvecX * blockEdgeBAZ[interconnectIndex];
+        float qvecZ = tvecX * blockEdgeBAY[interconnectIndex] - tvecY * blockEdgeBAX[interconnectIndex];
+
+        float v = (rayX * qvecX + rayY * qvecY + rayZ * qvecZ) * invDet; //normalize v
+
+        if (v < 0f || (u + v) > 1f) {
+            return 0f;
+        }
+        else {
+            return (blockEdgeCAX[interconnectIndex] * qvecX
+                    + blockEdgeCAY[interconnectIndex] * qvecY
+                    + blockEdgeCAZ[interconnectIndex] * qvecZ) * invDet;
+        }
+    }
+
+    public float vectorMagnitude(float x, float y, float z) {
+        return sqrt(x*x + y*y + z*z);
+    }
+
+    private static int roundUp(int value, int multiple) {
+        return ((value + multiple - 1) / multiple) * multiple;
+    }
+
+    private static double sum(double...values) {
+        double result = 0;
+        for (int index=0;index<values.length; index++){
+            result = result + values[index];
+        }
+        return result;
+    }
+}
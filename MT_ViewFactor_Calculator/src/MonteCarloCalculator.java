@@ -0,0 +1,312 @@
+// Monte Carlo view factor engine running on CPU threads
+// Samples points on the emitter by area and cosine-distributed directions from them, and counts the rays whose
+// first hit is the receiver. Runs in batches until the standard error reaches the requested relative target, or the
+// absolute floor for view factors too small for a relative target. Without any hit the standard error says nothing,
+// so the rule of three bounds the view factor instead: no hit in n rays puts it below 3 / n times a ray's score (95%).
+// Random numbers come from a counter-based generator keyed on the sample index, so results do not depend on threads.
+
+import java.util.stream.IntStream;
+
+public class MonteCarloCalculator {
+
+    private static final int BATCH = 1 << 16;
+    private static final int DRAWS = 5; // Random numbers per sample
+    private static final double EPSILON = 1e-9; // Receiver hits closer than this fraction of the ray are ignored
+
+    private final Geometry emitter;
+    private final Geometry receiver;
+    private final PairEvaluator evaluator; // Blocker tests along the way to the receiver
+    private final BoundingVolumeHierarchy receiverBVH;
+
+    private final double[] cumulativeArea;
+    private final double[][] unitNormals;
+    private final double rayLength; // Longer than any segment through the scene
+
+    private final boolean oneSided;
+    private final double targetError;
+    private final double absoluteError;
+    private final long maxSamples;
+    private final long seed;
+
+    private long samples;
+    private double standardError;
+    private double viewFactor;
+
+    public MonteCarloCalculator(Geometry emitter, Geometry receiver, Geometry block, EngineOptions options) {
+        this.emitter = emitter;
+        this.receiver = receiver;
+        evaluator = new PairEvaluator(emitter, receiver, block, options.hostBVH);
+        receiverBVH = new BoundingVolumeHierarchy(receiver);
+
+        int size = emitter.getSize();
+        cumulativeArea = new double[size];
+        unitNormals = new double[3][size];
+        double total = 0;
+        for (int index = 0; index < size; index++) {
+            total += emitter.getArea()[index];
+            cumulativeArea[index] = total;
+            double length = PairEvaluator.vectorMagnitude(emitter.getNormalX()[index], emitter.getNormalY()[index], emitter.getNormalZ()[index]);
+            unitNormals[0][index] = emitter.getNormalX()[index] / length;
+            unitNormals[1][index] = emitter.getNormalY()[index] / length;
+            unitNormals[2][index] = emitter.getNormalZ()[index] / length;
+        }
+
+        double[] bounds = {Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE};
+        grow(bounds, emitter);
+        grow(bounds, receiver);
+        grow(bounds, block);
+        rayLength = 2 * PairEvaluator.vectorMagnitude(bounds[3] - bounds[0], bounds[4] - bounds[1], bounds[5] - bounds[2]) + 1e-9;
+
+        oneSided = options.oneSided;
+        targetError = options.monteCarloRelativeError;
+        absoluteError = options.monteCarloAbsoluteError;
+        maxSamples = options.monteCarloMaxSamples;
+        seed = options.monteCarloSeed;
+    }
+
+    public double calculate() {
+        if (emitter.getSize() == 0 || receiver.getSize() == 0) {
+            return 0;
+        }
+
+        double scoreSum = 0;
+        double squareSum = 0;
+        for (samples = 0; samples < maxSamples; ) {
+            long first = samples;
+            int batch = (int) Math.min(BATCH, maxSamples - samples);
+
+            // Each chunk of the batch is summed separately and the chunks are added in order, so the sums are reproducible
+            int chunks = 64;
+            double[] chunkScores = new double[chunks];
+            double[] chunkSquares = new double[chunks];
+            IntStream.range(0, chunks).parallel().forEach(chunk -> {
+                for (int offset = chunk; offset < batch; offset += chunks) {
+                    double score = sample(first + offset);
+                    chunkScores[chunk] += score;
+                    chunkSquares[chunk] += score * score;
+                }
+            });
+            for (int chunk = 0; chunk < chunks; chunk++) {
+                scoreSum += chunkScores[chunk];
+                squareSum += chunkSquares[chunk];
+            }
+            samples += batch;
+
+            viewFactor = scoreSum / samples;
+            double variance = Math.max(0, squareSum / samples - viewFactor * viewFactor);
+            standardError = Math.sqrt(variance / samples);
+            if (viewFactor > 0 && standardError <= Math.max(targetError * viewFactor, absoluteError)) {
+                break;
+            }
+            if (viewFactor == 0 && zeroHitBound() <= absoluteError) {
+                break;
+            }
+        }
+        return viewFactor;
+    }
+
+    // 95% upper bound of the view factor after samples rays without a hit
+    private double zeroHitBound() {
+        return 3.0 * (oneSided ? 1 : 2) / samples;
+    }
+
+    // Score of one ray: how much it adds to the view factor estimate when it reaches the receiver
+    private double sample(long sampleIndex) {
+        long counter = sampleIndex * DRAWS;
+
+        // Tessellation by area, then a uniform point on it
+        double pick = uniform(counter) * cumulativeArea[cumulativeArea.length - 1];
+        int tessellation = search(pick);
+        double root = Math.sqrt(uniform(counter + 1));
+        double weightB = root * (1 - uniform(counter + 2));
+        double weightC = root - weightB;
+        double originX = emitter.getVertexAX()[tessellation] + weightB * emitter.getEdgeBAX()[tessellation] + weightC * emitter.getEdgeCAX()[tessellation];
+        double originY = emitter.getVertexAY()[tessellation] + weightB * emitter.getEdgeBAY()[tessellation] + weightC * emitter.getEdgeCAY()[tessellation];
+        double originZ = emitter.getVertexAZ()[tessellation] + weightB * emitter.getEdgeBAZ()[tessellation] + weightC * emitter.getEdgeCAZ()[tessellation];
+
+        // Cosine-distributed direction about the normal. Like the kernel's absolute cosines, both sides of the
+        // emitter radiate unless one-sided: each side gets half the rays and twice the score
+        double normalX = unitNormals[0][tessellation];
+        double normalY = unitNormals[1][tessellation];
+        double normalZ = unitNormals[2][tessellation];
+        double score = 1;
+        double angle = 2 * Math.PI * uniform(counter + 3);
+        double side = uniform(counter + 4);
+        if (!oneSided) {
+            score = 2;
+            if (side < 0.5) {
+                normalX = -normalX;
+                normalY = -normalY;
+                normalZ = -normalZ;
+                side = 2 * side;
+            }
+            else {
+                side = 2 * side - 1;
+            }
+        }
+        double radius = Math.sqrt(side);
+        double height = Math.sqrt(1 - side);
+
+        // Any unit vector perpendicular to the normal, and the third axis from their cross product
+        double tangentX, tangentY, tangentZ;
+        if (Math.abs(normalX) < 0.9) {
+            tangentX = 0;
+            tangentY = normalZ;
+            tangentZ = -normalY;
+        }
+        else {
+            tangentX = -normalZ;
+            tangentY = 0;
+            tangentZ = normalX;
+        }
+        double tangentLength = PairEvaluator.vectorMagnitude(tangentX, tangentY, tangentZ);
+        tangentX /= tangentLength;
+        tangentY /= tangentLength;
+        tangentZ /= tangentLength;
+        double bitangentX = normalY * tangentZ - normalZ * tangentY;
+        double bitangentY = normalZ * tangentX - normalX * tangentZ;
+        double bitangentZ = normalX * tangentY - normalY * tangentX;
+
+        double cosine = radius * Math.cos(angle);
+        double sine = radius * Math.sin(angle);
+        double rayX = (cosine * tangentX + sine * bitangentX + height * normalX) * rayLength;
+        double rayY = (cosine * tangentY + sine * bitangentY + height * normalY) * rayLength;
+        double rayZ = (cosine * tangentZ + sine * bitangentZ + height * normalZ) * rayLength;
+
+        int hitReceiver = nearestReceiverHit(originX, originY, originZ, rayX, rayY, rayZ);
+        if (hitReceiver < 0) {
+            return 0;
+        }
+        // One-sided receivers only absorb on the side their normal points to
+        if (oneSided && receiver.getNormalX()[hitReceiver] * rayX + receiver.getNormalY()[hitReceiver] * rayY
+                + receiver.getNormalZ()[hitReceiver] * rayZ >= 0) {
+            return 0;
+        }
+        double hit = twoSidedDistance(hitReceiver, originX, originY, originZ, rayX, rayY, rayZ);
+        if (evaluator.occluded(originX, originY, originZ, rayX * hit, rayY * hit, rayZ * hit)) {
+            return 0;
+        }
+        return score;
+    }
+
+    // Nearest receiver tessellation along the ray, seen from either side, or -1 for a miss
+    // Only the index comes back, so the caller measures the distance again
+    private int nearestReceiverHit(double originX, double originY, double originZ, double rayX, double rayY, double rayZ) {
+        int[] skip = receiverBVH.getNodeSkip();
+        int[] first = receiverBVH.getNodeFirst();
+        int[] count = receiverBVH.getNodeTriangleCount();
+        int[] triangles = receiverBVH.getTriangles();
+
+        double nearest = 1;
+        int nearestReceiver = -1;
+        int node = 0;
+        while (node < receiverBVH.getNodeCount()) {
+            if (!PairEvaluator.segmentHitsBox(receiverBVH, node, originX, originY, originZ, rayX, rayY, rayZ, nearest)) {
+                node = skip[node];
+            }
+            else if (count[node] == 0) {
+                node = node + 1;
+            }
+            else {
+                for (int slot = first[node]; slot < first[node] + count[node]; slot++) {
+                    double distance = twoSidedDistance(triangles[slot], originX, originY, originZ, rayX, rayY, rayZ);
+                    if (distance > EPSILON && distance < nearest) {
+                        nearest = distance;
+                        nearestReceiver = triangles[slot];
+                    }
+                }
+                node = skip[node];
+            }
+        }
+        return nearestReceiver;
+    }
+
+    // MT intersection with a receiver tessellation without back-face culling, 0 if it is missed
+    private double twoSidedDistance(int index, double originX, double originY, double originZ, double rayX, double rayY, double rayZ) {
+        double edgeBAX = receiver.getEdgeBAX()[index];
+        double edgeBAY = receiver.getEdgeBAY()[index];
+        double edgeBAZ = receiver.getEdgeBAZ()[index];
+        double edgeCAX = receiver.getEdgeCAX()[index];
+        double edgeCAY = receiver.getEdgeCAY()[index];
+        double edgeCAZ = receiver.getEdgeCAZ()[index];
+
+        double pvecX = rayY * edgeCAZ - rayZ * edgeCAY;
+        double pvecY = rayZ * edgeCAX - rayX * edgeCAZ;
+        double pvecZ = rayX * edgeCAY - rayY * edgeCAX;
+        double det = edgeBAX * pvecX + edgeBAY * pvecY + edgeBAZ * pvecZ;
+        if (det < 1e-12 && det > -1e-12) {
+            return 0;
+        }
+        double invDet = 1 / det;
+
+        double tvecX = originX - receiver.getVertexAX()[index];
+        double tvecY = originY - receiver.getVertexAY()[index];
+        double tvecZ = originZ - receiver.getVertexAZ()[index];
+        double u = (tvecX * pvecX + tvecY * pvecY + tvecZ * pvecZ) * invDet;
+        if (u < 0 || u > 1) {
+            return 0;
+        }
+
+        double qvecX = tvecY * edgeBAZ - tvecZ * edgeBAY;
+        double qvecY = tvecZ * edgeBAX - tvecX * edgeBAZ;
+        double qvecZ = tvecX * edgeBAY - tvecY * edgeBAX;
+        double v = (rayX * qvecX + rayY * qvecY + rayZ * qvecZ) * invDet;
+        if (v < 0 || (u + v) > 1) {
+            return 0;
+        }
+        return (edgeCAX * qvecX + edgeCAY * qvecY + edgeCAZ * qvecZ) * invDet;
+    }
+
+    // First tessellation whose cumulative area reaches the value
+    private int search(double value) {
+        int low = 0;
+        int high = cumulativeArea.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cumulativeArea[middle] < value) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    // SplitMix64 of the seeded counter, as a double in [0, 1)
+    private double uniform(long counter) {
+        long z = seed + (counter + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        return (z >>> 11) * 0x1.0p-53;
+    }
+
+    private static void grow(double[] bounds, Geometry geometry) {
+        for (int index = 0; index < geometry.getSize(); index++) {
+            double[] xs = {geometry.getVertexAX()[index], geometry.getEdgeBAX()[index], geometry.getEdgeCAX()[index]};
+            double[] ys = {geometry.getVertexAY()[index], geometry.getEdgeBAY()[index], geometry.getEdgeCAY()[index]};
+            double[] zs = {geometry.getVertexAZ()[index], geometry.getEdgeBAZ()[index], geometry.getEdgeCAZ()[index]};
+            double[][] axes = {xs, ys, zs};
+            for (int axis = 0; axis < 3; axis++) {
+                double vertex = axes[axis][0];
+                bounds[axis] = Math.min(bounds[axis], vertex + Math.min(0, Math.min(axes[axis][1], axes[axis][2])));
+                bounds[axis + 3] = Math.max(bounds[axis + 3], vertex + Math.max(0, Math.max(axes[axis][1], axes[axis][2])));
+            }
+        }
+    }
+
+    long getSamples() {
+        return samples;
+    }
+
+    String getReport() {
+        if (viewFactor == 0 && samples > 0) {
+            return "Monte Carlo engine: " + samples + " samples | no ray reached the receiver, view factor below "
+                    + zeroHitBound() + " (95%, target " + absoluteError + ")";
+        }
+        return "Monte Carlo engine: " + samples + " samples | standard error " + standardError
+                + " (" + (viewFactor == 0 ? 0 : 100 * standardError / viewFactor) + "% of the estimate, target " + 100 * targetError
+                + "% or " + absoluteError + ")";
+    }
+}
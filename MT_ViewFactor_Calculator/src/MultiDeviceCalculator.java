@@ -0,0 +1,163 @@
+// Splits the emitters of an MT calculation across several Aparapi devices
+// Every device gets its own MTCalculator, so each keeps its own copy of the geometry on the device.
+// Devices take emitter ranges from a shared cursor. Each device first runs a small probe range; the size of every
+// later range follows the device's measured throughput, so faster devices take more of the remaining work and all
+// of them finish at about the same time.
+// All results go to the same consumer, which merges them as in a single-device run
+
+import com.aparapi.Config;
+import com.aparapi.device.Device;
+import com.aparapi.internal.kernel.KernelDeviceProfile;
+import com.aparapi.internal.kernel.KernelProfile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Filter;
+import java.util.logging.Logger;
+
+public class MultiDeviceCalculator {
+
+    // Work-group rows of a device's first range, measured before its share of the rest is known
+    private static final int PROBE_GROUP_ROWS = 4;
+
+    private final List<Device> devices;
+    private final MTCalculator[] calculators;
+    private final int emitterTessellations;
+    private final double emitterArea;
+
+    private int nextEmitter; // Shared cursor, guarded by this
+    private final double[] throughput; // Emitters per second of each device's last range, 0 until measured
+    private final int[] emittersDone;
+    private final int[] ranges;
+
+    public MultiDeviceCalculator(Geometry emitter, Geometry receiver, Geometry block, EngineOptions options, List<Device> devices) {
+        this.devices = devices;
+        calculators = new MTCalculator[devices.size()];
+        for (int slot = 0; slot < calculators.length; slot++) {
+            calculators[slot] = new MTCalculator(emitter, receiver, block, options, devices.get(slot));
+        }
+        emitterTessellations = emitter.getSize();
+        double area = 0;
+        for (int emitterIndex = 0; emitterIndex < emitterTessellations; emitterIndex++) {
+            area += emitter.getArea()[emitterIndex];
+        }
+        emitterArea = area;
+
+        throughput = new double[devices.size()];
+        emittersDone = new int[devices.size()];
+        ranges = new int[devices.size()];
+    }
+
+    public double calculate(MTCalculator.LaunchConsumer resultConsumer, MTCalculator.KernelComplete completionHandler) {
+        // Aparapi profiles every launch in one record per kernel class, so launches of several MTCalculators at once
+        // interleave their events there and it logs them as out of order. Only that bookkeeping is dropped
+        Logger aparapiLogger = Logger.getLogger(Config.getLoggerName());
+        Filter filter = aparapiLogger.getFilter();
+        aparapiLogger.setFilter(record -> !KernelProfile.class.getName().equals(record.getSourceClassName())
+                && !KernelDeviceProfile.class.getName().equals(record.getSourceClassName())
+                && (filter == null || filter.isLoggable(record)));
+        ExecutorService pool = Executors.newFixedThreadPool(calculators.length);
+        List<Future<?>> workers = new ArrayList<>();
+        for (int slot = 0; slot < calculators.length; slot++) {
+            int device = slot;
+            workers.add(pool.submit(() -> work(device, resultConsumer)));
+        }
+        try {
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+        finally {
+            pool.shutdown();
+            aparapiLogger.setFilter(filter);
+        }
+        return completionHandler.onComplete() / emitterArea;
+    }
+
+    void setMatrix(ViewFactorMatrix matrix) {
+        for (MTCalculator calculator : calculators) {
+            calculator.setMatrix(matrix);
+        }
+    }
+
+    private void work(int device, MTCalculator.LaunchConsumer resultConsumer) {
+        MTCalculator calculator = calculators[device];
+        calculator.putGeometry();
+        // The consumer sees one launch at a time, whichever device it came from
+        MTCalculator.LaunchConsumer merged = (firstEmitter, rows, stride, values) -> {
+            synchronized (resultConsumer) {
+                return resultConsumer.accept(firstEmitter, rows, stride, values);
+            }
+        };
+
+        int[] range;
+        while ((range = nextRange(device)) != null) {
+            long start = System.nanoTime();
+            calculator.calculateEmitters(range[0], range[1], merged);
+            double seconds = Math.max(1e-9, (System.nanoTime() - start) / 1e9);
+            record(device, range[1] - range[0], seconds);
+        }
+    }
+
+    // Next emitter range for the device, or null once every emitter is taken
+    // A device without a measurement takes a probe of a few work-group rows. Measured devices take their share of
+    // half the remaining emitters, in whole work-group rows, so the ranges shrink towards the end and no device is
+    // left waiting long
+    private synchronized int[] nextRange(int device) {
+        int remaining = emitterTessellations - nextEmitter;
+        if (remaining <= 0) {
+            return null;
+        }
+        int granularity = calculators[device].getLaunchGranularity();
+        int rows = PROBE_GROUP_ROWS * granularity;
+        if (throughput[device] > 0) {
+            double measured = 0;
+            int measuredDevices = 0;
+            for (double rate : throughput) {
+                if (rate > 0) {
+                    measured += rate;
+                    measuredDevices++;
+                }
+            }
+            // Devices still on their first range count as the average measured device
+            double total = measured + (throughput.length - measuredDevices) * measured / measuredDevices;
+            double share = remaining * throughput[device] / total / 2;
+            rows = Math.max(rows, (int) Math.ceil(share / granularity) * granularity);
+        }
+        rows = Math.min(rows, remaining);
+        int[] range = {nextEmitter, nextEmitter + rows};
+        nextEmitter += rows;
+        return range;
+    }
+
+    private synchronized void record(int device, int emitters, double seconds) {
+        throughput[device] = emitters / seconds;
+        emittersDone[device] += emitters;
+        ranges[device]++;
+    }
+
+    int getLaunches() {
+        int launches = 0;
+        for (MTCalculator calculator : calculators) {
+            launches += calculator.getLaunches();
+        }
+        return launches;
+    }
+
+    // Share of the emitters and last measured throughput of every device
+    String getReport() {
+        StringBuilder report = new StringBuilder("Devices: " + calculators.length);
+        for (int device = 0; device < calculators.length; device++) {
+            report.append("\nDevice ").append(device + 1).append(" (").append(devices.get(device).getShortDescription()).append("): ")
+                    .append(emittersDone[device]).append(" emitters in ").append(ranges[device]).append(" ranges, ")
+                    .append(calculators[device].getLaunches()).append(" launches | ")
+                    .append(throughput[device]).append(" emitters/s");
+        }
+        return report.toString();
+    }
+}
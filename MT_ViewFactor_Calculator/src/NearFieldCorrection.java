@@ -0,0 +1,111 @@
+// Near-field correction for the centroid approximation used by the MT kernel
+// For pairs closer than the distance ratio, the centroid estimate is swapped for the contour integral,
+// as long as the centroid ray is unobstructed and neither tessellation's plane cuts through the other.
+// The returned correction is added to the kernel's sum of pair contributions before dividing by the emitter area
+
+import java.util.stream.IntStream;
+
+public class NearFieldCorrection {
+
+    private final Geometry emitter;
+    private final Geometry receiver;
+    private final PairEvaluator evaluator;
+    private final ContourIntegral contour;
+
+    private final double distanceRatio;
+    private final boolean oneSided;
+
+    private long nearPairs;
+    private long correctedPairs;
+    private double correction;
+
+    public NearFieldCorrection(Geometry emitter, Geometry receiver, Geometry block, EngineOptions options) {
+        this.emitter = emitter;
+        this.receiver = receiver;
+        evaluator = new PairEvaluator(emitter, receiver, block, options.hostBVH);
+        contour = new ContourIntegral(options.contourOrder);
+        distanceRatio = options.contourDistanceRatio;
+        oneSided = options.oneSided;
+    }
+
+    // Sum over the near pairs of (contour integral - centroid estimate)
+    public double calculate() {
+        // Each chunk of emitters is summed separately and the chunks are added in order, so the sum is reproducible
+        int chunks = 64;
+        double[] chunkCorrections = new double[chunks];
+        long[] chunkNear = new long[chunks];
+        long[] chunkCorrected = new long[chunks];
+        IntStream.range(0, chunks).parallel().forEach(chunk -> {
+            for (int emitterIndex = chunk; emitterIndex < emitter.getSize(); emitterIndex += chunks) {
+                double emitterArea = emitter.getArea()[emitterIndex];
+                for (int receiverIndex = 0; receiverIndex < receiver.getSize(); receiverIndex++) {
+                    double rayX = receiver.getCenterX()[receiverIndex] - emitter.getCenterX()[emitterIndex];
+                    double rayY = receiver.getCenterY()[receiverIndex] - emitter.getCenterY()[emitterIndex];
+                    double rayZ = receiver.getCenterZ()[receiverIndex] - emitter.getCenterZ()[emitterIndex];
+                    double reach = distanceRatio * Math.sqrt(Math.max(emitterArea, receiver.getArea()[receiverIndex]));
+                    if (rayX * rayX + rayY * rayY + rayZ * rayZ >= reach * reach) {
+                        continue;
+                    }
+                    chunkNear[chunk]++;
+
+                    if (oneSided && !facing(emitterIndex, receiverIndex, rayX, rayY, rayZ)) {
+                        continue;
+                    }
+                    if (cuts(emitter, emitterIndex, receiver, receiverIndex) || cuts(receiver, receiverIndex, emitter, emitterIndex)) {
+                        continue;
+                    }
+                    double centroid = evaluator.contribution(emitterIndex, receiverIndex);
+                    if (centroid == 0) {
+                        continue;
+                    }
+                    chunkCorrections[chunk] += Math.abs(contour.areaViewFactor(emitter, emitterIndex, receiver, receiverIndex)) - centroid;
+                    chunkCorrected[chunk]++;
+                }
+            }
+        });
+        for (int chunk = 0; chunk < chunks; chunk++) {
+            correction += chunkCorrections[chunk];
+            nearPairs += chunkNear[chunk];
+            correctedPairs += chunkCorrected[chunk];
+        }
+        return correction;
+    }
+
+    // Same test as the kernel's one-sided culling
+    private boolean facing(int emitterIndex, int receiverIndex, double rayX, double rayY, double rayZ) {
+        return emitter.getNormalX()[emitterIndex] * rayX + emitter.getNormalY()[emitterIndex] * rayY + emitter.getNormalZ()[emitterIndex] * rayZ > 0
+                && receiver.getNormalX()[receiverIndex] * rayX + receiver.getNormalY()[receiverIndex] * rayY + receiver.getNormalZ()[receiverIndex] * rayZ < 0;
+    }
+
+    // True if the plane of one tessellation has corners of the other on both sides, or holds all of them.
+    // The cosines then change sign, or vanish, across the pair and the contour integral no longer matches the kernel's absolute cosines
+    private static boolean cuts(Geometry plane, int planeIndex, Geometry other, int otherIndex) {
+        double normalX = plane.getNormalX()[planeIndex];
+        double normalY = plane.getNormalY()[planeIndex];
+        double normalZ = plane.getNormalZ()[planeIndex];
+        double normalMagnitude = PairEvaluator.vectorMagnitude(normalX, normalY, normalZ);
+        if (normalMagnitude == 0) {
+            return true;
+        }
+        double toX = other.getVertexAX()[otherIndex] - plane.getVertexAX()[planeIndex];
+        double toY = other.getVertexAY()[otherIndex] - plane.getVertexAY()[planeIndex];
+        double toZ = other.getVertexAZ()[otherIndex] - plane.getVertexAZ()[planeIndex];
+        double[] distances = {
+                (normalX * toX + normalY * toY + normalZ * toZ) / normalMagnitude,
+                (normalX * (toX + other.getEdgeBAX()[otherIndex]) + normalY * (toY + other.getEdgeBAY()[otherIndex]) + normalZ * (toZ + other.getEdgeBAZ()[otherIndex])) / normalMagnitude,
+                (normalX * (toX + other.getEdgeCAX()[otherIndex]) + normalY * (toY + other.getEdgeCAY()[otherIndex]) + normalZ * (toZ + other.getEdgeCAZ()[otherIndex])) / normalMagnitude};
+
+        double tolerance = 1e-9 * Math.sqrt(Math.max(plane.getArea()[planeIndex], other.getArea()[otherIndex]));
+        boolean above = false;
+        boolean below = false;
+        for (double distance : distances) {
+            above |= distance > tolerance;
+            below |= distance < -tolerance;
+        }
+        return above == below;
+    }
+
+    String getReport() {
+        return "Contour integral: " + correctedPairs + " of " + nearPairs + " near pairs re-evaluated | correction " + correction;
+    }
+}
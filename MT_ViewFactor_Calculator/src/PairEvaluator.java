@@ -0,0 +1,366 @@
+// Host-side port of the pair math in MTCalculator, for engines that run on the CPU
+// Same centroid-to-centroid rays, intersection test and cosine terms, so fully refined results match the kernel
+// Occlusion either scans every blocker or walks a BVH over them
+// Blockers cull back faces as the kernel does, unless the evaluator is two-sided
+
+public class PairEvaluator {
+
+    private final Geometry emitter;
+    private final Geometry receiver;
+    private final Geometry block;
+
+    private final int blockTessellations;
+    private final double[] blockVertexAX;
+    private final double[] blockVertexAY;
+    private final double[] blockVertexAZ;
+    private final double[] blockEdgeBAX;
+    private final double[] blockEdgeBAY;
+    private final double[] blockEdgeBAZ;
+    private final double[] blockEdgeCAX;
+    private final double[] blockEdgeCAY;
+    private final double[] blockEdgeCAZ;
+
+    private final BoundingVolumeHierarchy bvh; // Null when every blocker is scanned
+    private final boolean twoSided; // Blockers hide pairs from both of their faces
+
+    private static final double PI = 3.141592653589793238462643383279502884197169399375105820974944592307816406286d;
+
+    public PairEvaluator(Geometry emitter, Geometry receiver, Geometry block, boolean useBVH) {
+        this(emitter, receiver, block, useBVH, false);
+    }
+
+    public PairEvaluator(Geometry emitter, Geometry receiver, Geometry block, boolean useBVH, boolean twoSided) {
+        this.emitter = emitter;
+        this.receiver = receiver;
+        this.block = block;
+
+        blockTessellations = block.getSize();
+        blockVertexAX = block.getVertexAX();
+        blockVertexAY = block.getVertexAY();
+        blockVertexAZ = block.getVertexAZ();
+        blockEdgeBAX = block.getEdgeBAX();
+        blockEdgeBAY = block.getEdgeBAY();
+        blockEdgeBAZ = block.getEdgeBAZ();
+        blockEdgeCAX = block.getEdgeCAX();
+        blockEdgeCAY = block.getEdgeCAY();
+        blockEdgeCAZ = block.getEdgeCAZ();
+
+        bvh = useBVH ? new BoundingVolumeHierarchy(block) : null;
+        this.twoSided = twoSided;
+    }
+
+    // Shares the blockers, and their BVH, of another evaluator
+    private PairEvaluator(Geometry emitter, Geometry receiver, PairEvaluator blockers) {
+        this.emitter = emitter;
+        this.receiver = receiver;
+        this.block = blockers.block;
+
+        blockTessellations = blockers.blockTessellations;
+        blockVertexAX = blockers.blockVertexAX;
+        blockVertexAY = blockers.blockVertexAY;
+        blockVertexAZ = blockers.blockVertexAZ;
+        blockEdgeBAX = blockers.blockEdgeBAX;
+        blockEdgeBAY = blockers.blockEdgeBAY;
+        blockEdgeBAZ = blockers.blockEdgeBAZ;
+        blockEdgeCAX = blockers.blockEdgeCAX;
+        blockEdgeCAY = blockers.blockEdgeCAY;
+        blockEdgeCAZ = blockers.blockEdgeCAZ;
+
+        bvh = blockers.bvh;
+        twoSided = blockers.twoSided;
+    }
+
+    // Evaluator for other emitter and receiver meshes against the same blockers
+    PairEvaluator withSurfaces(Geometry emitter, Geometry receiver) {
+        return new PairEvaluator(emitter, receiver, this);
+    }
+
+    // View factor contribution of a single emitter/receiver pair, as computed by the kernel
+    double contribution(int emitterIndex, int receiverIndex) {
+        double originX = emitter.getCenterX()[emitterIndex];
+        double originY = emitter.getCenterY()[emitterIndex];
+        double originZ = emitter.getCenterZ()[emitterIndex];
+        double rayX = receiver.getCenterX()[receiverIndex] - originX;
+        double rayY = receiver.getCenterY()[receiverIndex] - originY;
+        double rayZ = receiver.getCenterZ()[receiverIndex] - originZ;
+
+        if (occluded(originX, originY, originZ, rayX, rayY, rayZ)) {
+            return 0;
+        }
+        return unblockedContribution(emitterIndex, receiverIndex, rayX, rayY, rayZ, vectorMagnitude(rayX, rayY, rayZ));
+    }
+
+    // Same, scanning only the given blockers, e.g. those that meet the hull around the pair
+    double contribution(int emitterIndex, int receiverIndex, int[] blockers, int blockerCount) {
+        double originX = emitter.getCenterX()[emitterIndex];
+        double originY = emitter.getCenterY()[emitterIndex];
+        double originZ = emitter.getCenterZ()[emitterIndex];
+        double rayX = receiver.getCenterX()[receiverIndex] - originX;
+        double rayY = receiver.getCenterY()[receiverIndex] - originY;
+        double rayZ = receiver.getCenterZ()[receiverIndex] - originZ;
+
+        for (int slot = 0; slot < blockerCount; slot++) {
+            double intersectionDistance = intersectionDistance(blockers[slot], originX, originY, originZ, rayX, rayY, rayZ);
+            if (intersectionDistance > 0 && intersectionDistance < 1) {
+                return 0;
+            }
+        }
+        return unblockedContribution(emitterIndex, receiverIndex, rayX, rayY, rayZ, vectorMagnitude(rayX, rayY, rayZ));
+    }
+
+    // Contribution between two points standing in for patches of the given tessellations and areas
+    // The patches take their tessellation's normal
+    double pointContribution(int emitterIndex, double fromX, double fromY, double fromZ, double emitterArea,
+                             int receiverIndex, double toX, double toY, double toZ, double receiverArea) {
+        double rayX = toX - fromX;
+        double rayY = toY - fromY;
+        double rayZ = toZ - fromZ;
+        if (occluded(fromX, fromY, fromZ, rayX, rayY, rayZ)) {
+            return 0;
+        }
+        double rayMagnitude = vectorMagnitude(rayX, rayY, rayZ);
+
+        double emitterNormalX = emitter.getNormalX()[emitterIndex];
+        double emitterNormalY = emitter.getNormalY()[emitterIndex];
+        double emitterNormalZ = emitter.getNormalZ()[emitterIndex];
+        double receiverNormalX = receiver.getNormalX()[receiverIndex];
+        double receiverNormalY = receiver.getNormalY()[receiverIndex];
+        double receiverNormalZ = receiver.getNormalZ()[receiverIndex];
+
+        double cosThetaOne = (emitterNormalX * rayX + emitterNormalY * rayY + emitterNormalZ * rayZ)
+                / (vectorMagnitude(emitterNormalX, emitterNormalY, emitterNormalZ) * rayMagnitude);
+        double cosThetaTwo = (receiverNormalX * rayX + receiverNormalY * rayY + receiverNormalZ * rayZ)
+                / (vectorMagnitude(receiverNormalX, receiverNormalY, receiverNormalZ) * rayMagnitude);
+
+        return Math.abs(cosThetaOne) * Math.abs(cosThetaTwo) * emitterArea * receiverArea / (PI * rayMagnitude * rayMagnitude);
+    }
+
+    // Cosine terms of a pair that is known to be unobstructed
+    double unblockedContribution(int emitterIndex, int receiverIndex, double rayX, double rayY, double rayZ, double rayMagnitude) {
+        double emitterNormalX = emitter.getNormalX()[emitterIndex];
+        double emitterNormalY = emitter.getNormalY()[emitterIndex];
+        double emitterNormalZ = emitter.getNormalZ()[emitterIndex];
+        double receiverNormalX = receiver.getNormalX()[receiverIndex];
+        double receiverNormalY = receiver.getNormalY()[receiverIndex];
+        double receiverNormalZ = receiver.getNormalZ()[receiverIndex];
+
+        double cosThetaOne = (emitterNormalX * rayX + emitterNormalY * rayY + emitterNormalZ * rayZ)
+                / (vectorMagnitude(emitterNormalX, emitterNormalY, emitterNormalZ) * rayMagnitude);
+        double cosThetaTwo = (receiverNormalX * rayX + receiverNormalY * rayY + receiverNormalZ * rayZ)
+                / (vectorMagnitude(receiverNormalX, receiverNormalY, receiverNormalZ) * rayMagnitude);
+
+        return Math.abs(cosThetaOne) * Math.abs(cosThetaTwo) * emitter.getArea()[emitterIndex] * receiver.getArea()[receiverIndex]
+                / (PI * rayMagnitude * rayMagnitude);
+    }
+
+    // True if a blocking tessellation lies strictly inside the segment origin + t * ray, 0 < t < 1
+    boolean occluded(double originX, double originY, double originZ, double rayX, double rayY, double rayZ) {
+        return occluded(originX, originY, originZ, rayX, rayY, rayZ, -1, -1);
+    }
+
+    // Same, ignoring two blocking tessellations, e.g. the pair's own facets when the surfaces block each other
+    boolean occluded(double originX, double originY, double originZ, double rayX, double rayY, double rayZ, int ignoreFirst, int ignoreSecond) {
+        if (bvh == null) {
+            for (int blockIndex = 0; blockIndex < blockTessellations; blockIndex++) {
+                if (blockIndex == ignoreFirst || blockIndex == ignoreSecond) {
+                    continue;
+                }
+                double intersectionDistance = intersectionDistance(blockIndex, originX, originY, originZ, rayX, rayY, rayZ);
+                if (intersectionDistance > 0 && intersectionDistance < 1) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        int[] skip = bvh.getNodeSkip();
+        int[] first = bvh.getNodeFirst();
+        int[] count = bvh.getNodeTriangleCount();
+        int[] triangles = bvh.getTriangles();
+        int node = 0;
+        while (node < bvh.getNodeCount()) {
+            if (!segmentHitsBox(bvh, node, originX, originY, originZ, rayX, rayY, rayZ, 1)) {
+                node = skip[node];
+            }
+            else if (count[node] == 0) {
+                node = node + 1;
+            }
+            else {
+                for (int slot = first[node]; slot < first[node] + count[node]; slot++) {
+                    if (triangles[slot] == ignoreFirst || triangles[slot] == ignoreSecond) {
+                        continue;
+                    }
+                    double intersectionDistance = intersectionDistance(triangles[slot], originX, originY, originZ, rayX, rayY, rayZ);
+                    if (intersectionDistance > 0 && intersectionDistance < 1) {
+                        return true;
+                    }
+                }
+                node = skip[node];
+            }
+        }
+        return false;
+    }
+
+    // True if no blocker's bounds meet the convex hull of the two boxes (min x, y, z, max x, y, z)
+    // Then no segment between the boxes can be occluded
+    boolean hullClear(double[] boundsA, double[] boundsB) {
+        return hullBlockers(boundsA, boundsB, new int[1], 1) == 0;
+    }
+
+    // Collects the blockers whose bounds meet the convex hull of the two boxes into found, stopping once limit are
+    // found, and returns how many it found
+    int hullBlockers(double[] boundsA, double[] boundsB, int[] found, int limit) {
+        int foundCount = 0;
+        if (bvh == null) {
+            for (int blockIndex = 0; blockIndex < blockTessellations && foundCount < limit; blockIndex++) {
+                if (BlockerCompaction.meetsHull(triangleBounds(blockIndex), boundsA, boundsB)) {
+                    found[foundCount++] = blockIndex;
+                }
+            }
+            return foundCount;
+        }
+
+        int[] skip = bvh.getNodeSkip();
+        int[] first = bvh.getNodeFirst();
+        int[] count = bvh.getNodeTriangleCount();
+        int[] triangles = bvh.getTriangles();
+        int node = 0;
+        while (node < bvh.getNodeCount() && foundCount < limit) {
+            double[] nodeBounds = {bvh.getNodeMinX()[node], bvh.getNodeMinY()[node], bvh.getNodeMinZ()[node],
+                    bvh.getNodeMaxX()[node], bvh.getNodeMaxY()[node], bvh.getNodeMaxZ()[node]};
+            if (!BlockerCompaction.meetsHull(nodeBounds, boundsA, boundsB)) {
+                node = skip[node];
+            }
+            else if (count[node] == 0) {
+                node = node + 1;
+            }
+            else {
+                for (int slot = first[node]; slot < first[node] + count[node] && foundCount < limit; slot++) {
+                    if (BlockerCompaction.meetsHull(triangleBounds(triangles[slot]), boundsA, boundsB)) {
+                        found[foundCount++] = triangles[slot];
+                    }
+                }
+                node = skip[node];
+            }
+        }
+        return foundCount;
+    }
+
+    private double[] triangleBounds(int blockIndex) {
+        return new double[]{
+                blockVertexAX[blockIndex] + Math.min(0, Math.min(blockEdgeBAX[blockIndex], blockEdgeCAX[blockIndex])),
+                blockVertexAY[blockIndex] + Math.min(0, Math.min(blockEdgeBAY[blockIndex], blockEdgeCAY[blockIndex])),
+                blockVertexAZ[blockIndex] + Math.min(0, Math.min(blockEdgeBAZ[blockIndex], blockEdgeCAZ[blockIndex])),
+                blockVertexAX[blockIndex] + Math.max(0, Math.max(blockEdgeBAX[blockIndex], blockEdgeCAX[blockIndex])),
+                blockVertexAY[blockIndex] + Math.max(0, Math.max(blockEdgeBAY[blockIndex], blockEdgeCAY[blockIndex])),
+                blockVertexAZ[blockIndex] + Math.max(0, Math.max(blockEdgeBAZ[blockIndex], blockEdgeCAZ[blockIndex]))};
+    }
+
+    // Slab test of the segment origin + t * ray, 0 <= t <= far, against a BVH node's bounds
+    // The window is narrowed in locals, as in the kernel, since this runs for every node visited
+    static boolean segmentHitsBox(BoundingVolumeHierarchy bvh, int node, double originX, double originY, double originZ,
+                                  double rayX, double rayY, double rayZ, double far) {
+        double near = 0;
+
+        if (rayX > -1e-12 && rayX < 1e-12) {
+            if (originX < bvh.getNodeMinX()[node] || originX > bvh.getNodeMaxX()[node]) {
+                return false;
+            }
+        }
+        else {
+            double first = (bvh.getNodeMinX()[node] - originX) / rayX;
+            double second = (bvh.getNodeMaxX()[node] - originX) / rayX;
+            near = Math.max(near, Math.min(first, second));
+            far = Math.min(far, Math.max(first, second));
+        }
+
+        if (rayY > -1e-12 && rayY < 1e-12) {
+            if (originY < bvh.getNodeMinY()[node] || originY > bvh.getNodeMaxY()[node]) {
+                return false;
+            }
+        }
+        else {
+            double first = (bvh.getNodeMinY()[node] - originY) / rayY;
+            double second = (bvh.getNodeMaxY()[node] - originY) / rayY;
+            near = Math.max(near, Math.min(first, second));
+            far = Math.min(far, Math.max(first, second));
+        }
+
+        if (rayZ > -1e-12 && rayZ < 1e-12) {
+            if (originZ < bvh.getNodeMinZ()[node] || originZ > bvh.getNodeMaxZ()[node]) {
+                return false;
+            }
+        }
+        else {
+            double first = (bvh.getNodeMinZ()[node] - originZ) / rayZ;
+            double second = (bvh.getNodeMaxZ()[node] - originZ) / rayZ;
+            near = Math.max(near, Math.min(first, second));
+            far = Math.min(far, Math.max(first, second));
+        }
+
+        return near <= far;
+    }
+
+    // Returns where the ray meets the blocking tessellation as a fraction of the ray, or 0 if it does not
+    double intersectionDistance(int blockIndex, double originX, double originY, double originZ, double rayX, double rayY, double rayZ) {
+        // MT Algorithm for intersection detection
+
+        double pvecX = rayY * blockEdgeCAZ[blockIndex] - rayZ * blockEdgeCAY[blockIndex];
+        double pvecY = rayZ * blockEdgeCAX[blockIndex] - rayX * blockEdgeCAZ[blockIndex];
+        double pvecZ = rayX * blockEdgeCAY[blockIndex] - rayY * blockEdgeCAX[blockIndex];
+
+        double det = blockEdgeBAX[blockIndex] * pvecX
+                + blockEdgeBAY[blockIndex] * pvecY
+                + blockEdgeBAZ[blockIndex] * pvecZ;
+
+        //Back-face culling enabled
+        if (det < 0 && !twoSided) {
+            return 0;
+        }
+
+        // Ray is parallel to plane
+        if (det < 1e-8 && det > -1e-8) {
+            return 0;
+        }
+
+        double invDet = 1 / det;
+
+        double tvecX = originX - blockVertexAX[blockIndex];
+        double tvecY = originY - blockVertexAY[blockIndex];
+        double tvecZ = originZ - blockVertexAZ[blockIndex];
+
+        double u = (tvecX * pvecX + tvecY * pvecY + tvecZ * pvecZ) * invDet;
+        if (u < 0 || u > 1) {
+            return 0;
+        }
+
+        double qvecX = tvecY * blockEdgeBAZ[blockIndex] - tvecZ * blockEdgeBAY[blockIndex];
+        double qvecY = tvecZ * blockEdgeBAX[blockIndex] - tvecX * blockEdgeBAZ[blockIndex];
+        double qvecZ = tvecX * blockEdgeBAY[blockIndex] - tvecY * blockEdgeBAX[blockIndex];
+
+        double v = (rayX * qvecX + rayY * qvecY + rayZ * qvecZ) * invDet;
+        if (v < 0 || (u + v) > 1) {
+            return 0;
+        }
+        return (blockEdgeCAX[blockIndex] * qvecX
+                + blockEdgeCAY[blockIndex] * qvecY
+                + blockEdgeCAZ[blockIndex] * qvecZ) * invDet;
+    }
+
+    static double vectorMagnitude(double x, double y, double z) {
+        return Math.sqrt(x*x + y*y + z*z);
+    }
+
+    // Various "getter" methods
+    Geometry getEmitter() {
+        return emitter;
+    }
+
+    Geometry getReceiver() {
+        return receiver;
+    }
+
+    Geometry getBlock() {
+        return block;
+    }
+}
@@ -0,0 +1,238 @@
+// Keeps track of the summation for the view factor during the ray casting procedure
+// Results are not copied: add() takes the launcher's array and hands back a free one from a fixed number of buffers,
+// and worker threads sum the taken arrays while the launcher's next launch runs into the free one. With one buffer
+// this is double buffering, with two triple buffering, and with none add() sums on the calling thread.
+// When every buffer is taken, add() waits for one to come back, so memory stays flat however many launches there are
+// and a slow consumer holds the calculation back instead of queueing without bound
+// Every emitter row is summed on its own with compensation and kept under its index; finishAndGet() adds the row
+// sums in emitter order. The total depends neither on thread timing nor on where launches start, so runs on any
+// split of the emitters between devices give identical bits
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+class ResultPipeline {
+
+    private static final int NUM_THREADS = 2;
+    private static final int NUM_BUFFERS = NUM_THREADS;
+
+    // A reusable buffer, the rows of the current launch in it, their stride and the first row's emitter
+    private static class Slot {
+        double[] values = new double[0];
+        int rows;
+        int stride;
+        int firstEmitter;
+    }
+
+    private static final Slot FINISHED = new Slot(); // Tells a worker to stop
+
+    private final BlockingQueue<Slot> free;
+    private final BlockingQueue<Slot> filled;
+    private final Thread[] workers; // Started by the first add(), so engines that never add leave no threads behind
+    private final int buffers;
+    // Compensated sum of every emitter row. Grows to the emitter count at most
+    private double[] rowSums = new double[0];
+
+    // Statistics
+    private long launches;
+    private long waits; // add() calls that found no free buffer
+    private double waitSeconds;
+    private int maxQueueDepth;
+    private long allocations; // Buffers (re)allocated to fit a larger result
+    private final long startCollections;
+    private final long startCollectionMillis;
+
+    ResultPipeline() {
+        this(NUM_BUFFERS);
+    }
+
+    // Spare buffers besides the one the launcher holds, e.g. launchBuffers - 1
+    ResultPipeline(int buffers) {
+        this(Math.max(0, buffers), Math.min(Math.max(0, buffers), NUM_THREADS));
+    }
+
+    ResultPipeline(int buffers, int threads) {
+        this.buffers = buffers;
+        free = new ArrayBlockingQueue<>(Math.max(1, buffers));
+        filled = new ArrayBlockingQueue<>(Math.max(1, buffers + threads));
+        for (int buffer = 0; buffer < buffers; buffer++) {
+            free.add(new Slot());
+        }
+
+        workers = new Thread[threads];
+        startCollections = collections();
+        startCollectionMillis = collectionMillis();
+    }
+
+    // Queues the rows for summing and returns a free array of the same length for the caller's next launch, so the
+    // rows change hands without a copy. Blocks while every buffer is in use. Row sums (stride 1) are stored at once
+    // and their own array is given back
+    double[] add(int firstEmitter, int rows, int stride, double[] toAdd) {
+        if (stride == 1) {
+            store(firstEmitter, Arrays.copyOf(toAdd, rows));
+            synchronized (this) {
+                launches++;
+            }
+            return toAdd;
+        }
+        if (buffers == 0) {
+            sumRows(firstEmitter, rows, stride, toAdd);
+            synchronized (this) {
+                launches++;
+            }
+            return toAdd;
+        }
+
+        start();
+        Slot slot = free.poll();
+        if (slot == null) {
+            Timer waitTimer = new Timer();
+            waitTimer.start();
+            slot = take(free);
+            synchronized (this) {
+                waits++;
+                waitSeconds += waitTimer.stop();
+            }
+        }
+
+        double[] next = slot.values;
+        if (next.length != toAdd.length) {
+            next = new double[toAdd.length];
+            synchronized (this) {
+                allocations++;
+            }
+        }
+        slot.values = toAdd;
+        slot.rows = rows;
+        slot.stride = stride;
+        slot.firstEmitter = firstEmitter;
+
+        filled.add(slot);
+        synchronized (this) {
+            launches++;
+            maxQueueDepth = Math.max(maxQueueDepth, filled.size());
+        }
+        return next;
+    }
+
+    double finishAndGet() {
+        if (workers.length > 0 && workers[0] != null) {
+            for (int thread = 0; thread < workers.length; thread++) {
+                filled.add(FINISHED);
+            }
+            try {
+                for (Thread worker : workers) {
+                    worker.join();
+                }
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+                Thread.currentThread().interrupt();
+                return -1;
+            }
+        }
+
+        // Row sums in emitter order
+        return sum(rowSums, 0, rowSums.length);
+    }
+
+    private synchronized void start() {
+        if (workers[0] != null) {
+            return;
+        }
+        for (int thread = 0; thread < workers.length; thread++) {
+            workers[thread] = new Thread(this::work, "result-pipeline-" + thread);
+            workers[thread].setDaemon(true);
+            workers[thread].start();
+        }
+    }
+
+    private void work() {
+        while (true) {
+            Slot slot = take(filled);
+            if (slot == FINISHED) {
+                return;
+            }
+            sumRows(slot.firstEmitter, slot.rows, slot.stride, slot.values);
+            free.add(slot);
+        }
+    }
+
+    private void sumRows(int firstEmitter, int rows, int stride, double[] values) {
+        double[] sums = new double[rows];
+        for (int row = 0; row < rows; row++) {
+            sums[row] = sum(values, row * stride, stride);
+        }
+        store(firstEmitter, sums);
+    }
+
+    // Compensated (Neumaier), so millions of small terms keep their low bits. The same order and operations as
+    // the device's row sums in MTCalculator, so a row gives the same bits wherever it was summed
+    private static double sum(double[] values, int offset, int length) {
+        double partial = 0;
+        double compensation = 0;
+        for (int index = offset; index < offset + length; index++) {
+            double value = values[index];
+            double total = partial + value;
+            if (Math.abs(partial) >= Math.abs(value)) {
+                compensation = compensation + ((partial - total) + value);
+            }
+            else {
+                compensation = compensation + ((value - total) + partial);
+            }
+            partial = total;
+        }
+        return partial + compensation;
+    }
+
+    private synchronized void store(int firstEmitter, double[] sums) {
+        if (firstEmitter + sums.length > rowSums.length) {
+            rowSums = Arrays.copyOf(rowSums, Math.max(firstEmitter + sums.length, 2 * rowSums.length));
+        }
+        System.arraycopy(sums, 0, rowSums, firstEmitter, sums.length);
+    }
+
+    // The pipeline only stops through finishAndGet(), so an interrupt is kept for the caller instead of ending the wait
+    private static Slot take(BlockingQueue<Slot> queue) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return queue.take();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static long collections() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, collector.getCollectionCount());
+        }
+        return count;
+    }
+
+    private static long collectionMillis() {
+        long millis = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            millis += Math.max(0, collector.getCollectionTime());
+        }
+        return millis;
+    }
+
+    // Buffer use and back-pressure of the run, with the garbage collections since the pipeline started
+    synchronized String getReport() {
+        return "Result pipeline: " + launches + " launches through " + buffers + " spare buffers"
+                + " | Max queue depth " + maxQueueDepth + " | Waited for a buffer " + waits + " times (" + waitSeconds + " s)"
+                + " | Buffer allocations " + allocations
+                + " | GC: " + (collections() - startCollections) + " collections, " + (collectionMillis() - startCollectionMillis) + " ms";
+    }
+}
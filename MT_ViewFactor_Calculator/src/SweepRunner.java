@@ -0,0 +1,121 @@
+// Runs a sweep of emitter/receiver/blocker cases as a pipeline
+// The STL files of the next cases are parsed into Geometry on background threads while the current case is
+// calculated, and results are written by their own thread, so the device does not wait on file I/O between cases.
+// A file used by several cases, typically the blocking geometry, is only parsed once.
+// Output is the same as running CalculateVF.run() case by case
+
+import org.j3d.loaders.stl.STLFileReader;
+import java.io.File;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class SweepRunner {
+
+    private final Constants globalConstants;
+    private final EngineOptions options;
+    private final int prefetch; // Cases parsed ahead of the one being calculated
+
+    private final Map<String, Future<Geometry>> parsed = new HashMap<>();
+    private ExecutorService parsePool;
+    private double parseWaitTime;
+
+    public SweepRunner(Constants globalConstants, EngineOptions options, int prefetch) {
+        this.globalConstants = globalConstants;
+        this.options = options;
+        this.prefetch = Math.max(0, prefetch);
+    }
+
+    // Each case is {emitter, receiver, blocker} STL files
+    public void run(List<File[]> cases) {
+        parsePool = Executors.newFixedThreadPool(3); // One file of a case each
+        ExecutorService writer = Executors.newSingleThreadExecutor(); // Keeps the writes in case order
+
+        ArrayDeque<List<Future<Geometry>>> pending = new ArrayDeque<>();
+        int submitted = 0;
+        for (; submitted < Math.min(cases.size(), prefetch + 1); submitted++) {
+            pending.add(parse(cases.get(submitted)));
+        }
+
+        try {
+            for (int caseIndex = 0; caseIndex < cases.size(); caseIndex++) {
+                List<Future<Geometry>> geometry = pending.poll();
+                if (submitted < cases.size()) {
+                    pending.add(parse(cases.get(submitted++)));
+                }
+                List<String> header = CalculateVF.batchHeader();
+
+                try {
+                    // Set times to track how long the calculations took
+                    Timer globalTimer = new Timer();
+                    globalTimer.start();
+                    Geometry emitter = geometry.get(0).get();
+                    Geometry receiver = geometry.get(1).get();
+                    Geometry block = geometry.get(2).get();
+                    double waited = globalTimer.stop();
+                    parseWaitTime += waited;
+                    System.out.println("STL wait time: " + waited);
+
+                    List<String> lines = new ArrayList<>(header);
+                    lines.addAll(CalculateVF.calculate(globalConstants, options, emitter, receiver, block, globalTimer));
+                    writer.submit(() -> {
+                        try {
+                            CalculateVF.writeLines(lines);
+                        }
+                        catch (Exception e) {
+                            System.out.println("Error writing to file.");
+                        }
+                    });
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+
+                // Parsed files are kept only while a later case still needs them
+                release(cases, caseIndex);
+            }
+        }
+        finally {
+            parsePool.shutdownNow();
+            writer.shutdown();
+            try {
+                writer.awaitTermination(1, TimeUnit.HOURS);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        System.out.println("Sweep of " + cases.size() + " cases waited " + parseWaitTime + " s for STL parsing");
+    }
+
+    // Starts parsing the case's files, reusing files that are already parsed or being parsed
+    private List<Future<Geometry>> parse(File[] files) {
+        List<Future<Geometry>> geometry = new ArrayList<>();
+        for (File file : files) {
+            geometry.add(parsed.computeIfAbsent(file.getAbsolutePath(),
+                    path -> parsePool.submit(() -> new Geometry(new STLFileReader(file)))));
+        }
+        return geometry;
+    }
+
+    // Drops the parsed files of a finished case that no later case uses
+    private void release(List<File[]> cases, int finished) {
+        for (File file : cases.get(finished)) {
+            boolean needed = false;
+            for (int later = finished + 1; later < cases.size() && !needed; later++) {
+                for (File other : cases.get(later)) {
+                    needed |= other.getAbsolutePath().equals(file.getAbsolutePath());
+                }
+            }
+            if (!needed) {
+                parsed.remove(file.getAbsolutePath());
+            }
+        }
+    }
+}
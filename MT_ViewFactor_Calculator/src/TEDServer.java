@@ -5,11 +5,13 @@
 
 // Imports
 // Aparapi is for GPU usage
-import org.j3d.loaders.stl.STLFileReader;
 import java.io.File;
+import org.j3d.loaders.stl.STLFileReader;
 import com.aparapi.device.*;
 import com.aparapi.internal.kernel.*;
+import java.util.ArrayList;
 import java.util.LinkedHashSet;
+import java.util.List;
 
 
 public class TEDServer{
@@ -23,6 +25,12 @@ public class TEDServer{
         globalConstants.H_W=1.50; // TEG height-to-width ratio
         globalConstants.t=0.125; // TEG interconnect thickness
 
+        // Calculation options. See EngineOptions for the defaults
+        EngineOptions options = new EngineOptions();
+        options.pairLaunch = true; // One 2D launch per block of emitters instead of one launch per emitter
+        //options.reciprocity = true; // Also report the receiver-to-emitter view factor from the same pass
+        //options.matrixFile = "viewFactorMatrix.bin"; // Also write the per-facet view factor matrix for the thermal solver
+
 
         // Create the arrays of tessellations per emitter and receiver
         // Used when wanting to run successive meshes
@@ -38,33 +46,38 @@ public class TEDServer{
         // Tessellations in the blocking geometry. Note how few tessellations the blocking surface has.
         int blockT = 44;
 
+        // Cases whose STL files are parsed ahead of the one being calculated
+        int sweepPrefetch = 1;
+
+        // Instead of the emitter to receiver view factor, calculate the view factors between all of the first case's
+        // surfaces in one pass, every surface blocking the others. Further surfaces (legs, interconnects) can be added
+        boolean enclosure = false;
+
         KernelPreferences preferences = KernelManager.instance().getDefaultPreferences();
 
-        // Instantiate the GPUs. This code assumes the computer has, at a maximum, two GPUs
-        Device device1 = null;
-        Device device2 = null;
-        for (int w=0; w<preferences.getPreferredDevices(null).size(); w++) {
-            if (w == 0) { //1st GPU
-                System.out.println("Device 1: ");
-                device1 = preferences.getPreferredDevices(null).get(w);
-                System.out.println(device1);
-                System.out.println();
-            } else if (w == 1) {//2nd GPU
-                System.out.println("Device 2: ");
-                device2 =preferences.getPreferredDevices(null).get(w);
-                System.out.println(device2);
+        // Instantiate the GPUs. Every OpenCL device found takes part in the calculation
+        List<Device> preferredDevices = preferences.getPreferredDevices(null);
+        LinkedHashSet<Device> DeviceSet = new LinkedHashSet<Device>();
+        for (int w=0; w<preferredDevices.size(); w++) {
+            if (preferredDevices.get(w) instanceof OpenCLDevice) {
+                System.out.println("Device " + (DeviceSet.size() + 1) + ": ");
+                System.out.println(preferredDevices.get(w));
                 System.out.println();
+                DeviceSet.add(preferredDevices.get(w));
             }
         }
 
-        // Set the GPU to run on.
-        LinkedHashSet<Device> DeviceSet = new LinkedHashSet<Device>();
-        DeviceSet.add(device1); //Add GPU that you wish to run
-        KernelManager.instance().setDefaultPreferredDevices(DeviceSet);
+        // Set the GPUs to run on. Without OpenCL, Aparapi falls back to its Java devices
+        if (!DeviceSet.isEmpty()) {
+            KernelManager.instance().setDefaultPreferredDevices(DeviceSet);
+            options.devices = new ArrayList<Device>(DeviceSet); // The emitters are split across all of them
+        }
 
 
 
         // Loop through the number of successive meshes that were specified above. This bit is unnecessary if running one configuration
+        // The cases run as a pipeline: the next case's STL files are parsed while the current one is calculated
+        List<File[]> cases = new ArrayList<File[]>();
         for (int i = 0; i < receiverTessellations.length; i++) {
 
             // Link file location to the respective STL file
@@ -85,16 +98,23 @@ public class TEDServer{
             File receiverFile = new File(receiverFileName.toString());
             File blockFile = new File(blockFileName.toString());
             //File blockFile = null;
-            try {
-                //Create STL Files
-                STLFileReader emitterReader = new STLFileReader(emitterFile);
-                STLFileReader receiverReader = new STLFileReader(receiverFile);
-                STLFileReader blockReader = new STLFileReader(blockFile);
-                CalculateVF.run(globalConstants, emitterReader, receiverReader, blockReader);
+            cases.add(new File[]{emitterFile, receiverFile, blockFile});
+        }
 
-            } catch (Exception e) {
+        if (enclosure) {
+            List<STLFileReader> surfaceReaders = new ArrayList<STLFileReader>();
+            try {
+                for (File surfaceFile : cases.get(0)) {
+                    surfaceReaders.add(new STLFileReader(surfaceFile));
+                }
+            }
+            catch (Exception e) {
                 e.printStackTrace();
+                return;
             }
+            CalculateVF.runEnclosure(globalConstants, options, surfaceReaders, List.of("Emitter", "Receiver", "Blocking"));
+            return;
         }
+        new SweepRunner(globalConstants, options, sweepPrefetch).run(cases);
     }
 }
@@ -0,0 +1,11 @@
+// An engine that CalculateVF only knows by name, such as the VECTOR engine in the src-vector source root
+// Implementations need a public (Geometry emitter, Geometry receiver, Geometry block, EngineOptions options) constructor
+
+public interface ViewFactorEngine {
+
+    // View factor from the emitter to the receiver
+    double calculate();
+
+    // One line on the run for the output file
+    String getReport();
+}
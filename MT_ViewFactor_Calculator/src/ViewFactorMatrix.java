@@ -0,0 +1,174 @@
+// Per-facet view factor matrix F_ij in a memory-mapped binary file
+// Written launch by launch straight from the MT result buffers and read back lazily, a page at a time.
+// Layout (little endian):
+//   bytes 0-3    "VFMX"
+//   bytes 4-7    format version (1)
+//   bytes 8-11   emitter tessellations E
+//   bytes 12-15  receiver tessellations R
+//   bytes 16-31  reserved
+//   then E x R doubles, row by row: F_ij = (A_i F_ij from the kernel) / A_i at (long) i * R + j
+// E x R may exceed 2^31, so the values are mapped in segments of at most 1 GiB and indexed with longs
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+public class ViewFactorMatrix implements Closeable {
+
+    private static final int MAGIC = 0x584D4656; // "VFMX" read little endian
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 32;
+    private static final int SEGMENT_SHIFT = 27; // 2^27 doubles = 1 GiB per mapping
+    private static final long SEGMENT_VALUES = 1L << SEGMENT_SHIFT;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final FileChannel.MapMode mode;
+    private final int emitters;
+    private final int receivers;
+    private final long values;
+    private final double[] emitterAreas; // Only when writing
+
+    private final MappedByteBuffer[] mapped; // Mapped on first use
+    private final DoubleBuffer[] segments;
+
+    private ViewFactorMatrix(RandomAccessFile file, FileChannel.MapMode mode, int emitters, int receivers, double[] emitterAreas) {
+        this.file = file;
+        this.channel = file.getChannel();
+        this.mode = mode;
+        this.emitters = emitters;
+        this.receivers = receivers;
+        this.emitterAreas = emitterAreas;
+        values = (long) emitters * receivers;
+        int segmentCount = (int) ((values + SEGMENT_VALUES - 1) >>> SEGMENT_SHIFT);
+        mapped = new MappedByteBuffer[segmentCount];
+        segments = new DoubleBuffer[segmentCount];
+    }
+
+    // Creates (or replaces) the file for an emitter x receiver matrix. Rows not written stay zero
+    public static ViewFactorMatrix create(File path, Geometry emitter, int receivers) throws IOException {
+        int emitters = emitter.getSize();
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        file.setLength(0);
+        file.setLength(HEADER_BYTES + 8L * emitters * receivers);
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(emitters).putInt(receivers);
+        header.rewind();
+        file.getChannel().write(header, 0);
+
+        double[] areas = new double[emitters];
+        System.arraycopy(emitter.getArea(), 0, areas, 0, emitters);
+        return new ViewFactorMatrix(file, FileChannel.MapMode.READ_WRITE, emitters, receivers, areas);
+    }
+
+    // Opens a written matrix. Nothing past the header is read until a value is asked for
+    public static ViewFactorMatrix open(File path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        file.getChannel().read(header, 0);
+        header.flip();
+        if (header.remaining() < HEADER_BYTES || header.getInt() != MAGIC || header.getInt() != VERSION) {
+            file.close();
+            throw new IOException(path + " is not a view factor matrix");
+        }
+        int emitters = header.getInt();
+        int receivers = header.getInt();
+        if (file.length() < HEADER_BYTES + 8L * emitters * receivers) {
+            file.close();
+            throw new IOException(path + " is shorter than its " + emitters + " x " + receivers + " matrix");
+        }
+        return new ViewFactorMatrix(file, FileChannel.MapMode.READ_ONLY, emitters, receivers, null);
+    }
+
+    // Writes rows [firstEmitter, firstEmitter + rows) from a result buffer holding one row every stride values
+    // Rows of different launches may be written from different threads at the same time
+    void writeRows(int firstEmitter, int rows, double[] results, int stride) {
+        for (int row = 0; row < rows; row++) {
+            int emitterIndex = firstEmitter + row;
+            double area = emitterAreas[emitterIndex];
+            long index = (long) emitterIndex * receivers;
+            int offset = row * stride;
+            int receiverIndex = 0;
+            while (receiverIndex < receivers) {
+                // Rows can cross a segment boundary
+                DoubleBuffer segment = segment((int) (index >>> SEGMENT_SHIFT));
+                int position = (int) (index & (SEGMENT_VALUES - 1));
+                int count = Math.min(receivers - receiverIndex, segment.capacity() - position);
+                for (int value = 0; value < count; value++) {
+                    segment.put(position + value, results[offset + receiverIndex + value] / area);
+                }
+                receiverIndex += count;
+                index += count;
+            }
+        }
+    }
+
+    public double get(int emitterIndex, int receiverIndex) {
+        long index = (long) emitterIndex * receivers + receiverIndex;
+        return segment((int) (index >>> SEGMENT_SHIFT)).get((int) (index & (SEGMENT_VALUES - 1)));
+    }
+
+    // Copies one emitter row into row, which must hold at least getReceivers() values
+    public void getRow(int emitterIndex, double[] row) {
+        long index = (long) emitterIndex * receivers;
+        int receiverIndex = 0;
+        while (receiverIndex < receivers) {
+            DoubleBuffer segment = segment((int) (index >>> SEGMENT_SHIFT));
+            int position = (int) (index & (SEGMENT_VALUES - 1));
+            int count = Math.min(receivers - receiverIndex, segment.capacity() - position);
+            for (int value = 0; value < count; value++) {
+                row[receiverIndex + value] = segment.get(position + value);
+            }
+            receiverIndex += count;
+            index += count;
+        }
+    }
+
+    public int getEmitters() {
+        return emitters;
+    }
+
+    public int getReceivers() {
+        return receivers;
+    }
+
+    private synchronized DoubleBuffer segment(int segmentIndex) {
+        if (segments[segmentIndex] == null) {
+            long first = (long) segmentIndex << SEGMENT_SHIFT;
+            long length = Math.min(SEGMENT_VALUES, values - first);
+            try {
+                mapped[segmentIndex] = channel.map(mode, HEADER_BYTES + 8 * first, 8 * length);
+            }
+            catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+            segments[segmentIndex] = mapped[segmentIndex].order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+        }
+        return segments[segmentIndex];
+    }
+
+    // Flushes written rows to disk and releases the file
+    @Override
+    public void close() throws IOException {
+        if (mode == FileChannel.MapMode.READ_WRITE) {
+            for (MappedByteBuffer buffer : mapped) {
+                if (buffer != null) {
+                    buffer.force();
+                }
+            }
+        }
+        channel.close();
+        file.close();
+    }
+
+    String getReport(File path) {
+        return "View factor matrix: " + emitters + " x " + receivers + " written to " + path + " (" + (HEADER_BYTES + 8 * values) + " bytes)";
+    }
+}
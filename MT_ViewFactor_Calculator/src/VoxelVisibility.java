@@ -0,0 +1,232 @@
+// Coarse voxelization of the blocking geometry used to classify emitter/receiver pairs before the MT pass
+// Voxels are empty, surface (a blocker may pass through) or solid (inside a closed blocker)
+// A segment through empty voxels only is clear, a segment through a solid voxel is blocked. The MT kernel walks
+// each pair's segment through the grid itself, so only the grid is built here
+
+public class VoxelVisibility {
+
+    private static final byte EMPTY = 0;
+    private static final byte SURFACE = 1;
+    private static final byte SOLID = 2;
+
+    private final int resolutionX;
+    private final int resolutionY;
+    private final int resolutionZ;
+    private final double minX;
+    private final double minY;
+    private final double minZ;
+    private final double cellSize;
+    private final byte[] voxels;
+
+    private final boolean closed;
+    private int solidVoxels;
+    private int surfaceVoxels;
+
+    public VoxelVisibility(Geometry block, int resolution) {
+        int size = block.getSize();
+        double[] vertexAX = block.getVertexAX();
+        double[] vertexAY = block.getVertexAY();
+        double[] vertexAZ = block.getVertexAZ();
+        double[] edgeBAX = block.getEdgeBAX();
+        double[] edgeBAY = block.getEdgeBAY();
+        double[] edgeBAZ = block.getEdgeBAZ();
+        double[] edgeCAX = block.getEdgeCAX();
+        double[] edgeCAY = block.getEdgeCAY();
+        double[] edgeCAZ = block.getEdgeCAZ();
+
+        // Bounds of the blocking geometry
+        double lowX = Double.MAX_VALUE, lowY = Double.MAX_VALUE, lowZ = Double.MAX_VALUE;
+        double highX = -Double.MAX_VALUE, highY = -Double.MAX_VALUE, highZ = -Double.MAX_VALUE;
+        for (int index = 0; index < size; index++) {
+            lowX = Math.min(lowX, min3(vertexAX[index], edgeBAX[index], edgeCAX[index]));
+            lowY = Math.min(lowY, min3(vertexAY[index], edgeBAY[index], edgeCAY[index]));
+            lowZ = Math.min(lowZ, min3(vertexAZ[index], edgeBAZ[index], edgeCAZ[index]));
+            highX = Math.max(highX, max3(vertexAX[index], edgeBAX[index], edgeCAX[index]));
+            highY = Math.max(highY, max3(vertexAY[index], edgeBAY[index], edgeCAY[index]));
+            highZ = Math.max(highZ, max3(vertexAZ[index], edgeBAZ[index], edgeCAZ[index]));
+        }
+        if (size == 0) {
+            lowX = lowY = lowZ = 0;
+            highX = highY = highZ = 0;
+        }
+
+        // Cubic cells, with the longest side split into the requested number of voxels
+        double extent = Math.max(highX - lowX, Math.max(highY - lowY, highZ - lowZ));
+        cellSize = Math.max(extent, 1e-9) * (1 + 1e-6) / Math.max(1, resolution);
+        minX = lowX - cellSize * 1e-6;
+        minY = lowY - cellSize * 1e-6;
+        minZ = lowZ - cellSize * 1e-6;
+        resolutionX = Math.max(1, (int) Math.ceil((highX - minX) / cellSize));
+        resolutionY = Math.max(1, (int) Math.ceil((highY - minY) / cellSize));
+        resolutionZ = Math.max(1, (int) Math.ceil((highZ - minZ) / cellSize));
+        voxels = new byte[resolutionX * resolutionY * resolutionZ];
+
+        // Mark every voxel a blocker's bounds touch, grown by one voxel so the traversal cannot slip past a corner
+        for (int index = 0; index < size; index++) {
+            int fromX = cell(min3(vertexAX[index], edgeBAX[index], edgeCAX[index]), minX, resolutionX) - 1;
+            int fromY = cell(min3(vertexAY[index], edgeBAY[index], edgeCAY[index]), minY, resolutionY) - 1;
+            int fromZ = cell(min3(vertexAZ[index], edgeBAZ[index], edgeCAZ[index]), minZ, resolutionZ) - 1;
+            int toX = cell(max3(vertexAX[index], edgeBAX[index], edgeCAX[index]), minX, resolutionX) + 1;
+            int toY = cell(max3(vertexAY[index], edgeBAY[index], edgeCAY[index]), minY, resolutionY) + 1;
+            int toZ = cell(max3(vertexAZ[index], edgeBAZ[index], edgeCAZ[index]), minZ, resolutionZ) + 1;
+            for (int x = Math.max(0, fromX); x <= Math.min(resolutionX - 1, toX); x++) {
+                for (int y = Math.max(0, fromY); y <= Math.min(resolutionY - 1, toY); y++) {
+                    for (int z = Math.max(0, fromZ); z <= Math.min(resolutionZ - 1, toZ); z++) {
+                        voxels[voxelIndex(x, y, z)] = SURFACE;
+                    }
+                }
+            }
+        }
+
+        // Solid voxels are only meaningful when the blockers form closed, consistently wound shells
+        closed = block.isClosed();
+        if (closed) {
+            markSolid(block);
+        }
+
+        for (byte voxel : voxels) {
+            if (voxel == SOLID) {
+                solidVoxels++;
+            }
+            else if (voxel == SURFACE) {
+                surfaceVoxels++;
+            }
+        }
+    }
+
+    // Parity test along +X through the center of every voxel column
+    private void markSolid(Geometry block) {
+        int size = block.getSize();
+        double[] hits = new double[size];
+
+        for (int y = 0; y < resolutionY; y++) {
+            for (int z = 0; z < resolutionZ; z++) {
+                double originY = minY + (y + 0.5) * cellSize;
+                double originZ = minZ + (z + 0.5) * cellSize;
+
+                int hitCount = 0;
+                for (int index = 0; index < size; index++) {
+                    double hitX = crossingX(block, index, originY, originZ);
+                    if (!Double.isNaN(hitX)) {
+                        hits[hitCount++] = hitX;
+                    }
+                }
+
+                for (int x = 0; x < resolutionX; x++) {
+                    double centerX = minX + (x + 0.5) * cellSize;
+                    int crossings = 0;
+                    for (int hit = 0; hit < hitCount; hit++) {
+                        if (hits[hit] < centerX) {
+                            crossings++;
+                        }
+                    }
+                    int voxel = voxelIndex(x, y, z);
+                    if (voxels[voxel] == EMPTY && crossings % 2 == 1) {
+                        voxels[voxel] = SOLID;
+                    }
+                }
+            }
+        }
+    }
+
+    // X coordinate where the line parallel to X through (y, z) crosses the triangle, or NaN
+    private static double crossingX(Geometry block, int index, double pointY, double pointZ) {
+        double[] a = vertex(block, index, 0);
+        double[] b = vertex(block, index, 1);
+        double[] c = vertex(block, index, 2);
+
+        // Barycentric coordinates of the point in the triangle's projection onto the YZ plane
+        double denominator = (b[1] - a[1]) * (c[2] - a[2]) - (c[1] - a[1]) * (b[2] - a[2]);
+        if (Math.abs(denominator) < 1e-14) {
+            return Double.NaN;
+        }
+        double u = ((pointY - a[1]) * (c[2] - a[2]) - (c[1] - a[1]) * (pointZ - a[2])) / denominator;
+        double v = ((b[1] - a[1]) * (pointZ - a[2]) - (pointY - a[1]) * (b[2] - a[2])) / denominator;
+        if (u < 0 || v < 0 || u + v > 1) {
+            return Double.NaN;
+        }
+        return a[0] + u * (b[0] - a[0]) + v * (c[0] - a[0]);
+    }
+
+    private static double[] vertex(Geometry block, int index, int corner) {
+        double x = block.getVertexAX()[index];
+        double y = block.getVertexAY()[index];
+        double z = block.getVertexAZ()[index];
+        if (corner == 1) {
+            x += block.getEdgeBAX()[index];
+            y += block.getEdgeBAY()[index];
+            z += block.getEdgeBAZ()[index];
+        }
+        else if (corner == 2) {
+            x += block.getEdgeCAX()[index];
+            y += block.getEdgeCAY()[index];
+            z += block.getEdgeCAZ()[index];
+        }
+        return new double[]{x, y, z};
+    }
+
+    private int cell(double value, double min, int resolution) {
+        return Math.max(0, Math.min(resolution - 1, (int) Math.floor((value - min) / cellSize)));
+    }
+
+    private int voxelIndex(int x, int y, int z) {
+        return (z * resolutionY + y) * resolutionX + x;
+    }
+
+    private static double min3(double vertex, double edgeBA, double edgeCA) {
+        return vertex + Math.min(0, Math.min(edgeBA, edgeCA));
+    }
+
+    private static double max3(double vertex, double edgeBA, double edgeCA) {
+        return vertex + Math.max(0, Math.max(edgeBA, edgeCA));
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    int getSolidVoxels() {
+        return solidVoxels;
+    }
+
+    int getSurfaceVoxels() {
+        return surfaceVoxels;
+    }
+
+    int getVoxelCount() {
+        return voxels.length;
+    }
+
+    // Empty, surface or solid for every voxel, x fastest, then y, then z
+    byte[] getVoxels() {
+        return voxels;
+    }
+
+    int getResolutionX() {
+        return resolutionX;
+    }
+
+    int getResolutionY() {
+        return resolutionY;
+    }
+
+    int getResolutionZ() {
+        return resolutionZ;
+    }
+
+    double getMinX() {
+        return minX;
+    }
+
+    double getMinY() {
+        return minY;
+    }
+
+    double getMinZ() {
+        return minZ;
+    }
+
+    double getCellSize() {
+        return cellSize;
+    }
+}
@@ -16,6 +16,9 @@ public class CalculateVF {
     // Define an output file for the view factor results
     public static String outputFile = "output.txt";
 
+    // Resolve self-intersection in one launch over all pairs instead of partitioning the receiver per facet
+    public static boolean singleLaunchSelfView = true;
+
     public static void run(STLFileReader emitterReader, STLFileReader receiverReader) {
 
         // Total view factor
@@ -49,21 +52,28 @@ public class CalculateVF {
             gpuTimer.start();
             ThreadedAdder adder = new ThreadedAdder(new DoubleAdder());
 
-            // Initialize your objects for geometry partitioning
-            SelfIntersectionUpdate receiverUpdate = new SelfIntersectionUpdate(receiver);
-            SelfIntersectionUpdate blockUpdate = new SelfIntersectionUpdate(receiver);
-
             double individualViewFactors = 0;
 
-            // Set the first index of geometry partitioning
-            // Note that with concentric cylinders, the outer cylinder represents the emitting surface and is not partitioned
-            int index = 0;
-            receiverUpdate.update(index);
-            blockUpdate.updateBlock(index);
-
-
-            MTCalculator partialMT = new MTCalculator(emitter, receiverUpdate, blockUpdate, receiver);
-            individualViewFactors = partialMT.calculate(adder::add, adder::finishAndGet);
+            if (singleLaunchSelfView) {
+                // The receiver skips its own facet when acting as the blocking geometry
+                MTCalculator partialMT = new MTCalculator(emitter, receiver);
+                individualViewFactors = partialMT.calculate(adder::add, adder::finishAndGet);
+            }
+            else {
+                // Initialize your objects for geometry partitioning
+                SelfIntersectionUpdate receiverUpdate = new SelfIntersectionUpdate(receiver);
+                SelfIntersectionUpdate blockUpdate = new SelfIntersectionUpdate(receiver);
+
+                // Set the first index of geometry partitioning
+                // Note that with concentric cylinders, the outer cylinder represents the emitting surface and is not partitioned
+                int index = 0;
+                receiverUpdate.update(index);
+                blockUpdate.updateBlock(index);
+
+
+                MTCalculator partialMT = new MTCalculator(emitter, receiverUpdate, blockUpdate, receiver);
+                individualViewFactors = partialMT.calculate(adder::add, adder::finishAndGet);
+            }
             GPUTime += gpuTimer.stop();
 
             //Final viewFactor that gets printed out to the screen
@@ -4,6 +4,8 @@
 
 import com.aparapi.Kernel;
 import com.aparapi.Range;
+import com.aparapi.device.Device;
+import com.aparapi.internal.kernel.KernelManager;
 import java.lang.Math;
 import java.util.function.Consumer;
 
@@ -60,6 +62,16 @@ public class MTCalculator extends Kernel {
     private int totalNumberOfUpdated;
 
     private int emitterIndex;
+
+    // Self-view mode: the whole receiver mesh blocks, minus the receiver facet of each pair
+    private static final int PAIR_LOCAL_WIDTH = 16;
+    private static final int PAIR_LOCAL_HEIGHT = 16;
+    private static final int PAIRS_PER_LAUNCH = 1 << 22;
+    private boolean selfView;
+    private int receiverStride; // Receiver count padded up to a multiple of the local width
+    private int pairLocalHeight; // Work-group rows the device takes, PAIR_LOCAL_HEIGHT at most
+    private int emitterOffset; // First emitter row of the current launch
+
     private static final double PI = 3.141592653589793238462643383279502884197169399375105820974944592307816406286d;
 
     //UPDATED EMITTER/RECEIVER
@@ -191,11 +203,99 @@ public class MTCalculator extends Kernel {
 
     }
 
+    // Self-intersection without partitioning. The receiver mesh doubles as the blocking mesh
+    // and all (emitter, receiver) pairs are dispatched in one 2D launch
+    public MTCalculator(Geometry emitter, Geometry receiver) {
+        this.emitter = emitter;
+        selfView = true;
+
+        totalNumberOfUpdated = receiver.getSize();
+
+        emitterTessellations = emitter.getSize();
+        emitterNormalX = emitter.getNormalX();
+        emitterNormalY = emitter.getNormalY();
+        emitterNormalZ = emitter.getNormalZ();
+        emitterVertexAX = emitter.getVertexAX();
+        emitterVertexAY = emitter.getVertexAY();
+        emitterVertexAZ = emitter.getVertexAZ();
+        emitterCenterX = emitter.getCenterX();
+        emitterCenterY = emitter.getCenterY();
+        emitterCenterZ = emitter.getCenterZ();
+        emitterAreas = emitter.getArea();
+
+        blockTessellations = receiver.getSize();
+        blockNormalX = receiver.getNormalX();
+        blockNormalY = receiver.getNormalY();
+        blockNormalZ = receiver.getNormalZ();
+        blockVertexAX = receiver.getVertexAX();
+        blockVertexAY = receiver.getVertexAY();
+        blockVertexAZ = receiver.getVertexAZ();
+        blockEdgeBAX = receiver.getEdgeBAX();
+        blockEdgeBAY = receiver.getEdgeBAY();
+        blockEdgeBAZ = receiver.getEdgeBAZ();
+        blockEdgeCAX = receiver.getEdgeCAX();
+        blockEdgeCAY = receiver.getEdgeCAY();
+        blockEdgeCAZ = receiver.getEdgeCAZ();
+
+        receiverTessellations = receiver.getSize();
+        receiverNormalX = receiver.getNormalX();
+        receiverNormalY = receiver.getNormalY();
+        receiverNormalZ = receiver.getNormalZ();
+        receiverVertexAX = receiver.getVertexAX();
+        receiverVertexAY = receiver.getVertexAY();
+        receiverVertexAZ = receiver.getVertexAZ();
+        receiverCenterX = receiver.getCenterX();
+        receiverCenterY = receiver.getCenterY();
+        receiverCenterZ = receiver.getCenterZ();
+        receiverAreas = receiver.getArea();
+
+        // Work-groups no larger than the default device takes, and whole work-group rows within PAIRS_PER_LAUNCH
+        // Padded slots stay zero
+        receiverStride = roundUp(receiverTessellations, PAIR_LOCAL_WIDTH);
+        pairLocalHeight = PAIR_LOCAL_HEIGHT;
+        Device device = KernelManager.instance().bestDevice();
+        if (device != null && device.getMaxWorkGroupSize() >= PAIR_LOCAL_WIDTH) {
+            pairLocalHeight = Math.min(pairLocalHeight, Integer.highestOneBit(device.getMaxWorkGroupSize() / PAIR_LOCAL_WIDTH));
+            int[] itemSizes = device.getMaxWorkItemSize();
+            if (itemSizes != null && itemSizes.length > 1 && itemSizes[1] > 0) {
+                pairLocalHeight = Math.min(pairLocalHeight, Integer.highestOneBit(itemSizes[1]));
+            }
+        }
+        int budgetRows = Math.max(1, PAIRS_PER_LAUNCH / receiverStride);
+        while (pairLocalHeight > 1 && pairLocalHeight > budgetRows) {
+            pairLocalHeight /= 2;
+        }
+        int rows = Math.min(roundUp(emitterTessellations, pairLocalHeight), budgetRows / pairLocalHeight * pairLocalHeight);
+        result = new double[Math.max(pairLocalHeight, rows) * receiverStride];
+    }
+
     //Run on the GPU
     @Override
     public void run() { //gets called in CalculateVF when we instantiate the execute method for the Kernel
 
-        int receiverIndex = getGlobalId();
+        if (selfView) {
+            // Receivers along the first dimension, emitter rows along the second
+            int receiverIndex = getGlobalId(0);
+            int emitterRow = getGlobalId(1);
+            int pairEmitter = emitterOffset + emitterRow;
+            int slot = emitterRow * receiverStride + receiverIndex;
+
+            if (receiverIndex < receiverTessellations && pairEmitter < emitterTessellations) {
+                // The receiver facet is part of the blocking mesh, so it is skipped by index
+                result[slot] = contribution(pairEmitter, receiverIndex, receiverIndex);
+            }
+            else {
+                result[slot] = 0;
+            }
+        }
+        else {
+            int receiverIndex = getGlobalId();
+            result[receiverIndex] = contribution(emitterIndex, receiverIndex, -1);
+        }
+    }
+
+    // View factor contribution of a single emitter/receiver pair. Blocking tessellation skipIndex is ignored
+    private double contribution(int emitterIndex, int receiverIndex, int skipIndex) {
 
         // Calculate the ray from the emitter to the destination tessellation.
         double rayX = receiverCenterX[receiverIndex] - emitterCenterX[emitterIndex];
@@ -205,11 +305,13 @@ public class MTCalculator extends Kernel {
 
         // Check if any intersecting geometry exists.
         for (int blockIndex = 0; blockIndex < blockTessellations; blockIndex++) {
-            double intersectionDistance = intersectionDistance(blockIndex, rayX, rayY, rayZ);
-            // If intersecting geometry exists, the contributed view factor is zero.
-            if (intersectionDistance != 0 && intersectionDistance <= rayMagnitude) {
-                result[receiverIndex] = 0;
-                return;
+            if (blockIndex != skipIndex) {
+                double intersectionDistance = intersectionDistance(emitterIndex, blockIndex, rayX, rayY, rayZ);
+                // If intersecting geometry exists, the contributed view factor is zero.
+                // The distance is a fraction of the emitter-to-receiver ray, so only 0 < t < 1 lies between them
+                if (intersectionDistance > 0 && intersectionDistance < 1) {
+                    return 0;
+                }
             }
         }
 
@@ -244,17 +346,19 @@ public class MTCalculator extends Kernel {
         }
 
 
-        result[receiverIndex] = cosThetaOne * cosThetaTwo * emitterAreas[emitterIndex] * receiverAreas[receiverIndex]
-                / (PI * rayMagnitude * rayMagnitude);
-
-        // Uncomment if interested in the view factor for a ray cast
-        //System.out.println(result[receiverIndex]);
-
+        // Uncomment if interested in the view factor for a ray cast (sequential execution only)
+        //System.out.println(cosThetaOne * cosThetaTwo * emitterAreas[emitterIndex] * receiverAreas[receiverIndex] / (PI * rayMagnitude * rayMagnitude));
 
+        return cosThetaOne * cosThetaTwo * emitterAreas[emitterIndex] * receiverAreas[receiverIndex]
+                / (PI * rayMagnitude * rayMagnitude);
     }
 
     public double calculate(Consumer<double[]> resultConsumer, KernelComplete completionHandler) {
 
+        if (selfView) {
+            return calculateSelfView(resultConsumer, completionHandler);
+        }
+
         viewFactorResults = new double[emitterTessellations]; //should store the final values
         individualViewFactors = new double[totalNumberOfUpdated];
 
@@ -327,7 +431,36 @@ public class MTCalculator extends Kernel {
         return viewFactor;
     }
 
-    private double intersectionDistance(int interconnectIndex, double rayX, double rayY, double rayZ) {
+    // Every receiver facet is handled in the same launch, so the arrays only go to the GPU once
+    private double calculateSelfView(Consumer<double[]> resultConsumer, KernelComplete completionHandler) {
+
+        // Explicitly pass only these values onto the GPU
+        setExplicit(true);
+        put(emitterNormalX).put(emitterNormalY).put(emitterNormalZ);
+        put(emitterCenterX).put(emitterCenterY).put(emitterCenterZ);
+        put(emitterAreas);
+
+        put(blockVertexAX).put(blockVertexAY).put(blockVertexAZ);
+        put(blockEdgeBAX).put(blockEdgeBAY).put(blockEdgeBAZ);
+        put(blockEdgeCAX).put(blockEdgeCAY).put(blockEdgeCAZ);
+
+        put(receiverNormalX).put(receiverNormalY).put(receiverNormalZ);
+        put(receiverCenterX).put(receiverCenterY).put(receiverCenterZ);
+        put(receiverAreas);
+
+        // Rows past the last emitter are written as zero so the whole result array can be summed
+        int rowsPerLaunch = result.length / receiverStride;
+        for (emitterOffset = 0; emitterOffset < emitterTessellations; emitterOffset += rowsPerLaunch) {
+            super.execute(Range.create2D(receiverStride, rowsPerLaunch, PAIR_LOCAL_WIDTH, pairLocalHeight));
+            get(result);
+            resultConsumer.accept(result);
+        }
+
+        viewFactor = completionHandler.onComplete()/sum(emitterAreas);
+        return viewFactor;
+    }
+
+    private double intersectionDistance(int emitterIndex, int interconnectIndex, double rayX, double rayY, double rayZ) {
         // MT Algorithm for intersection detection
 
         double pvecX = rayY * blockEdgeCAZ[interconnectIndex] - rayZ * blockEdgeCAY[interconnectIndex];
@@ -385,6 +518,10 @@ public class MTCalculator extends Kernel {
     }
 
 
+    private static int roundUp(int value, int multiple) {
+        return ((value + multiple - 1) / multiple) * multiple;
+    }
+
     private static double sum(double...values) {
         double result = 0;
         for (int index=0;index<values.length; index++){